@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The measured classes live in the default package, which JMH does not accept for benchmarks and which a named package
+ * cannot import. The benchmarks in the benchmarks package look these factories up by name once per trial and call the
+ * operations they hand out, a monomorphic interface call that costs next to nothing next to the operation itself.
+ * An operation named "close" undoes the setup of its factory.
+ */
+public class BenchmarkTargets {
+    private static final String LINE = "client 4 message #57 -- server 1";
+
+    public static Map<String, Callable<Object>> message() {
+        var message = new Message("server 1", Message.MessageType.WriteAcquireRequest, 123456789L, "File3.txt|" + LINE);
+        var messageAsString = message.toString();
+        var operations = new Hashtable<String, Callable<Object>>();
+
+        operations.put("parse", () -> new Message(messageAsString));
+        operations.put("print", message::toString);
+        operations.put("roundTrip", () -> new Message(message.toString()));
+        operations.put("getFileNameFromPayload", message::getFileNameFromPayload);
+        operations.put("getDataFromPayload", message::getDataFromPayload);
+
+        return operations;
+    }
+
+    public static Map<String, Callable<Object>> criticalSession(Integer queueDepth, Integer numberOfPeers) {
+        var serverName = "server 1";
+        var criticalSession = new FileCriticalSession("File1.txt", serverName, MutualExclusion.Lamport,
+                (writeSyncRequest, sequence, lines) -> CompletableFuture.completedFuture(null), new Logger());
+
+        // the own request is first and every peer confirmed it, so waitForAccess returns after a single check
+        var ownRequest = new Message(serverName, Message.MessageType.WriteAcquireRequest, 1, "File1.txt|own write");
+        criticalSession.addToQueue(ownRequest);
+
+        for (var i = 1; i < queueDepth; i++) {
+            var senderName = String.format("server %d", 2 + i % numberOfPeers);
+            criticalSession.addToQueue(new Message(senderName, Message.MessageType.WriteAcquireRequest, 1 + i, String.format("File1.txt|write %d", i)));
+        }
+
+        var addedRequest = new Message("server 2", Message.MessageType.WriteAcquireRequest, queueDepth + 1, "File1.txt|added write");
+        var addedRelease = new Message("server 2", Message.MessageType.WriteReleaseRequest, queueDepth + 2, "File1.txt|added write");
+        var operations = new Hashtable<String, Callable<Object>>();
+
+        operations.put("addToQueueAndRemoveFromQueue", () -> {
+            criticalSession.addToQueue(addedRequest);
+            criticalSession.removeReleasedRequest(addedRelease);
+            return criticalSession;
+        });
+        operations.put("waitForGrantedAccess", () -> {
+            criticalSession.waitForAccess(ownRequest, numberOfPeers);
+            return criticalSession;
+        });
+
+        return operations;
+    }
+
+    public static Map<String, Callable<Object>> fileAppend() throws IOException {
+        var directory = Files.createTempDirectory("FileAppendBenchmark");
+        var filePath = Files.createFile(directory.resolve("File1.txt"));
+
+        var writeAheadLog = new WriteAheadLog(directory.toString(), "server 1", 64L * 1024 * 1024, 1000, false, true, new Logger());
+        writeAheadLog.reset();
+
+        var fileStore = new FileStore(directory.toString(), Durability.None, 10, writeAheadLog, new LatencyMetric(), new Logger());
+        fileStore.start("benchmark");
+
+        var sequence = new AtomicLong();
+
+        var operations = new Hashtable<String, Callable<Object>>();
+
+        operations.put("fileUtilAppendToFile", () -> {
+            FileUtil.appendToFile(filePath.toString(), LINE);
+            return filePath;
+        });
+        operations.put("fileStoreAppend", () -> fileStore.append("File1.txt", LINE, sequence.getAndIncrement(), sequence.get(), "server 2", false).get());
+        operations.put("close", () -> {
+            // the write-ahead log directory goes with it
+            try (var paths = Files.walk(directory)) {
+                for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+
+            return directory;
+        });
+
+        return operations;
+    }
+
+    public static Map<String, Callable<Object>> logger() {
+        var logger = new Logger(Logger.LogLevel.Release);
+        var message = new Message("server 2", Message.MessageType.WriteAcquireRequest, 1234, "File1.txt|" + LINE);
+
+        // standard output goes nowhere so that the terminal is not measured
+        var standardOutput = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        var operations = new Hashtable<String, Callable<Object>>();
+
+        operations.put("log", () -> {
+            logger.log("%s receives '%s' from %s", "server 1", message, message.getSenderName());
+            return logger;
+        });
+        operations.put("debugWhenDisabled", () -> {
+            logger.debug("%s receives '%s' from %s", "server 1", message, message.getSenderName());
+            return logger;
+        });
+        operations.put("close", () -> {
+            System.setOut(standardOutput);
+            return standardOutput;
+        });
+
+        return operations;
+    }
+}
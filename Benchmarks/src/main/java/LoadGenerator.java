@@ -0,0 +1,353 @@
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Starts servers and clients on the loopback interface inside one JVM, drives writes through the clients and reports
+ * the throughput and the latencies, then checks that every replica of every file ended up with the same contents.
+ * Options are given as "key=value" arguments and are passed on to every server and client too, so that for example
+ * "mutualExclusion=RicartAgrawala" or "wireFormat=Text" apply to the whole cluster. A read ratio above 0 turns that
+ * share of the requests into reads of the start of a file, which are reported on their own.
+ */
+public class LoadGenerator {
+    public enum Workload {
+        /**
+         * Every client keeps a fixed number of writes in flight and sends the next one as soon as one is answered
+         */
+        ClosedLoop,
+
+        /**
+         * The clients send at a fixed total rate whether or not the earlier writes are answered, latencies are measured
+         * from the time a write was due so that a stalled cluster does not hide its own delay
+         */
+        FixedRate
+    }
+
+    private NodeOptions options;
+    private int numberOfServers;
+    private int numberOfClients;
+    private int numberOfFiles;
+    private int writesPerClient;
+    private Workload workload;
+    private int concurrency;
+    private int rate;
+    private double skew;
+    private int payloadSize;
+    private double readRatio;
+    private int readLength;
+    private boolean readOwnWrites;
+    private double[] cumulativeFileWeights;
+    private Path directory;
+    private ArrayList<ServerInfo> servers;
+    private HashRing hashRing;
+    private Histogram latencies;
+    private Histogram readLatencies;
+    private AtomicLong failures;
+    private AtomicLong readFailures;
+
+    public LoadGenerator(NodeOptions options) throws IOException {
+        this.options = options;
+        this.numberOfServers = options.getInt("servers", 3);
+        this.numberOfClients = options.getInt("clients", 5);
+        this.numberOfFiles = options.getInt("files", 4);
+        this.writesPerClient = options.getInt("writesPerClient", 10000);
+        this.workload = options.getEnum("workload", Workload.class, Workload.ClosedLoop);
+        this.concurrency = options.getInt("concurrency", 16);
+        this.rate = options.getInt("rate", 5000);
+        this.skew = options.getDouble("skew", 0);
+        this.payloadSize = options.getInt("payloadSize", 64);
+        this.readRatio = options.getDouble("readRatio", 0);
+        this.readLength = options.getInt("readLength", 4096);
+        this.readOwnWrites = Boolean.parseBoolean(options.get("readOwnWrites", "false"));
+        this.directory = Paths.get(options.get("directory", Files.createTempDirectory("LoadGenerator").toString()));
+        this.servers = new ArrayList<>();
+        this.latencies = new ConcurrentHistogram(3);
+        this.readLatencies = new ConcurrentHistogram(3);
+        this.failures = new AtomicLong();
+        this.readFailures = new AtomicLong();
+
+        // Zipf weights of the files, a skew of 0 spreads the writes evenly
+        this.cumulativeFileWeights = new double[numberOfFiles];
+        var totalWeight = 0.0;
+
+        for (var i = 0; i < numberOfFiles; i++) {
+            totalWeight += 1 / Math.pow(i + 1, skew);
+            cumulativeFileWeights[i] = totalWeight;
+        }
+
+        for (var i = 0; i < numberOfFiles; i++) {
+            cumulativeFileWeights[i] /= totalWeight;
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            var options = NodeOptions.parse(new Scanner(String.join(System.lineSeparator(), args)));
+            var isConsistent = new LoadGenerator(options).run();
+
+            System.exit(isConsistent ? 0 : 1);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    public boolean run() throws Exception {
+        var standardOutput = System.out;
+
+        for (var i = 1; i <= numberOfServers; i++) {
+            servers.add(new ServerInfo(String.format("server %d:127.0.0.1:%d", i, findFreePort())));
+
+            var serverDirectory = Files.createDirectories(directory.resolve("Server" + i));
+            for (var j = 1; j <= numberOfFiles; j++) {
+                Files.write(serverDirectory.resolve(String.format("File%d.txt", j)), new byte[0]);
+            }
+        }
+
+        var serverNames = new ArrayList<String>();
+        for (var server : servers) {
+            serverNames.add(server.getName());
+        }
+
+        // the files only reach the servers of their replication group
+        hashRing = new HashRing(serverNames, options.getInt("replicationFactor", 0));
+
+        standardOutput.println(String.format("Servers: %d, clients: %d, files: %d (skew %.2f), payload: %d B, workload: %s (%s), directory: %s",
+                numberOfServers, numberOfClients, numberOfFiles, skew, payloadSize, workload,
+                workload == Workload.ClosedLoop ? concurrency + " in flight per client" : rate + " writes/s",
+                directory));
+
+        // the nodes log as they go, and every message with logLevel=Debug, which would measure the terminal
+        if (Boolean.parseBoolean(options.get("quiet", "true"))) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        var bootstrapStartTime = System.nanoTime();
+
+        for (var server : servers) {
+            var otherServers = new ArrayList<>(servers);
+            otherServers.remove(server);
+
+            var serverNumber = Integer.parseInt(server.getName().substring("server ".length()));
+            var serverDirectory = directory.resolve("Server" + serverNumber);
+
+            // each server gets its own metrics port, counting up from the given one
+            var serverOptions = new NodeOptions(options);
+            var metricsPort = options.getInt("metricsPort", 0);
+            serverOptions.set("metricsPort", String.valueOf(metricsPort > 0 ? metricsPort + serverNumber - 1 : 0));
+
+            new ServerNode(server, otherServers, serverDirectory.toString(), serverOptions).up();
+        }
+
+        var clients = new ArrayList<ClientNode>();
+        for (var i = 1; i <= numberOfClients; i++) {
+            clients.add(new ClientNode("client " + i, servers, options));
+        }
+
+        // the servers link to each other in the background, a server answers once it is linked to all others
+        if (!clients.isEmpty() && !clients.get(0).awaitReady(options.getLong("readyTimeout", 10_000))) {
+            throw new IllegalStateException("the servers are not connected to each other in time");
+        }
+
+        standardOutput.println(String.format("Cluster ready in %.1f ms", (System.nanoTime() - bootstrapStartTime) / 1e6));
+
+        var startTime = System.nanoTime();
+        var clientThreads = new ArrayList<Thread>();
+
+        for (var client : clients) {
+            var clientThread = new Thread(() -> {
+                try {
+                    drive(client);
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }, client.getName() + "-driver");
+
+            clientThread.start();
+            clientThreads.add(clientThread);
+        }
+
+        for (var clientThread : clientThreads) {
+            clientThread.join();
+        }
+
+        var elapsedTime = System.nanoTime() - startTime;
+        report(standardOutput, elapsedTime);
+
+        // the servers keep logging while the last syncs arrive
+        var isConsistent = checkReplicas(standardOutput);
+
+        // the lines still queued in the appender would otherwise be printed to the restored output
+        LogAppender.getInstance().flush();
+        System.setOut(standardOutput);
+
+        return isConsistent;
+    }
+
+    private void drive(ClientNode client) throws Exception {
+        var written = new CountDownLatch(writesPerClient);
+        var inFlight = new Semaphore(concurrency);
+        var interval = TimeUnit.SECONDS.toNanos(numberOfClients) / rate;
+        var dueTime = System.nanoTime();
+
+        for (var i = 0; i < writesPerClient; i++) {
+            long startTime;
+
+            if (workload == Workload.ClosedLoop) {
+                inFlight.acquire();
+                startTime = System.nanoTime();
+            }
+            else {
+                dueTime += interval;
+
+                for (var now = System.nanoTime(); now < dueTime; now = System.nanoTime()) {
+                    LockSupport.parkNanos(dueTime - now);
+                }
+
+                startTime = dueTime;
+            }
+
+            if (readRatio > 0 && ThreadLocalRandom.current().nextDouble() < readRatio) {
+                var fileName = String.format("File%d.txt", nextFileNumber());
+
+                client.requestRead(fileName, 0, readLength, readOwnWrites).whenComplete((reply, e) -> {
+                    readLatencies.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+
+                    if (e != null || reply.getType() != Message.MessageType.ReadSuccessAck) {
+                        readFailures.incrementAndGet();
+                    }
+
+                    inFlight.release();
+                    written.countDown();
+                });
+
+                continue;
+            }
+
+            client.requestWrite(nextPayload(client, i)).whenComplete((reply, e) -> {
+                latencies.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+
+                if (e != null || reply.getType() != Message.MessageType.WriteSuccessAck) {
+                    failures.incrementAndGet();
+                }
+
+                inFlight.release();
+                written.countDown();
+            });
+        }
+
+        written.await();
+    }
+
+    private int nextFileNumber() {
+        var random = ThreadLocalRandom.current().nextDouble();
+        var fileNumber = 1;
+
+        while (fileNumber < numberOfFiles && cumulativeFileWeights[fileNumber - 1] < random) {
+            fileNumber++;
+        }
+
+        return fileNumber;
+    }
+
+    private String nextPayload(ClientNode client, int writeNumber) {
+        var payload = new StringBuilder(String.format("File%d.txt|%s #%d ", nextFileNumber(), client.getName(), writeNumber));
+        var payloadStart = payload.indexOf("|") + 1;
+
+        while (payload.length() - payloadStart < payloadSize) {
+            payload.append('x');
+        }
+
+        return payload.toString();
+    }
+
+    private void report(PrintStream out, long elapsedTime) {
+        var numberOfReads = readLatencies.getTotalCount();
+        var numberOfWrites = (long) numberOfClients * writesPerClient - numberOfReads;
+        var elapsedSeconds = elapsedTime / 1_000_000_000.0;
+
+        out.println(String.format("Writes: %d in %.3f s = %.1f writes/s, failures: %d",
+                numberOfWrites, elapsedSeconds, numberOfWrites / elapsedSeconds, failures.get()));
+        out.println(String.format("Latency (ms): p50 %.3f, p99 %.3f, p999 %.3f, max %.3f",
+                latencies.getValueAtPercentile(50) / 1000.0, latencies.getValueAtPercentile(99) / 1000.0,
+                latencies.getValueAtPercentile(99.9) / 1000.0, latencies.getMaxValue() / 1000.0));
+
+        if (numberOfReads > 0) {
+            out.println(String.format("Reads: %d = %.1f reads/s, failures: %d", numberOfReads, numberOfReads / elapsedSeconds, readFailures.get()));
+            out.println(String.format("Read latency (ms): p50 %.3f, p99 %.3f, p999 %.3f, max %.3f",
+                    readLatencies.getValueAtPercentile(50) / 1000.0, readLatencies.getValueAtPercentile(99) / 1000.0,
+                    readLatencies.getValueAtPercentile(99.9) / 1000.0, readLatencies.getMaxValue() / 1000.0));
+        }
+
+        if (Boolean.parseBoolean(options.get("percentiles", "false"))) {
+            latencies.outputPercentileDistribution(out, 1000.0);
+        }
+    }
+
+    private boolean checkReplicas(PrintStream out) throws IOException, InterruptedException {
+        // the other servers may still be applying the last syncs when the clients have their acks
+        var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.getInt("settleTimeout", 5000));
+        var isConsistent = false;
+
+        while (!isConsistent && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+            isConsistent = true;
+
+            for (var i = 1; i <= numberOfFiles; i++) {
+                isConsistent &= isFileConsistent(String.format("File%d.txt", i));
+            }
+        }
+
+        for (var i = 1; i <= numberOfFiles; i++) {
+            var fileName = String.format("File%d.txt", i);
+            var replicas = hashRing.getReplicas(fileName);
+            var lines = Files.readAllLines(getServerDirectory(replicas.get(0)).resolve(fileName)).size();
+
+            out.println(String.format("Replicas of %s on %s: %d line(s), %s", fileName, String.join(", ", replicas), lines,
+                    isFileConsistent(fileName) ? "consistent" : "DIFFERENT"));
+        }
+
+        return isConsistent;
+    }
+
+    private boolean isFileConsistent(String fileName) throws IOException {
+        var replicas = hashRing.getReplicas(fileName);
+        var firstReplica = Files.readAllBytes(getServerDirectory(replicas.get(0)).resolve(fileName));
+
+        for (var i = 1; i < replicas.size(); i++) {
+            if (!Arrays.equals(firstReplica, Files.readAllBytes(getServerDirectory(replicas.get(i)).resolve(fileName)))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private Path getServerDirectory(String serverName) {
+        return directory.resolve("Server" + serverName.substring("server ".length()));
+    }
+
+    private static int findFreePort() throws IOException {
+        try (var serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+}
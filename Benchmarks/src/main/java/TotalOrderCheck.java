@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runs the ordered multicast of a few servers on one thread, the messages passed between them by hand in an order
+ * picked by a seeded random generator, so that interleavings a cluster only runs into now and then come up every time.
+ * Starts with the servers writing at the same timestamp, then tries many random interleavings. Every write has to be
+ * appended, and in the same order on every server. Exits with 1 if that fails, the seed tells how to replay it.
+ */
+public class TotalOrderCheck {
+    private static final String FILE_NAME = "File1.txt";
+
+    public static void main(String[] args) {
+        var numberOfSeeds = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        var isCorrect = check("equal timestamps", 2, -1, 1);
+
+        for (var seed = 0; seed < numberOfSeeds && isCorrect; seed++) {
+            isCorrect = check("seed " + seed, 2 + seed % 3, seed, 20);
+        }
+
+        System.exit(isCorrect ? 0 : 1);
+    }
+
+    /**
+     * A negative seed lets every server write once before any message is passed on, so all writes share timestamp 1
+     */
+    private static boolean check(String name, int numberOfServers, long seed, int writesPerServer) {
+        var servers = new ArrayList<CheckedServer>();
+
+        for (var i = 1; i <= numberOfServers; i++) {
+            servers.add(new CheckedServer("server " + i, servers));
+        }
+
+        var random = new Random(seed);
+        var written = new ArrayList<CompletableFuture<Long>>();
+        var writes = new ArrayList<Integer>();
+
+        for (var server : servers) {
+            for (var i = 0; i < writesPerServer; i++) {
+                writes.add(servers.indexOf(server));
+            }
+        }
+
+        while (!writes.isEmpty() || servers.stream().anyMatch(CheckedServer::hasMessages)) {
+            var server = servers.get(random.nextInt(numberOfServers));
+
+            if (!writes.isEmpty() && (seed < 0 || random.nextBoolean() || !server.hasMessages())) {
+                var writer = servers.get(writes.remove(seed < 0 ? 0 : random.nextInt(writes.size())));
+                written.add(writer.write(String.format("%s|%s line #%d", FILE_NAME, writer.getName(), written.size())));
+            }
+            else if (server.hasMessages()) {
+                server.deliverNext(random);
+            }
+        }
+
+        var unfinished = written.stream().filter(write -> !write.isDone()).count();
+        var appendedLines = servers.get(0).getAppendedLines();
+        var isConsistent = servers.stream().allMatch(server -> server.getAppendedLines().equals(appendedLines));
+
+        if (unfinished > 0 || !isConsistent || appendedLines.size() != written.size()) {
+            System.out.println(String.format("%s, %d servers: %d of %d writes never appended, %s", name, numberOfServers,
+                    unfinished, written.size(), isConsistent ? "same order" : "different orders"));
+            return false;
+        }
+
+        System.out.println(String.format("%s, %d servers: %d writes appended in the same order", name, numberOfServers, written.size()));
+        return true;
+    }
+
+    private static class CheckedServer implements ReplicaNode {
+        private String name;
+        private ArrayList<CheckedServer> servers;
+        private long localTime;
+        // what each other server sent to this one and is not handled yet, in the order it was sent
+        private Hashtable<String, ArrayDeque<Message>> inboxes;
+        private Hashtable<String, FileCriticalSession> criticalSessions;
+        private ArrayList<String> appendedLines;
+        private TotalOrderMulticast multicast;
+
+        public CheckedServer(String name, ArrayList<CheckedServer> servers) {
+            this.name = name;
+            this.servers = servers;
+            this.localTime = 0;
+            this.inboxes = new Hashtable<>();
+            this.criticalSessions = new Hashtable<>();
+            this.appendedLines = new ArrayList<>();
+            this.multicast = new TotalOrderMulticast(this, new Logger());
+        }
+
+        public CompletableFuture<Long> write(String payload) {
+            return multicast.multicast(payload);
+        }
+
+        public boolean hasMessages() {
+            return inboxes.values().stream().anyMatch(inbox -> !inbox.isEmpty());
+        }
+
+        public void deliverNext(Random random) {
+            var senders = inboxes.keySet().stream().filter(sender -> !inboxes.get(sender).isEmpty()).sorted().toList();
+            var message = inboxes.get(senders.get(random.nextInt(senders.size()))).poll();
+
+            // as ServerNode does before handing a message to the multicast
+            localTime = Math.max(localTime, message.getTimeStamp() + 1) + 1;
+            multicast.handle(message);
+        }
+
+        public ArrayList<String> getAppendedLines() {
+            return appendedLines;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public int getNumberOfPeers(String fileName) {
+            return servers.size() - 1;
+        }
+
+        @Override
+        public ArrayList<String> getPeerNames(String fileName) {
+            var peerNames = new ArrayList<String>();
+
+            for (var server : servers) {
+                if (server != this) {
+                    peerNames.add(server.getName());
+                }
+            }
+
+            return peerNames;
+        }
+
+        @Override
+        public FileCriticalSession getCriticalSession(String fileName) {
+            return criticalSessions.computeIfAbsent(fileName, file -> new FileCriticalSession(file, name, MutualExclusion.TotalOrder,
+                    (writeSyncRequest, sequence, lines) -> {
+                        appendedLines.add(lines);
+                        return CompletableFuture.completedFuture(null);
+                    }, new Logger()));
+        }
+
+        @Override
+        public Collection<FileCriticalSession> getCriticalSessions() {
+            return criticalSessions.values();
+        }
+
+        @Override
+        public Message stamp(Message.MessageType type, String payload) {
+            return new Message(name, type, ++localTime, payload);
+        }
+
+        @Override
+        public void send(String serverName, Message message) {
+            for (var server : servers) {
+                if (server.getName().equals(serverName)) {
+                    server.inboxes.computeIfAbsent(name, sender -> new ArrayDeque<>()).add(message);
+                }
+            }
+        }
+
+        @Override
+        public void sendToAll(Message message) throws IOException {
+            for (var peerName : getPeerNames(message.getFileNameFromPayload())) {
+                send(peerName, message);
+            }
+        }
+
+        @Override
+        public void sendToReachable(Message message) {
+            for (var peerName : getPeerNames(message.getFileNameFromPayload())) {
+                send(peerName, message);
+            }
+        }
+    }
+}
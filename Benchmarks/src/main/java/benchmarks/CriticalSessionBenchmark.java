@@ -0,0 +1,53 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue operations of one file's critical session with the queue already holding requests and responses of the peers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CriticalSessionBenchmark {
+    @Param({"16", "256", "4096"})
+    private int queueDepth;
+
+    @Param({"4"})
+    private int numberOfPeers;
+
+    private Callable<Object> addToQueueAndRemoveFromQueue;
+    private Callable<Object> waitForGrantedAccess;
+
+    @Setup
+    public void setUp() throws Exception {
+        var operations = Targets.of("criticalSession", queueDepth, numberOfPeers);
+        addToQueueAndRemoveFromQueue = operations.get("addToQueueAndRemoveFromQueue");
+        waitForGrantedAccess = operations.get("waitForGrantedAccess");
+    }
+
+    @Benchmark
+    public Object addToQueueAndRemoveFromQueue() throws Exception {
+        return addToQueueAndRemoveFromQueue.call();
+    }
+
+    @Benchmark
+    public Object waitForGrantedAccess() throws Exception {
+        return waitForGrantedAccess.call();
+    }
+}
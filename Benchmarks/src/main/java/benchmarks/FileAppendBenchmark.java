@@ -0,0 +1,54 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appending one line to a replica file, the way FileUtil does it on every write and through the file store.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileAppendBenchmark {
+    private Callable<Object> fileUtilAppendToFile;
+    private Callable<Object> fileStoreAppend;
+    private Callable<Object> close;
+
+    @Setup
+    public void setUp() throws Exception {
+        var operations = Targets.of("fileAppend");
+        fileUtilAppendToFile = operations.get("fileUtilAppendToFile");
+        fileStoreAppend = operations.get("fileStoreAppend");
+        close = operations.get("close");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        close.call();
+    }
+
+    @Benchmark
+    public Object fileUtilAppendToFile() throws Exception {
+        return fileUtilAppendToFile.call();
+    }
+
+    @Benchmark
+    public Object fileStoreAppend() throws Exception {
+        return fileStoreAppend.call();
+    }
+}
@@ -0,0 +1,55 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a log line on the calling thread. The appender cannot print as fast as log hands records over, so after the
+ * first moments log waits for room in the ring and measures the appender's throughput rather than the bare hand-off.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoggerBenchmark {
+    private Callable<Object> log;
+    private Callable<Object> debugWhenDisabled;
+    private Callable<Object> close;
+
+    @Setup
+    public void setUp() throws Exception {
+        var operations = Targets.of("logger");
+        log = operations.get("log");
+        debugWhenDisabled = operations.get("debugWhenDisabled");
+        close = operations.get("close");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        close.call();
+    }
+
+    @Benchmark
+    public Object log() throws Exception {
+        return log.call();
+    }
+
+    @Benchmark
+    public Object debugWhenDisabled() throws Exception {
+        return debugWhenDisabled.call();
+    }
+}
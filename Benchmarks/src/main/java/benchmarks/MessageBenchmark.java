@@ -0,0 +1,67 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and printing of the text format and the payload accessors every handler calls.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBenchmark {
+    private Callable<Object> parse;
+    private Callable<Object> print;
+    private Callable<Object> roundTrip;
+    private Callable<Object> getFileNameFromPayload;
+    private Callable<Object> getDataFromPayload;
+
+    @Setup
+    public void setUp() throws Exception {
+        var operations = Targets.of("message");
+        parse = operations.get("parse");
+        print = operations.get("print");
+        roundTrip = operations.get("roundTrip");
+        getFileNameFromPayload = operations.get("getFileNameFromPayload");
+        getDataFromPayload = operations.get("getDataFromPayload");
+    }
+
+    @Benchmark
+    public Object parse() throws Exception {
+        return parse.call();
+    }
+
+    @Benchmark
+    public Object print() throws Exception {
+        return print.call();
+    }
+
+    @Benchmark
+    public Object roundTrip() throws Exception {
+        return roundTrip.call();
+    }
+
+    @Benchmark
+    public Object getFileNameFromPayload() throws Exception {
+        return getFileNameFromPayload.call();
+    }
+
+    @Benchmark
+    public Object getDataFromPayload() throws Exception {
+        return getDataFromPayload.call();
+    }
+}
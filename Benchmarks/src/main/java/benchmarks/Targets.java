@@ -0,0 +1,21 @@
+package benchmarks;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Looks up the operations of a BenchmarkTargets factory, see there for why it goes through reflection.
+ */
+final class Targets {
+    private Targets() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, Callable<Object>> of(String factoryName, Object... arguments) throws ReflectiveOperationException {
+        var argumentTypes = Arrays.stream(arguments).map(Object::getClass).toArray(Class<?>[]::new);
+        var factory = Class.forName("BenchmarkTargets").getMethod(factoryName, argumentTypes);
+
+        return (Map<String, Callable<Object>>) factory.invoke(null, arguments);
+    }
+}
@@ -8,6 +8,7 @@ public class Client {
             String name = "Client0";
             var servers = new ArrayList<ServerInfo>();
             String configurationFile;
+            var options = new NodeOptions();
 
             if(args == null || args.length == 0) {
                 var scanner = new Scanner(System.in);
@@ -45,9 +46,11 @@ public class Client {
                 for(var input : serversInput) {
                     servers.add(new ServerInfo(input));
                 }
+
+                options = NodeOptions.parse(scanner);
             }
 
-            var clientNode = new ClientNode(name, servers);
+            var clientNode = new ClientNode(name, servers, options);
             clientNode.up();
         }
         catch(Exception e) {
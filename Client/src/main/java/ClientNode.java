@@ -1,85 +1,349 @@
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ClientNode {
     private final int TIME_DIFFERENCE_BETWEEN_PROCESSES = 1;
-    private int localTime;
+    private long localTime;
     private String name;
-    private Hashtable<String, Socket> serverSockets;
-    private Logger logger = new Logger(Logger.LogLevel.Release);
+    private WireFormat wireFormat;
+    private Compression compression;
+    private ThreadFactory threadFactory;
+    private int numberOfWrites;
+    private int maxWriteDelay;
+    private long readyTimeout;
+    private int maxFrameLength;
+    private Semaphore writePermits;
+    private AtomicLong lastRequestId;
+    private Hashtable<String, Hashtable<Long, CompletableFuture<Message>>> pendingRequests;
+    // why the replies of a server stopped coming, set under the lock of its pending requests
+    private Hashtable<String, IOException> serverFailures;
+    private Hashtable<String, Connection> serverSockets;
+    // timestamp of the sync of the latest write to each file this client had acknowledged
+    private Hashtable<String, Long> lastWriteTimeStamps;
+    private String[] serverNames;
+    private Hashtable<String, Integer> serverIndexes;
+    private ServerSelector serverSelector;
+    private HashRing hashRing;
+    // the indexes of the servers replicating each file, which the routing picks from
+    private Hashtable<String, int[]> fileServers;
+    private Logger logger;
 
-    public ClientNode(String name, ArrayList<ServerInfo> servers) throws IOException {
+    public ClientNode(String name, ArrayList<ServerInfo> servers, NodeOptions options) throws IOException {
         this.name = name;
+        logger = new Logger(options.getEnum("logLevel", Logger.LogLevel.class, Logger.LogLevel.Release));
         localTime = 0;
+        wireFormat = options.getEnum("wireFormat", WireFormat.class, WireFormat.Binary);
+        compression = options.getEnum("compression", Compression.class, Compression.None);
+        compression.checkWireFormat(wireFormat);
+        threadFactory = options.getEnum("threads", ThreadMode.class, ThreadMode.Platform).newThreadFactory(name);
+        numberOfWrites = options.getInt("writes", 100);
+        maxWriteDelay = options.getInt("writeDelay", 1000);
+        readyTimeout = options.getLong("readyTimeout", 10_000);
+        maxFrameLength = options.getInt("maxFrameLength", MessageCodec.DEFAULT_MAX_FRAME_LENGTH);
+        writePermits = new Semaphore(options.getInt("maxPendingWrites", 1024));
+        lastRequestId = new AtomicLong();
+        pendingRequests = new Hashtable<>();
+        serverFailures = new Hashtable<>();
         serverSockets = new Hashtable<>();
+        lastWriteTimeStamps = new Hashtable<>();
+        serverNames = new String[servers.size()];
+        serverIndexes = new Hashtable<>();
+        serverSelector = options.getEnum("routing", Routing.class, Routing.Random).newSelector(servers.size());
+        fileServers = new Hashtable<>();
         populateServerSockets(servers);
+
+        // the same ring as the servers', built from the same names
+        hashRing = new HashRing(serverIndexes.keySet(), options.getInt("replicationFactor", 0));
+    }
+
+    public String getName() {
+        return name;
     }
 
+    /**
+     * Connects to all servers at once, each one is tried again until it listens or the ready timeout is over
+     */
     private void populateServerSockets(ArrayList<ServerInfo> servers) throws IOException {
+        var connections = new ArrayList<CompletableFuture<Connection>>();
+
         for (var server : servers) {
-            var socket = new Socket(server.getIpAddress(), server.getPort());
-            serverSockets.put(server.getName(), socket);
-            sendMessage(socket, String.format("Client '%s'", this.name));
+            serverNames[serverIndexes.size()] = server.getName();
+            serverIndexes.put(server.getName(), serverIndexes.size());
+
+            var connection = new CompletableFuture<Connection>();
+            connections.add(connection);
+
+            threadFactory.newThread(() -> {
+                try {
+                    var serverConnection = Connection.open(server.getIpAddress(), server.getPort(), String.format("Client '%s'", this.name),
+                            wireFormat, compression, readyTimeout);
+                    serverConnection.setMaxFrameLength(maxFrameLength);
+                    connection.complete(serverConnection);
+                }
+                catch (IOException | InterruptedException e) {
+                    connection.completeExceptionally(e);
+                }
+            }).start();
+        }
+
+        IOException failure = null;
+
+        for (var i = 0; i < servers.size(); i++) {
+            var serverName = serverNames[i];
+
+            try {
+                var socket = connections.get(i).get();
+                serverSockets.put(serverName, socket);
+                pendingRequests.put(serverName, new Hashtable<>());
+
+                threadFactory.newThread(() -> receiveReplies(serverName, socket)).start();
+            }
+            catch (InterruptedException | ExecutionException e) {
+                var cause = e instanceof ExecutionException ? e.getCause() : e;
+                failure = failure == null ? new IOException(String.format("'%s' cannot connect to %s", this.name, serverName), cause) : failure;
+            }
+        }
+
+        // the connections that were opened would keep the reply threads running
+        if (failure != null) {
+            for (var socket : serverSockets.values()) {
+                socket.close();
+            }
+
+            throw failure;
+        }
+    }
+
+    /**
+     * Waits until every server answers that it is connected to and from all the others, so that the writes sent next
+     * are not ordered without the servers that started last. False once the timeout is over without all the answers.
+     */
+    public boolean awaitReady(long timeoutMillis) throws IOException, InterruptedException {
+        var replies = new ArrayList<CompletableFuture<Message>>();
+
+        for (var serverName : serverNames) {
+            replies.add(sendRequest(serverName, Message.MessageType.ReadyRequest, ""));
+        }
+
+        try {
+            CompletableFuture.allOf(replies.toArray(CompletableFuture<?>[]::new)).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        catch (TimeoutException e) {
+            return false;
         }
     }
 
-    public void up() throws IOException, InterruptedException {
-        logger.log(String.format("'%s' starts", this.name));
+    public void up() throws IOException, InterruptedException, ExecutionException {
+        logger.log("'%s' starts", this.name);
+
+        if (!awaitReady(readyTimeout)) {
+            logger.log("'%s' starts writing before every server is ready", this.name);
+        }
 
         var random = new Random();
+        var replies = new ArrayList<CompletableFuture<Message>>();
         String message;
         int fileNumber;
-        int serverNumber;
         String serverName;
 
-        for(var i = 0; i < 100; i++) {
-            serverNumber = random.nextInt(serverSockets.size());
-            serverName = (String) serverSockets.keySet().toArray()[serverNumber];
+        for(var i = 0; i < numberOfWrites; i++) {
             fileNumber = random.nextInt(4) + 1;
+            serverName = selectServer(String.format("File%d.txt", fileNumber));
             message = String.format("File%d.txt|%s message #%d -- %s", fileNumber, this.name, i, serverName);
 
-            requestWrite(serverName, message);
-            Thread.sleep(random.nextInt(1000));
+            replies.add(requestWrite(serverName, message));
+
+            if (maxWriteDelay > 0) {
+                Thread.sleep(random.nextInt(maxWriteDelay));
+            }
         }
 
-        logger.log(String.format("'%s' gracefully exits", this.name));
+        CompletableFuture.allOf(replies.toArray(CompletableFuture<?>[]::new)).get();
+
+        for (var socket : serverSockets.values()) {
+            socket.close();
+        }
+
+        logger.log("'%s' gracefully exits", this.name);
     }
 
-    private void requestWrite(String serverName, String messagePayload) throws IOException {
-        incrementLocalTime();
+    /**
+     * Sends the write to the server the routing picks among those replicating the file
+     */
+    public CompletableFuture<Message> requestWrite(String messagePayload) throws IOException, InterruptedException {
+        var separatorIndex = messagePayload.indexOf('|');
+        var fileName = separatorIndex < 0 ? messagePayload : messagePayload.substring(0, separatorIndex);
+
+        return requestWrite(selectServer(fileName), messagePayload);
+    }
+
+    /**
+     * Sends the write without waiting for the previous ones, the returned future completes with the server's ack.
+     * Blocks only while the configured number of writes is already in flight.
+     */
+    public CompletableFuture<Message> requestWrite(String serverName, String messagePayload) throws IOException, InterruptedException {
+        return sendRequest(serverName, Message.MessageType.ClientWriteRequest, messagePayload);
+    }
+
+    /**
+     * Reads from the replica of the server the routing picks among those replicating the file
+     */
+    public CompletableFuture<Message> requestRead(String fileName, long offset, int length, boolean readOwnWrites) throws IOException, InterruptedException {
+        return requestRead(selectServer(fileName), fileName, offset, length, readOwnWrites);
+    }
+
+    /**
+     * Reads up to length bytes of the server's replica of the file from the byte offset on, the returned future
+     * completes with a ReadSuccessAck whose data is the text read, or a ReadFailureAck. Reading the own writes makes the
+     * server wait until it has applied the latest write this client had acknowledged for the file, wherever it went.
+     * Reads count towards the writes in flight.
+     */
+    public CompletableFuture<Message> requestRead(String serverName, String fileName, long offset, int length, boolean readOwnWrites) throws IOException, InterruptedException {
+        var payload = String.format("%s|%d|%d", fileName, offset, length);
+
+        if (readOwnWrites) {
+            payload = String.format("%s|%d", payload, lastWriteTimeStamps.getOrDefault(fileName, 0L));
+        }
+
+        return sendRequest(serverName, Message.MessageType.ClientReadRequest, payload);
+    }
+
+    private String selectServer(String fileName) {
+        var servers = fileServers.computeIfAbsent(fileName,
+                name -> hashRing.getReplicas(name).stream().mapToInt(serverIndexes::get).toArray());
+
+        return serverNames[serverSelector.select(servers)];
+    }
+
+    private CompletableFuture<Message> sendRequest(String serverName, Message.MessageType type, String messagePayload) throws IOException, InterruptedException {
+        writePermits.acquire();
 
         var socket = serverSockets.get(serverName);
-        var message = new Message(this.name, Message.MessageType.ClientWriteRequest, localTime, messagePayload);
+        var server = serverIndexes.get(serverName);
+        var requestId = lastRequestId.incrementAndGet();
+        var reply = new CompletableFuture<Message>();
+        var message = stampMessage(type, messagePayload, requestId);
+
+        var serverPendingRequests = pendingRequests.get(serverName);
 
-        logger.log(String.format("%s sends '%s' to %s", this.name, message, serverName));
+        // registered before sending since the reply can come back before send returns, and only while replies can come
+        synchronized (serverPendingRequests) {
+            var failure = serverFailures.get(serverName);
 
-        sendMessage(socket, message.toString());
+            if (failure != null) {
+                writePermits.release();
+                throw new IOException(String.format("'%s' gets no more replies from %s", this.name, serverName), failure);
+            }
 
-        var dis = new DataInputStream(socket.getInputStream());
-        var responseMessageText = dis.readUTF();
-        var responseMessage = new Message(responseMessageText);
+            serverPendingRequests.put(requestId, reply);
+        }
 
-        logger.log(String.format("%s receives '%s' from %s", this.name, responseMessageText, serverName));
+        var sendTime = System.nanoTime();
+        serverSelector.sent(server);
+        reply.whenComplete((responseMessage, e) -> {
+            if (e == null) {
+                serverSelector.replied(server, System.nanoTime() - sendTime);
+            }
+            else {
+                serverSelector.failed(server);
+            }
+        });
 
-        setLocalTime(responseMessage.getTimeStamp());
-        incrementLocalTime();
+        logger.debug("%s sends '%s' to %s", this.name, message, serverName);
+
+        try {
+            socket.send(message);
+        }
+        catch (IOException e) {
+            // unless the reply reader failed the request already
+            if (serverPendingRequests.remove(requestId) != null) {
+                writePermits.release();
+                reply.completeExceptionally(e);
+            }
+
+            throw e;
+        }
+
+        return reply;
     }
 
-    private void sendMessage(Socket socket, String message) throws IOException {
-        var dos = new DataOutputStream(socket.getOutputStream());
-        dos.writeUTF(message);
+    private void receiveReplies(String serverName, Connection socket) {
+        var serverPendingWrites = pendingRequests.get(serverName);
+
+        try {
+            while (true) {
+                var responseMessage = socket.receive();
+
+                logger.debug("%s receives '%s' from %s", this.name, responseMessage, serverName);
+
+                setLocalTime(responseMessage.getTimeStamp());
+                incrementLocalTime();
+
+                // replies come back in the order the server finishes the writes, not the order they were sent in
+                var reply = serverPendingWrites.remove(responseMessage.getRequestId());
+
+                if (responseMessage.getType() == Message.MessageType.WriteSuccessAck && !responseMessage.getPayload().isEmpty()) {
+                    lastWriteTimeStamps.merge(responseMessage.getFileNameFromPayload(), Long.parseLong(responseMessage.getDataFromPayload()), Math::max);
+                }
+
+                if (reply != null) {
+                    writePermits.release();
+                    reply.complete(responseMessage);
+                }
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            var failure = e instanceof IOException ? (IOException) e : new IOException(e);
+
+            if (e instanceof RuntimeException) {
+                logger.log("'%s' cannot read the replies of %s: %s", this.name, serverName, e.toString());
+
+                try {
+                    socket.close();
+                }
+                catch (IOException ignored) {
+                }
+            }
+
+            ArrayList<CompletableFuture<Message>> failedReplies;
+
+            synchronized (serverPendingWrites) {
+                serverFailures.put(serverName, failure);
+                failedReplies = new ArrayList<>(serverPendingWrites.values());
+                serverPendingWrites.clear();
+            }
+
+            // completed outside the lock, a caller may send its next request from a callback
+            for (var reply : failedReplies) {
+                writePermits.release();
+                reply.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private synchronized Message stampMessage(Message.MessageType type, String messagePayload, long requestId) {
+        incrementLocalTime();
+        return new Message(this.name, type, localTime, messagePayload, requestId);
     }
 
     private synchronized void incrementLocalTime() {
         localTime += TIME_DIFFERENCE_BETWEEN_PROCESSES;
     }
 
-    private synchronized void setLocalTime(int messageTimeStamp) {
+    private synchronized void setLocalTime(long messageTimeStamp) {
         localTime = Math.max(localTime, messageTimeStamp + TIME_DIFFERENCE_BETWEEN_PROCESSES);
     }
 }
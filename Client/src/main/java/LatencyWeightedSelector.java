@@ -0,0 +1,98 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Compares two random servers by their exponentially weighted moving average ack latency times their outstanding writes
+ * plus one, and picks the cheaper. The latency remembers how a server has been doing, the outstanding writes react at
+ * once when it stalls, and choosing between two rather than the cheapest of all keeps the clients from all rushing to
+ * the same server. The average of a server that has not answered for a while fades towards the lowest one, otherwise a
+ * server that was slow once would never be picked again to show it is not any more.
+ */
+public class LatencyWeightedSelector implements ServerSelector {
+    private static final double WEIGHT_OF_NEW_LATENCY = 0.2;
+    private static final double FADE_NANOS = 1_000_000_000.0;
+
+    private AtomicIntegerArray outstandingWrites;
+    // Double bits, 0 until the first ack
+    private AtomicLongArray averageLatencies;
+    private AtomicLongArray lastReplyTimes;
+
+    public LatencyWeightedSelector(int numberOfServers) {
+        this.outstandingWrites = new AtomicIntegerArray(numberOfServers);
+        this.averageLatencies = new AtomicLongArray(numberOfServers);
+        this.lastReplyTimes = new AtomicLongArray(numberOfServers);
+    }
+
+    @Override
+    public int select(int[] servers) {
+        var numberOfServers = servers.length;
+
+        if (numberOfServers == 1) {
+            return servers[0];
+        }
+
+        var random = ThreadLocalRandom.current();
+        var firstIndex = random.nextInt(numberOfServers);
+        var firstServer = servers[firstIndex];
+        var secondServer = servers[(firstIndex + 1 + random.nextInt(numberOfServers - 1)) % numberOfServers];
+
+        var lowestLatency = getLowestAverageLatency();
+        var now = System.nanoTime();
+
+        return getCost(firstServer, lowestLatency, now) <= getCost(secondServer, lowestLatency, now) ? firstServer : secondServer;
+    }
+
+    @Override
+    public void sent(int server) {
+        outstandingWrites.incrementAndGet(server);
+    }
+
+    @Override
+    public void replied(int server, long latencyNanos) {
+        outstandingWrites.decrementAndGet(server);
+
+        averageLatencies.getAndUpdate(server, bits -> {
+            var averageLatency = Double.longBitsToDouble(bits);
+            var newAverageLatency = averageLatency == 0 ? latencyNanos :
+                    averageLatency + WEIGHT_OF_NEW_LATENCY * (latencyNanos - averageLatency);
+
+            return Double.doubleToLongBits(newAverageLatency);
+        });
+        lastReplyTimes.set(server, System.nanoTime());
+    }
+
+    @Override
+    public void failed(int server) {
+        outstandingWrites.decrementAndGet(server);
+    }
+
+    private double getCost(int server, double lowestLatency, long now) {
+        var averageLatency = Double.longBitsToDouble(averageLatencies.get(server));
+
+        if (averageLatency == 0) {
+            // a server that has not answered yet is taken to be as fast as the fastest, not free
+            averageLatency = lowestLatency;
+        }
+        else {
+            var weight = Math.exp(-(now - lastReplyTimes.get(server)) / FADE_NANOS);
+            averageLatency = weight * averageLatency + (1 - weight) * lowestLatency;
+        }
+
+        return averageLatency * (outstandingWrites.get(server) + 1);
+    }
+
+    private double getLowestAverageLatency() {
+        var lowestAverageLatency = 0.0;
+
+        for (var server = 0; server < averageLatencies.length(); server++) {
+            var averageLatency = Double.longBitsToDouble(averageLatencies.get(server));
+
+            if (averageLatency > 0 && (lowestAverageLatency == 0 || averageLatency < lowestAverageLatency)) {
+                lowestAverageLatency = averageLatency;
+            }
+        }
+
+        return lowestAverageLatency == 0 ? 1 : lowestAverageLatency;
+    }
+}
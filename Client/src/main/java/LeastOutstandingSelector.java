@@ -0,0 +1,47 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A server in a long critical session stops answering, so its outstanding writes pile up and it stops being picked.
+ */
+public class LeastOutstandingSelector implements ServerSelector {
+    private AtomicIntegerArray outstandingWrites;
+
+    public LeastOutstandingSelector(int numberOfServers) {
+        this.outstandingWrites = new AtomicIntegerArray(numberOfServers);
+    }
+
+    @Override
+    public int select(int[] servers) {
+        var numberOfServers = servers.length;
+
+        // starting at a random server spreads the ties
+        var offset = ThreadLocalRandom.current().nextInt(numberOfServers);
+        var selectedServer = servers[offset];
+
+        for (var i = 1; i < numberOfServers; i++) {
+            var server = servers[(offset + i) % numberOfServers];
+
+            if (outstandingWrites.get(server) < outstandingWrites.get(selectedServer)) {
+                selectedServer = server;
+            }
+        }
+
+        return selectedServer;
+    }
+
+    @Override
+    public void sent(int server) {
+        outstandingWrites.incrementAndGet(server);
+    }
+
+    @Override
+    public void replied(int server, long latencyNanos) {
+        outstandingWrites.decrementAndGet(server);
+    }
+
+    @Override
+    public void failed(int server) {
+        outstandingWrites.decrementAndGet(server);
+    }
+}
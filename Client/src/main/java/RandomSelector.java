@@ -0,0 +1,8 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+public class RandomSelector implements ServerSelector {
+    @Override
+    public int select(int[] servers) {
+        return servers[ThreadLocalRandom.current().nextInt(servers.length)];
+    }
+}
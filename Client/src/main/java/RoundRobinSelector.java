@@ -0,0 +1,14 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RoundRobinSelector implements ServerSelector {
+    private AtomicLong nextServer;
+
+    public RoundRobinSelector() {
+        this.nextServer = new AtomicLong();
+    }
+
+    @Override
+    public int select(int[] servers) {
+        return servers[(int) (nextServer.getAndIncrement() % servers.length)];
+    }
+}
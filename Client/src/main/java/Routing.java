@@ -0,0 +1,34 @@
+public enum Routing {
+    /**
+     * Any server, chosen uniformly at random
+     */
+    Random,
+
+    /**
+     * The servers in turn
+     */
+    RoundRobin,
+
+    /**
+     * The server with the fewest writes of this client still waiting for their ack
+     */
+    LeastOutstanding,
+
+    /**
+     * The cheaper of two random servers, a server costing its moving average ack latency times its outstanding writes
+     */
+    LatencyWeighted;
+
+    public ServerSelector newSelector(int numberOfServers) {
+        switch (this) {
+            case RoundRobin:
+                return new RoundRobinSelector();
+            case LeastOutstanding:
+                return new LeastOutstandingSelector(numberOfServers);
+            case LatencyWeighted:
+                return new LatencyWeightedSelector(numberOfServers);
+            default:
+                return new RandomSelector();
+        }
+    }
+}
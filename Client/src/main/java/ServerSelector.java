@@ -0,0 +1,17 @@
+/**
+ * Picks the server a client sends its next write to among the servers replicating the file, servers are numbered
+ * from 0. A selector is told about every write sent and how it ended so that it can keep its own statistics per server,
+ * from any thread.
+ */
+public interface ServerSelector {
+    int select(int[] servers);
+
+    default void sent(int server) {
+    }
+
+    default void replied(int server, long latencyNanos) {
+    }
+
+    default void failed(int server) {
+    }
+}
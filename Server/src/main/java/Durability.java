@@ -0,0 +1,16 @@
+public enum Durability {
+    /**
+     * Appends are left to the operating system to write back
+     */
+    None,
+
+    /**
+     * Every batch of appends taken by the writer is forced to disk before it is acknowledged
+     */
+    Batch,
+
+    /**
+     * Appends are forced to disk together every few milliseconds and acknowledged once they are
+     */
+    Interval
+}
@@ -0,0 +1,663 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The requests for one file, ordered by (timestamp, sender) with each sender's requests also indexed in arrival order,
+ * which is their timestamp order since a server stamps and sends under its clock lock. Lamport's confirmation comes
+ * from the highest timestamp received from each peer about the file: the peer sends over one connection, so once a
+ * later message of it is here, every earlier request of it is too.
+ * The syncs are applied in the order of their sequence numbers, which counts the critical sessions of the file, and the
+ * bytes they add up to are tracked with them, so that a restarting server can take over the file as far as another
+ * server has applied it and go on from there.
+ * With the ordered multicast the queue holds writes instead of requests, each is applied once it is first and stable by
+ * the same confirmation, and the number of writes applied so far takes the place of the sync sequence.
+ */
+public class FileCriticalSession {
+    public interface SyncApplier {
+        CompletableFuture<Void> apply(Message writeSyncRequest, long sequence, String linesToAppend);
+    }
+
+    private String fileName;
+    private String serverName;
+    private MutualExclusion mutualExclusion;
+    private TreeSet<Message> requests;
+    private Hashtable<String, ArrayDeque<Message>> requestsBySender;
+    private Hashtable<String, HashSet<String>> respondedServers;
+    private Hashtable<String, Integer> peerIndexes;
+    private long[] highestPeerTimeStamps;
+    private long syncSequence;
+    private long appliedLength;
+    private Hashtable<Long, Message> pendingSyncRequests;
+    // the own writes of the ordered multicast still queued, each with the future of the append that will take it
+    private Hashtable<Message, CompletableFuture<Void>> ownOrderedWrites;
+    // while the file is restored from a snapshot the syncs are only collected
+    private boolean restoring;
+    // timestamp of the last sync whose lines went to the file store, and the append that took them
+    private long appliedTimeStamp;
+    private CompletableFuture<Void> lastAppend;
+    private SyncApplier syncApplier;
+    private Logger logger;
+
+    // explicit lock rather than the monitor so that waiting virtual threads do not pin their carrier threads
+    private ReentrantLock lock;
+    private Condition queueChanged;
+
+    public FileCriticalSession(String fileName, String serverName, MutualExclusion mutualExclusion, SyncApplier syncApplier, Logger logger) {
+        this.fileName = fileName;
+        this.serverName = serverName;
+        this.mutualExclusion = mutualExclusion;
+        this.requests = new TreeSet<>();
+        this.requestsBySender = new Hashtable<>();
+        this.respondedServers = new Hashtable<>();
+        this.peerIndexes = new Hashtable<>();
+        this.highestPeerTimeStamps = new long[0];
+        this.syncSequence = 0;
+        this.appliedLength = 0;
+        this.pendingSyncRequests = new Hashtable<>();
+        this.ownOrderedWrites = new Hashtable<>();
+        this.restoring = false;
+        this.appliedTimeStamp = 0;
+        this.lastAppend = CompletableFuture.completedFuture(null);
+        this.syncApplier = syncApplier;
+        this.logger = logger;
+        this.lock = new ReentrantLock();
+        this.queueChanged = lock.newCondition();
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void addToQueue(Message writeAcquireRequest) {
+        lock.lock();
+
+        try {
+            logger.debug("Adding message '%s' to the queue of %s", writeAcquireRequest, fileName);
+
+            insertRequest(writeAcquireRequest);
+
+            if (writeAcquireRequest.getSenderName().equals(this.serverName)) {
+                respondedServers.putIfAbsent(writeAcquireRequest.getPayload(), new HashSet<>());
+            }
+            else {
+                recordTimeStamp(writeAcquireRequest);
+            }
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Queue size after add = %d", requests.size());
+            }
+
+            // wake up any request waiting for access since the head or the confirmations may have changed
+            queueChanged.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public void addResponseToQueue(Message writeAcquireResponse) {
+        lock.lock();
+
+        try {
+            recordTimeStamp(writeAcquireResponse);
+
+            // Ricart-Agrawala needs the answer itself, Lamport's algorithm only its timestamp. A response can arrive after
+            // its request already entered the critical session (the peer's own request with a later timestamp counts as
+            // confirmation too), then there is nobody left to count it for.
+            var responded = respondedServers.get(writeAcquireResponse.getPayload());
+
+            if (responded != null) {
+                responded.add(writeAcquireResponse.getSenderName());
+            }
+            else {
+                logger.debug("Dropping late response '%s'", writeAcquireResponse);
+            }
+
+            queueChanged.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean deferRequest(Message writeAcquireRequest) {
+        lock.lock();
+
+        try {
+            // Ricart-Agrawala: a request is answered once none of our own requests for the file goes before it,
+            // until then it waits in the queue
+            if (!hasEarlierOwnRequest(writeAcquireRequest)) {
+                return false;
+            }
+
+            logger.debug("Deferring the response to '%s'", writeAcquireRequest);
+            insertRequest(writeAcquireRequest);
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public ArrayList<Message> takeDeferredRequests() {
+        lock.lock();
+
+        try {
+            // the deferred requests that no own request goes before any more are those ahead of the first own one
+            var firstOwnRequest = getFirstOwnRequest();
+            var deferredRequests = new ArrayList<>(firstOwnRequest == null ? requests : requests.headSet(firstOwnRequest));
+
+            for (var deferredRequest : deferredRequests) {
+                deleteRequest(deferredRequest);
+            }
+
+            return deferredRequests;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueueSize() {
+        lock.lock();
+
+        try {
+            return requests.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The sequence number of the sync of the holder, counted once the sync is added with addOwnSync
+     */
+    public long nextSyncSequence() {
+        lock.lock();
+
+        try {
+            return syncSequence;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public void addSyncToQueue(Message writeSyncRequest) {
+        lock.lock();
+
+        try {
+            // syncs of consecutive critical sessions come from different servers over different connections, so the later
+            // one can arrive first, or even before the request of the earlier holder. The holder has applied every earlier
+            // session when it enters, so the sequence number it attaches is the position of its lines in the file.
+            recordTimeStamp(writeSyncRequest);
+
+            var data = writeSyncRequest.getDataFromPayload();
+            var sequence = Long.parseLong(data.substring(0, data.indexOf('|')));
+
+            // a server that rejoins sends its latest syncs again, for the servers it stopped before sending them to
+            if (sequence < syncSequence && !restoring) {
+                logger.debug("Dropping sync '%s', it is applied already", writeSyncRequest);
+                return;
+            }
+
+            pendingSyncRequests.put(sequence, writeSyncRequest);
+
+            if (!restoring) {
+                applyPendingSyncs();
+            }
+
+            queueChanged.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the holder once its sync is stamped, returns the append that takes its lines
+     */
+    public CompletableFuture<Void> addOwnSync(Message writeSyncRequest) {
+        lock.lock();
+
+        try {
+            return applySync(writeSyncRequest);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a write of the ordered multicast, see TotalOrderMulticast. An own write gets back what completes once its
+     * lines and every earlier line of the file are written, the writes of other servers get null.
+     */
+    public CompletableFuture<Void> addOrderedWrite(Message orderedWrite, int numberOfPeers) {
+        lock.lock();
+
+        try {
+            CompletableFuture<Void> written = null;
+
+            if (orderedWrite.getSenderName().equals(this.serverName)) {
+                written = new CompletableFuture<>();
+                ownOrderedWrites.put(orderedWrite, written);
+            }
+            else {
+                recordTimeStamp(orderedWrite);
+            }
+
+            insertRequest(orderedWrite);
+            applyStableWrites(numberOfPeers);
+
+            return written;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes note of a message of the ordered multicast without lines, the writes queued before it may be stable now
+     */
+    public void addOrderedWriteAck(Message orderedWriteAck, int numberOfPeers) {
+        lock.lock();
+
+        try {
+            recordTimeStamp(orderedWriteAck);
+            applyStableWrites(numberOfPeers);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the lines of a sync stamped at or after the timestamp went to the file store and returns the append
+     * that took the latest lines, which completes once they and every earlier line of the file are written. The
+     * critical sessions of a file are entered one after the other, each sync stamped after the previous one, so such a
+     * sync can only be applied after all earlier ones. Returns null if none is applied in time.
+     */
+    public CompletableFuture<Void> waitForAppliedTimeStamp(long timeStamp, long timeoutMillis) throws InterruptedException {
+        lock.lock();
+
+        try {
+            var remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+            while (appliedTimeStamp < timeStamp) {
+                if (remainingNanos <= 0) {
+                    return null;
+                }
+
+                remainingNanos = queueChanged.awaitNanos(remainingNanos);
+            }
+
+            return lastAppend;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until at least the given number of syncs is applied, the count a token brings along
+     */
+    public void waitForSyncSequence(long sequence) throws InterruptedException {
+        lock.lock();
+
+        try {
+            while (syncSequence < sequence) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Waiting for sync %d of %s...", syncSequence, fileName);
+                }
+                queueChanged.await();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Collects the syncs from now on without applying them, until the file is restored
+     */
+    public void holdSyncs() {
+        lock.lock();
+
+        try {
+            restoring = true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until at least the given number of syncs is applied and returns how far the file is applied then.
+     * Returns null if the file is being restored itself or the syncs are not applied in time.
+     */
+    public FileSnapshot takeSnapshot(long minSequence, long timeoutMillis) throws InterruptedException {
+        lock.lock();
+
+        try {
+            if (restoring) {
+                return null;
+            }
+
+            var remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+            while (syncSequence < minSequence) {
+                if (remainingNanos <= 0) {
+                    return null;
+                }
+
+                remainingNanos = queueChanged.awaitNanos(remainingNanos);
+            }
+
+            return new FileSnapshot(syncSequence, appliedLength, appliedTimeStamp, lastAppend);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Goes on from how far the write-ahead log had the file applied when the server stopped, before it is restored
+     */
+    public void recover(FileSnapshot snapshot) {
+        lock.lock();
+
+        try {
+            syncSequence = snapshot.getSequence();
+            appliedLength = snapshot.getLength();
+            appliedTimeStamp = snapshot.getAppliedTimeStamp();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Goes on from a snapshot whose bytes are in the file: the syncs it covers are dropped, the ones after it applied.
+     * Returns the first sequence number still missing if a later sync is already here, the file stays restoring then
+     * and needs another snapshot that reaches at least that far. Returns -1 once the file is restored.
+     */
+    public long restoreSnapshot(FileSnapshot snapshot) {
+        lock.lock();
+
+        try {
+            syncSequence = snapshot.getSequence();
+            appliedLength = snapshot.getLength();
+            appliedTimeStamp = Math.max(appliedTimeStamp, snapshot.getAppliedTimeStamp());
+            lastAppend = snapshot.getWritten();
+            pendingSyncRequests.keySet().removeIf(sequence -> sequence < snapshot.getSequence());
+
+            applyPendingSyncs();
+            restoring = !pendingSyncRequests.isEmpty();
+
+            queueChanged.signalAll();
+            return restoring ? Collections.min(pendingSyncRequests.keySet()) : -1;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the requests of a server that restarted, it lost them with its queue and will never release them
+     */
+    public void removeRequestsOf(String senderName) {
+        lock.lock();
+
+        try {
+            var senderRequests = requestsBySender.remove(senderName);
+
+            if (senderRequests != null) {
+                requests.removeAll(senderRequests);
+            }
+
+            queueChanged.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public ArrayList<Message> getOwnRequests() {
+        lock.lock();
+
+        try {
+            var ownRequests = requestsBySender.get(this.serverName);
+            return ownRequests == null ? new ArrayList<>() : new ArrayList<>(ownRequests);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public void removeReleasedRequest(Message writeReleaseRequest) {
+        lock.lock();
+
+        try {
+            recordTimeStamp(writeReleaseRequest);
+
+            // the release carries the payload of its request, other pending requests of the same sender stay in the
+            // queue. A sender is granted its requests for the file in timestamp order, so this is normally the first one.
+            var senderRequests = requestsBySender.get(writeReleaseRequest.getSenderName());
+
+            if (senderRequests != null) {
+                for (var request : senderRequests) {
+                    if (request.getTimeStamp() < writeReleaseRequest.getTimeStamp() &&
+                            request.getPayload().equals(writeReleaseRequest.getPayload())) {
+                        logger.debug("Removing '%s' from the queue", request);
+                        deleteRequest(request);
+                        break;
+                    }
+                }
+            }
+
+            queueChanged.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public void removeOwnRequest(Message writeAcquireRequest) {
+        lock.lock();
+
+        try {
+            logger.debug("Removing '%s' from the queue", writeAcquireRequest);
+
+            deleteRequest(writeAcquireRequest);
+            respondedServers.remove(writeAcquireRequest.getPayload());
+
+            queueChanged.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the System.nanoTime at which the request was first seen at the head of the queue.
+     */
+    public long waitForAccess(Message writeAcquireRequest, int numberOfPeers) throws InterruptedException {
+        lock.lock();
+
+        try {
+            var headTime = 0L;
+
+            // addToQueue and removeFromQueue signal on every change, so there is no need to poll
+            while (true) {
+                if (isMessageFirstInQueue(writeAcquireRequest)) {
+                    if (headTime == 0) {
+                        headTime = System.nanoTime();
+                    }
+
+                    if (isAllConfirmToAllowEnterCriticalSession(writeAcquireRequest, numberOfPeers)) {
+                        return headTime;
+                    }
+                }
+
+                logger.debug("Waiting for critical session access to %s...", fileName);
+                queueChanged.await();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isMessageFirstInQueue(Message message) {
+        if (requests.isEmpty()) {
+            return true;
+        }
+
+        var top = requests.first();
+
+        logger.debug("Top of queue = %s", top);
+        logger.debug("Current message = %s", message);
+
+        return top.getSenderName().equals(message.getSenderName()) &&
+                top.getTimeStamp() == message.getTimeStamp();
+    }
+
+    private Message getFirstOwnRequest() {
+        var ownRequests = requestsBySender.get(this.serverName);
+        return ownRequests == null ? null : ownRequests.peekFirst();
+    }
+
+    private boolean hasEarlierOwnRequest(Message writeAcquireRequest) {
+        var firstOwnRequest = getFirstOwnRequest();
+        return firstOwnRequest != null && firstOwnRequest.compareTo(writeAcquireRequest) < 0;
+    }
+
+    private boolean isAllConfirmToAllowEnterCriticalSession(Message writeAcquireRequest, int numberOfPeers) {
+        if (mutualExclusion == MutualExclusion.RicartAgrawala) {
+            // deferred requests of other servers sit in the queue too, only the responses to this request count
+            var responded = respondedServers.get(writeAcquireRequest.getPayload());
+            var numberOfResponses = responded == null ? 0 : responded.size();
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Responses to request = %d", numberOfResponses);
+            }
+
+            return numberOfResponses >= numberOfPeers;
+        }
+
+        var numberOfLaterPeers = 0;
+
+        for (var highestPeerTimeStamp : highestPeerTimeStamps) {
+            if (highestPeerTimeStamp > writeAcquireRequest.getTimeStamp()) {
+                numberOfLaterPeers++;
+            }
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Peers heard from after request = %d", numberOfLaterPeers);
+        }
+
+        return numberOfLaterPeers >= numberOfPeers;
+    }
+
+    private void applyPendingSyncs() {
+        Message pendingSyncRequest;
+
+        while ((pendingSyncRequest = pendingSyncRequests.remove(syncSequence)) != null) {
+            applySync(pendingSyncRequest);
+        }
+    }
+
+    private void applyStableWrites(int numberOfPeers) {
+        // the first write is the same on every server once it is stable, so they all append the writes in one order
+        while (!requests.isEmpty() && isStable(requests.first(), numberOfPeers)) {
+            var orderedWrite = requests.first();
+            deleteRequest(orderedWrite);
+
+            var written = applySync(orderedWrite, orderedWrite.getDataFromPayload());
+            var ownWritten = ownOrderedWrites.remove(orderedWrite);
+
+            if (ownWritten != null) {
+                written.whenComplete((ignored, e) -> {
+                    if (e == null) {
+                        ownWritten.complete(null);
+                    }
+                    else {
+                        ownWritten.completeExceptionally(e);
+                    }
+                });
+            }
+        }
+    }
+
+    private boolean isStable(Message orderedWrite, int numberOfPeers) {
+        // a peer sends in timestamp order over one connection, after a later message of it no earlier write can come
+        var numberOfLaterPeers = 0;
+
+        for (var peerIndex : peerIndexes.entrySet()) {
+            if (peerIndex.getKey().equals(orderedWrite.getSenderName()) ||
+                    highestPeerTimeStamps[peerIndex.getValue()] > orderedWrite.getTimeStamp()) {
+                numberOfLaterPeers++;
+            }
+        }
+
+        return numberOfLaterPeers >= numberOfPeers;
+    }
+
+    private CompletableFuture<Void> applySync(Message writeSyncRequest) {
+        return applySync(writeSyncRequest, getSyncLines(writeSyncRequest));
+    }
+
+    private CompletableFuture<Void> applySync(Message writeSyncRequest, String lines) {
+        var written = syncApplier.apply(writeSyncRequest, syncSequence, lines);
+
+        syncSequence++;
+        appliedLength += FileStore.getEncodedLength(lines);
+        appliedTimeStamp = Math.max(appliedTimeStamp, writeSyncRequest.getTimeStamp());
+        lastAppend = written;
+        queueChanged.signalAll();
+
+        return written;
+    }
+
+    private static String getSyncLines(Message writeSyncRequest) {
+        var data = writeSyncRequest.getDataFromPayload();
+        return data.substring(data.indexOf('|') + 1);
+    }
+
+    private void insertRequest(Message writeAcquireRequest) {
+        requests.add(writeAcquireRequest);
+        requestsBySender.computeIfAbsent(writeAcquireRequest.getSenderName(), senderName -> new ArrayDeque<>()).addLast(writeAcquireRequest);
+    }
+
+    private void deleteRequest(Message writeAcquireRequest) {
+        requests.remove(writeAcquireRequest);
+
+        var senderRequests = requestsBySender.get(writeAcquireRequest.getSenderName());
+
+        if (senderRequests != null) {
+            senderRequests.remove(writeAcquireRequest);
+        }
+    }
+
+    private void recordTimeStamp(Message message) {
+        var peerIndex = peerIndexes.get(message.getSenderName());
+
+        if (peerIndex == null) {
+            peerIndex = highestPeerTimeStamps.length;
+            peerIndexes.put(message.getSenderName(), peerIndex);
+            highestPeerTimeStamps = Arrays.copyOf(highestPeerTimeStamps, peerIndex + 1);
+        }
+
+        highestPeerTimeStamps[peerIndex] = Math.max(highestPeerTimeStamps[peerIndex], message.getTimeStamp());
+    }
+}
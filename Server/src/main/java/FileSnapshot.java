@@ -0,0 +1,35 @@
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * How far a server has applied a file: the number of syncs, the bytes they take up at the start of the file and the
+ * timestamp of the latest one. The bytes are on disk once the append that took the latest sync is written.
+ */
+public class FileSnapshot {
+    private long sequence;
+    private long length;
+    private long appliedTimeStamp;
+    private CompletableFuture<Void> written;
+
+    public FileSnapshot(long sequence, long length, long appliedTimeStamp, CompletableFuture<Void> written) {
+        this.sequence = sequence;
+        this.length = length;
+        this.appliedTimeStamp = appliedTimeStamp;
+        this.written = written;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getAppliedTimeStamp() {
+        return appliedTimeStamp;
+    }
+
+    public CompletableFuture<Void> getWritten() {
+        return written;
+    }
+}
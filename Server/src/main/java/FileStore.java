@@ -0,0 +1,454 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Appends lines to the files of a server directory. Callers only queue their lines, a single writer thread drains the
+ * queue in order, so appends to a file land in the order they were queued. Each file keeps one open channel and the
+ * writer encodes the lines straight into one reused direct buffer, writing the appends it took to a file together.
+ * The returned future completes once the lines are as durable as the durability policy asks for.
+ * Reads map the files read-only and copy the requested bytes out of the mapping, remapping a file once it has grown
+ * past the mapped part. Ranges of a file sent to a restarting server go from the file to the socket with transferTo,
+ * so that the kernel copies them without passing them through the heap.
+ * Each append carries the sync that committed its lines, the writer writes the records of the syncs to the write-ahead
+ * log before it writes their lines, forces the log before the files, and checkpoints the log between batches.
+ */
+public class FileStore {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private String directoryPath;
+    private Durability durability;
+    private long forceIntervalNanos;
+    private Hashtable<String, FileChannel> channels;
+    private Hashtable<String, MappedFile> mappedFiles;
+    private WriteAheadLog writeAheadLog;
+    private LinkedBlockingQueue<Append> pendingAppends;
+    private ArrayList<Append> unforcedAppends;
+    private HashSet<FileChannel> unforcedChannels;
+    private ByteBuffer buffer;
+    private CharsetEncoder encoder;
+    private LatencyMetric appendLatency;
+    private Logger logger;
+
+    public FileStore(String directoryPath, Durability durability, long forceIntervalMillis, WriteAheadLog writeAheadLog, LatencyMetric appendLatency, Logger logger) {
+        this.directoryPath = directoryPath;
+        this.durability = durability;
+        this.forceIntervalNanos = TimeUnit.MILLISECONDS.toNanos(forceIntervalMillis);
+        this.writeAheadLog = writeAheadLog;
+        this.channels = new Hashtable<>();
+        this.mappedFiles = new Hashtable<>();
+        this.pendingAppends = new LinkedBlockingQueue<>();
+        this.unforcedAppends = new ArrayList<>();
+        this.unforcedChannels = new HashSet<>();
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.encoder = StandardCharsets.UTF_8.newEncoder();
+        this.appendLatency = appendLatency;
+        this.logger = logger;
+    }
+
+    public void start(String name) {
+        var writerThread = new Thread(this::writeAppends, name + "-file-store");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queues the lines of a sync. When they are logged first, returns only once the record of the sync is in the
+     * write-ahead log, for a sync that is sent to the other servers afterwards.
+     */
+    public CompletableFuture<Void> append(String fileName, String lines, long sequence, long timeStamp, String senderName, boolean isLoggedFirst) {
+        var append = new Append(fileName, lines, sequence, timeStamp, senderName);
+        pendingAppends.add(append);
+
+        if (isLoggedFirst) {
+            append.logged.join();
+        }
+
+        return append.written;
+    }
+
+    /**
+     * Returns up to length bytes of the file from the byte offset on, as far as the file goes
+     */
+    public String read(String fileName, long offset, int length) throws IOException {
+        var mappedFile = mappedFiles.get(fileName);
+
+        if (mappedFile == null) {
+            var channel = FileChannel.open(Paths.get(directoryPath, fileName).toAbsolutePath(), StandardOpenOption.READ);
+            mappedFile = new MappedFile(channel);
+
+            var otherMappedFile = mappedFiles.putIfAbsent(fileName, mappedFile);
+            if (otherMappedFile != null) {
+                channel.close();
+                mappedFile = otherMappedFile;
+            }
+        }
+
+        var mapping = mappedFile.getMapping(offset + length);
+
+        if (offset >= mapping.capacity()) {
+            return "";
+        }
+
+        // a slice has its own position, so concurrent reads of the same mapping do not interfere
+        var end = Math.min(mapping.capacity(), offset + length);
+        return StandardCharsets.UTF_8.decode(mapping.slice((int) offset, (int) (end - offset))).toString();
+    }
+
+    public long getSize(String fileName) throws IOException {
+        return Files.size(Paths.get(directoryPath, fileName).toAbsolutePath());
+    }
+
+    /**
+     * The number of bytes the lines take up in a file once appended
+     */
+    public static long getEncodedLength(String lines) {
+        var length = (long) LINE_SEPARATOR.length();
+
+        for (var i = 0; i < lines.length(); i++) {
+            var character = lines.charAt(i);
+
+            if (character < 0x80) {
+                length += 1;
+            }
+            else if (character < 0x800) {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(character) && i + 1 < lines.length() && Character.isLowSurrogate(lines.charAt(i + 1))) {
+                length += 4;
+                i++;
+            }
+            else {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+
+    public long getChecksum(String fileName, long start, long end) throws IOException {
+        var checksum = new CRC32();
+
+        try (var channel = FileChannel.open(Paths.get(directoryPath, fileName).toAbsolutePath(), StandardOpenOption.READ)) {
+            var chunk = ByteBuffer.allocate(BUFFER_SIZE);
+            var position = start;
+
+            while (position < end) {
+                chunk.clear().limit((int) Math.min(chunk.capacity(), end - position));
+
+                var read = channel.read(chunk, position);
+                if (read < 0) {
+                    break;
+                }
+
+                checksum.update(chunk.flip());
+                position += read;
+            }
+        }
+
+        return checksum.getValue();
+    }
+
+    public void sendRange(String fileName, long start, long end, WritableByteChannel target) throws IOException {
+        try (var channel = FileChannel.open(Paths.get(directoryPath, fileName).toAbsolutePath(), StandardOpenOption.READ)) {
+            var position = start;
+
+            while (position < end) {
+                var transferred = channel.transferTo(position, end - position, target);
+
+                if (transferred == 0 && position >= channel.size()) {
+                    throw new EOFException(String.format("%s ends at %d before %d", fileName, position, end));
+                }
+
+                position += transferred;
+            }
+        }
+    }
+
+    /**
+     * Cuts the file at the start and appends the given number of bytes from the source, nothing may append to the
+     * file meanwhile
+     */
+    public void receiveRange(String fileName, long start, long count, ReadableByteChannel source) throws IOException {
+        var mappedFile = mappedFiles.remove(fileName);
+
+        if (mappedFile != null) {
+            mappedFile.channel.close();
+        }
+
+        try (var channel = FileChannel.open(Paths.get(directoryPath, fileName).toAbsolutePath(), StandardOpenOption.WRITE)) {
+            channel.truncate(start);
+
+            var position = start;
+
+            while (position < start + count) {
+                var transferred = channel.transferFrom(source, position, start + count - position);
+
+                // a blocking source only comes back empty at its end
+                if (transferred == 0) {
+                    throw new EOFException(String.format("%s received up to %d of %d", fileName, position, start + count));
+                }
+
+                position += transferred;
+            }
+
+            if (durability != Durability.None) {
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Logs that the file now holds what the snapshot says, once its bytes are received
+     */
+    public void logSnapshot(String fileName, FileSnapshot snapshot, String senderName) throws IOException {
+        writeAheadLog.addSnapshot(fileName, snapshot, senderName);
+    }
+
+    private void writeAppends() {
+        var appends = new ArrayList<Append>();
+        var nextForceTime = System.nanoTime() + forceIntervalNanos;
+
+        while (true) {
+            try {
+                if (durability == Durability.Interval && !unforcedAppends.isEmpty()) {
+                    var append = pendingAppends.poll(nextForceTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+                    if (append != null) {
+                        appends.add(append);
+                    }
+                }
+                else {
+                    appends.add(pendingAppends.take());
+                    nextForceTime = System.nanoTime() + forceIntervalNanos;
+                }
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+
+            // everything queued meanwhile goes out with the same writes and the same force
+            pendingAppends.drainTo(appends);
+            write(appends);
+            appends.clear();
+
+            if (durability == Durability.Interval && !unforcedAppends.isEmpty() && System.nanoTime() >= nextForceTime) {
+                force(unforcedAppends);
+                unforcedAppends.clear();
+                nextForceTime = System.nanoTime() + forceIntervalNanos;
+            }
+
+            if (writeAheadLog.isCheckpointDue()) {
+                checkpoint();
+            }
+        }
+    }
+
+    private void write(ArrayList<Append> appends) {
+        var writtenAppends = new ArrayList<Append>();
+        var fileAppends = new ArrayList<Append>();
+
+        try {
+            for (var append : appends) {
+                writeAheadLog.add(append.fileName, append.sequence, append.timeStamp, append.senderName, append.lines);
+            }
+
+            writeAheadLog.flush();
+            appends.forEach(append -> append.logged.complete(null));
+        }
+        catch (IOException e) {
+            // lines that are not logged are not written either
+            appends.forEach(append -> append.written.completeExceptionally(e));
+            appends.forEach(append -> append.logged.complete(null));
+            e.printStackTrace();
+            return;
+        }
+
+        for (var i = 0; i < appends.size(); i++) {
+            var append = appends.get(i);
+            fileAppends.add(append);
+
+            // consecutive appends to the same file share the buffer and its writes
+            if (i + 1 < appends.size() && appends.get(i + 1).fileName.equals(append.fileName)) {
+                continue;
+            }
+
+            try {
+                var channel = getChannel(append.fileName);
+
+                for (var fileAppend : fileAppends) {
+                    encode(channel, fileAppend.lines);
+                    encode(channel, LINE_SEPARATOR);
+                }
+
+                flush(channel);
+                unforcedChannels.add(channel);
+                writtenAppends.addAll(fileAppends);
+            }
+            catch (IOException e) {
+                buffer.clear();
+                encoder.reset();
+                fileAppends.forEach(fileAppend -> fileAppend.written.completeExceptionally(e));
+                e.printStackTrace();
+            }
+
+            fileAppends.clear();
+        }
+
+        if (durability == Durability.Batch) {
+            force(writtenAppends);
+        }
+        else if (durability == Durability.Interval) {
+            unforcedAppends.addAll(writtenAppends);
+        }
+        else {
+            unforcedChannels.clear();
+            writtenAppends.forEach(this::complete);
+        }
+    }
+
+    private void force(ArrayList<Append> appends) {
+        try {
+            writeAheadLog.force();
+
+            for (var channel : unforcedChannels) {
+                channel.force(false);
+            }
+
+            appends.forEach(this::complete);
+        }
+        catch (IOException e) {
+            appends.forEach(append -> append.written.completeExceptionally(e));
+            e.printStackTrace();
+        }
+
+        unforcedChannels.clear();
+    }
+
+    private void checkpoint() {
+        try {
+            // the checkpoint stands for the lines of every record before it, they have to be as durable as the log
+            if (durability != Durability.None) {
+                for (var channel : channels.values()) {
+                    channel.force(false);
+                }
+            }
+
+            writeAheadLog.checkpoint();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void complete(Append append) {
+        appendLatency.record(System.nanoTime() - append.queuedTime);
+        append.written.complete(null);
+    }
+
+    private void encode(FileChannel channel, String text) throws IOException {
+        var chars = CharBuffer.wrap(text);
+
+        while (true) {
+            var result = encoder.encode(chars, buffer, true);
+
+            if (result == CoderResult.OVERFLOW) {
+                flush(channel);
+            }
+            else {
+                if (result.isError()) {
+                    result.throwException();
+                }
+
+                break;
+            }
+        }
+
+        encoder.reset();
+    }
+
+    private void flush(FileChannel channel) throws IOException {
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+
+    private FileChannel getChannel(String fileName) throws IOException {
+        var channel = channels.get(fileName);
+
+        if (channel == null) {
+            logger.debug("Opening %s for appending", fileName);
+
+            channel = FileChannel.open(Paths.get(directoryPath, fileName).toAbsolutePath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            channels.put(fileName, channel);
+        }
+
+        return channel;
+    }
+
+    private static class MappedFile {
+        private FileChannel channel;
+        private volatile MappedByteBuffer mapping;
+
+        private MappedFile(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private MappedByteBuffer getMapping(long end) throws IOException {
+            var currentMapping = mapping;
+
+            // mapped again only when a read goes past the mapped part and the file has grown since
+            if (currentMapping == null || (end > currentMapping.capacity() && channel.size() > currentMapping.capacity())) {
+                currentMapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+                mapping = currentMapping;
+            }
+
+            return currentMapping;
+        }
+    }
+
+    private static class Append {
+        private String fileName;
+        private String lines;
+        private long sequence;
+        private long timeStamp;
+        private String senderName;
+        private CompletableFuture<Void> logged;
+        private CompletableFuture<Void> written;
+        private long queuedTime;
+
+        private Append(String fileName, String lines, long sequence, long timeStamp, String senderName) {
+            this.fileName = fileName;
+            this.lines = lines;
+            this.sequence = sequence;
+            this.timeStamp = timeStamp;
+            this.senderName = senderName;
+            this.logged = new CompletableFuture<>();
+            this.written = new CompletableFuture<>();
+            this.queuedTime = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Durations of one phase of a write. Recording only updates counters, so that it allocates nothing on the paths it measures.
+ * Percentiles come from power-of-two buckets and are therefore reported as the upper bound of their bucket.
+ */
+public class LatencyMetric {
+    private static final int NUMBER_OF_BUCKETS = 64;
+
+    private LongAdder count;
+    private LongAdder totalNanos;
+    private AtomicLong maxNanos;
+    // bucket i counts durations below 2^i nanoseconds that do not fit a lower bucket
+    private AtomicLongArray buckets;
+
+    public LatencyMetric() {
+        this.count = new LongAdder();
+        this.totalNanos = new LongAdder();
+        this.maxNanos = new AtomicLong();
+        this.buckets = new AtomicLongArray(NUMBER_OF_BUCKETS);
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+        buckets.incrementAndGet(Math.min(NUMBER_OF_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos)));
+    }
+
+    public LatencySnapshot snapshot() {
+        var snapshotCount = count.sum();
+        var meanNanos = snapshotCount == 0 ? 0 : totalNanos.sum() / (double) snapshotCount;
+
+        return new LatencySnapshot(snapshotCount, meanNanos / 1_000_000, getPercentileNanos(50) / 1_000_000.0,
+                getPercentileNanos(99) / 1_000_000.0, getPercentileNanos(99.9) / 1_000_000.0, maxNanos.get() / 1_000_000.0);
+    }
+
+    private long getPercentileNanos(double percentile) {
+        var bucketCounts = new long[NUMBER_OF_BUCKETS];
+        var total = 0L;
+
+        for (var i = 0; i < NUMBER_OF_BUCKETS; i++) {
+            bucketCounts[i] = buckets.get(i);
+            total += bucketCounts[i];
+        }
+
+        var rank = (long) Math.ceil(total * percentile / 100);
+        var seen = 0L;
+
+        for (var i = 0; i < NUMBER_OF_BUCKETS; i++) {
+            seen += bucketCounts[i];
+
+            if (seen >= rank && seen > 0) {
+                return Math.min(1L << i, maxNanos.get());
+            }
+        }
+
+        return 0;
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * Durations of a phase in milliseconds, as exposed through JMX and the metrics endpoint.
+ */
+public record LatencySnapshot(long count, double meanMillis, double p50Millis, double p99Millis, double p999Millis, double maxMillis) {
+}
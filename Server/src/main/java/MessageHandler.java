@@ -0,0 +1,3 @@
+public interface MessageHandler {
+    void handle(MessageChannel channel, Message message) throws Exception;
+}
@@ -0,0 +1,55 @@
+public enum MutualExclusion {
+    /**
+     * Every request is answered right away and freed by a release broadcast, 3(N-1) messages per critical session
+     */
+    Lamport,
+
+    /**
+     * The answer to a request is held back until the own earlier critical session is over, 2(N-1) messages per critical session
+     */
+    RicartAgrawala,
+
+    /**
+     * A token per file goes from server to server, N messages per critical session and none while the holder writes again
+     */
+    SuzukiKasami,
+
+    /**
+     * Votes of a quorum of about 2 sqrt(N) servers, 3(2 sqrt(N) - 1) messages per critical session without contention
+     */
+    Maekawa,
+
+    /**
+     * No critical session: writes are multicast with their timestamps and every server applies them in timestamp order
+     * once no earlier one can come, N-1 messages per write plus the acknowledgements of idle servers
+     */
+    TotalOrder;
+
+    /**
+     * Whether the writes are ordered by an OrderedMulticast instead of a MutualExclusionEngine
+     */
+    public boolean isMulticast() {
+        return this == TotalOrder;
+    }
+
+    public MutualExclusionEngine newEngine(ReplicaNode node, boolean isRejoining, Logger logger) {
+        switch (this) {
+            case SuzukiKasami:
+                return new TokenEngine(node, isRejoining, logger);
+            case Maekawa:
+                return new QuorumEngine(node, logger);
+            case TotalOrder:
+                throw new IllegalArgumentException("TotalOrder has no critical session, see newMulticast");
+            default:
+                return new RequestQueueEngine(node, this, logger);
+        }
+    }
+
+    public OrderedMulticast newMulticast(ReplicaNode node, Logger logger) {
+        if (this != TotalOrder) {
+            throw new IllegalArgumentException(String.format("%s grants a critical session, see newEngine", this));
+        }
+
+        return new TotalOrderMulticast(node, logger);
+    }
+}
@@ -0,0 +1,40 @@
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Grants the critical session of a file to one server at a time. The server calls every method but waitForAccess
+ * and getOwnRequests under its clock lock, which the messages an engine stamps are sent under too, so they leave in
+ * timestamp order.
+ */
+public interface MutualExclusionEngine {
+    /**
+     * Asks for the critical session of the file named in the payload and returns the request to wait for. A request
+     * that could not be sent to every server is withdrawn before the failure is thrown.
+     */
+    Message request(String payload) throws IOException;
+
+    /**
+     * Returns the System.nanoTime at which the request was first next in line, the server enters once this returns
+     */
+    long waitForAccess(Message request) throws InterruptedException;
+
+    /**
+     * Leaves the critical session once the sync of the holder is added and sent
+     */
+    void release(Message request);
+
+    /**
+     * Handles a message of the algorithm from another server, returns false for the messages it does not use
+     */
+    boolean handle(Message message);
+
+    /**
+     * Forgets what a server that stopped and rejoins had asked for, it lost that itself
+     */
+    void forgetServer(String serverName);
+
+    /**
+     * The own requests still waiting that a server rejoining has to know about, they are sent to it again
+     */
+    ArrayList<Message> getOwnRequests(String serverName);
+}
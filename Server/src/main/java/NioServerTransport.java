@@ -0,0 +1,353 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Non-blocking listener of a server. One thread accepts connections and hands them round-robin to a fixed set of
+ * I/O threads, each owning a selector. The I/O threads read the handshake, decode frames and pass complete messages on,
+ * they never run a handler themselves since handlers take the clock lock and can block on a full peer queue. The
+ * messages of another server go to a worker that handles them one at a time in the order they came, reading from the
+ * server pauses while too many of them are waiting. Client requests are handed to the client executor one by one since
+ * they block until the critical session is available.
+ */
+public class NioServerTransport {
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_QUEUED_SERVER_MESSAGES = 4096;
+    // bytes a connection may have waiting to be written, at least a few frames of the maximum length
+    private static final long MIN_MAX_PENDING_WRITE_BYTES = 64 * 1024 * 1024;
+
+    private ServerInfo info;
+    private IoThread[] ioThreads;
+    private Predicate<MessageChannel> serverChannelFilter;
+    private MessageHandler serverMessageHandler;
+    private MessageHandler clientMessageHandler;
+    private Executor serverMessageExecutor;
+    private Executor clientRequestExecutor;
+    private int maxFrameLength;
+    private long maxPendingWriteBytes;
+    private Logger logger;
+
+    public NioServerTransport(ServerInfo info, int numberOfIoThreads, Predicate<MessageChannel> serverChannelFilter,
+                              MessageHandler serverMessageHandler, MessageHandler clientMessageHandler,
+                              Executor serverMessageExecutor, Executor clientRequestExecutor, int maxFrameLength, Logger logger) {
+        this.info = info;
+        this.ioThreads = new IoThread[numberOfIoThreads];
+        this.serverChannelFilter = serverChannelFilter;
+        this.serverMessageHandler = serverMessageHandler;
+        this.clientMessageHandler = clientMessageHandler;
+        this.serverMessageExecutor = serverMessageExecutor;
+        this.clientRequestExecutor = clientRequestExecutor;
+        this.maxFrameLength = maxFrameLength;
+        this.maxPendingWriteBytes = Math.max(MIN_MAX_PENDING_WRITE_BYTES, 4L * maxFrameLength);
+        this.logger = logger;
+    }
+
+    public void start() throws IOException {
+        var serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress(this.info.getIpAddress(), this.info.getPort()), 100);
+
+        for (var i = 0; i < ioThreads.length; i++) {
+            ioThreads[i] = new IoThread(Selector.open());
+
+            var thread = new Thread(ioThreads[i], String.format("%s-io-%d", this.info.getName(), i));
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        var acceptThread = new Thread(() -> {
+            var next = 0;
+
+            while (serverSocketChannel.isOpen()) {
+                try {
+                    var socketChannel = serverSocketChannel.accept();
+                    socketChannel.configureBlocking(false);
+                    socketChannel.socket().setTcpNoDelay(true);
+
+                    ioThreads[next].register(socketChannel);
+                    next = (next + 1) % ioThreads.length;
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, String.format("%s-accept", this.info.getName()));
+        acceptThread.start();
+    }
+
+    private class IoThread implements Runnable {
+        private Selector selector;
+        private ConcurrentLinkedQueue<SocketChannel> pendingChannels;
+
+        private IoThread(Selector selector) {
+            this.selector = selector;
+            this.pendingChannels = new ConcurrentLinkedQueue<>();
+        }
+
+        private void register(SocketChannel socketChannel) {
+            pendingChannels.add(socketChannel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select();
+
+                    SocketChannel socketChannel;
+                    while ((socketChannel = pendingChannels.poll()) != null) {
+                        var channel = new NioChannel(socketChannel, selector);
+                        channel.key = socketChannel.register(selector, SelectionKey.OP_READ, channel);
+                    }
+
+                    var selectedKeys = selector.selectedKeys().iterator();
+
+                    while (selectedKeys.hasNext()) {
+                        var key = selectedKeys.next();
+                        selectedKeys.remove();
+
+                        var channel = (NioChannel) key.attachment();
+
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                channel.flush();
+                            }
+
+                            if (key.isValid() && key.isReadable()) {
+                                channel.read();
+                            }
+                        }
+                        catch (IOException e) {
+                            logger.debug("%s closes %s: %s", info.getName(), channel.toString(), e.getMessage());
+                            channel.close();
+                        }
+                        catch (RuntimeException e) {
+                            // such as a malformed handshake, the other connections of the thread go on
+                            logger.log("%s closes %s: %s", info.getName(), channel.toString(), e.toString());
+                            channel.close();
+                        }
+                    }
+                }
+                catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private class NioChannel implements MessageChannel {
+        private SocketChannel socketChannel;
+        private Selector selector;
+        private SelectionKey key;
+        private ByteBuffer readBuffer;
+        private ArrayDeque<ByteBuffer> pendingWrites;
+        private long pendingWriteBytes;
+        private String handshake;
+        private MessageCodec codec;
+        // messages of another server waiting for the worker, and whether a worker is handling them
+        private ConcurrentLinkedQueue<Message> receivedMessages;
+        private AtomicInteger numberOfReceivedMessages;
+        private AtomicBoolean isHandling;
+        private volatile boolean isReadPaused;
+
+        private NioChannel(SocketChannel socketChannel, Selector selector) {
+            this.socketChannel = socketChannel;
+            this.selector = selector;
+            this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            this.pendingWrites = new ArrayDeque<>();
+            this.pendingWriteBytes = 0;
+            this.receivedMessages = new ConcurrentLinkedQueue<>();
+            this.numberOfReceivedMessages = new AtomicInteger();
+            this.isHandling = new AtomicBoolean();
+            this.isReadPaused = false;
+        }
+
+        @Override
+        public String getHandshake() {
+            return handshake;
+        }
+
+        private void read() throws IOException {
+            if (socketChannel.read(readBuffer) < 0) {
+                throw new ClosedChannelException();
+            }
+
+            readBuffer.flip();
+
+            while (true) {
+                if (codec == null) {
+                    var handshakeString = MessageCodec.readUTF(readBuffer);
+
+                    if (handshakeString == null) {
+                        break;
+                    }
+
+                    handshake = Connection.getHandshakeName(handshakeString);
+                    codec = new MessageCodec(Connection.getHandshakeWireFormat(handshakeString), Connection.getHandshakeCompression(handshakeString));
+                    codec.setMaxFrameLength(maxFrameLength);
+
+                    logger.debug("%s receives new request from %s", info.getName(), this);
+
+                    if (isServerChannel() && !serverChannelFilter.test(this)) {
+                        throw new IOException("handshake rejected");
+                    }
+
+                    continue;
+                }
+
+                var message = codec.decodeFrame(readBuffer);
+
+                if (message == null) {
+                    break;
+                }
+
+                dispatch(message);
+            }
+
+            readBuffer.compact();
+
+            // a frame larger than the buffer can only be completed in a bigger one, the codec refuses any frame that
+            // would not fit the largest
+            if (!readBuffer.hasRemaining()) {
+                var maxBufferSize = Integer.BYTES + (long) maxFrameLength;
+
+                if (readBuffer.capacity() >= maxBufferSize) {
+                    throw new IOException(String.format("A frame exceeds the maximum of %d bytes", maxFrameLength));
+                }
+
+                var biggerBuffer = ByteBuffer.allocate((int) Math.min(2L * readBuffer.capacity(), maxBufferSize));
+                readBuffer.flip();
+                biggerBuffer.put(readBuffer);
+                readBuffer = biggerBuffer;
+            }
+        }
+
+        private boolean isServerChannel() {
+            return handshake.toLowerCase().startsWith("server");
+        }
+
+        private void dispatch(Message message) {
+            if (isServerChannel()) {
+                receivedMessages.add(message);
+
+                // the server waits with its next messages until the worker catches up, as it would for a blocking reader
+                if (numberOfReceivedMessages.incrementAndGet() >= MAX_QUEUED_SERVER_MESSAGES && !isReadPaused) {
+                    isReadPaused = true;
+                    updateInterestOps();
+                }
+
+                if (isHandling.compareAndSet(false, true)) {
+                    serverMessageExecutor.execute(this::handleReceivedMessages);
+                }
+            }
+            else {
+                clientRequestExecutor.execute(() -> {
+                    try {
+                        clientMessageHandler.handle(this, message);
+                    }
+                    catch (Exception e) {
+                        close();
+                    }
+                });
+            }
+        }
+
+        private void handleReceivedMessages() {
+            while (true) {
+                Message message;
+
+                while ((message = receivedMessages.poll()) != null) {
+                    var numberOfWaitingMessages = numberOfReceivedMessages.decrementAndGet();
+
+                    try {
+                        serverMessageHandler.handle(this, message);
+                    }
+                    catch (Exception e) {
+                        e.printStackTrace();
+                    }
+
+                    if (isReadPaused && numberOfWaitingMessages <= MAX_QUEUED_SERVER_MESSAGES / 2) {
+                        isReadPaused = false;
+                        updateInterestOps();
+                    }
+                }
+
+                isHandling.set(false);
+
+                // a message queued after the last poll but before the flag was cleared has no other worker to handle it
+                if (receivedMessages.isEmpty() || !isHandling.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public synchronized void send(Message message) throws IOException {
+            var frame = ByteBuffer.wrap(codec.encodeFrame(message));
+
+            // a peer that stopped reading would have the server keep whatever is sent to it, it loses the connection
+            if (!pendingWrites.isEmpty() && pendingWriteBytes + frame.remaining() > maxPendingWriteBytes) {
+                close();
+                throw new IOException(String.format("%s has more than %d bytes waiting to be written", this, maxPendingWriteBytes));
+            }
+
+            pendingWrites.add(frame);
+            pendingWriteBytes += frame.remaining();
+            flush();
+        }
+
+        private synchronized void flush() throws IOException {
+            while (!pendingWrites.isEmpty()) {
+                var buffer = pendingWrites.peek();
+                socketChannel.write(buffer);
+
+                if (buffer.hasRemaining()) {
+                    // the socket buffer is full, let the selector finish the write once the peer catches up
+                    updateInterestOps();
+                    return;
+                }
+
+                pendingWrites.poll();
+                pendingWriteBytes -= buffer.capacity();
+            }
+
+            updateInterestOps();
+        }
+
+        private synchronized void updateInterestOps() {
+            var interestOps = (isReadPaused ? 0 : SelectionKey.OP_READ) | (pendingWrites.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+
+            if (key.isValid() && key.interestOps() != interestOps) {
+                key.interestOps(interestOps);
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                key.cancel();
+                socketChannel.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%s)", handshake, socketChannel.socket().getRemoteSocketAddress());
+        }
+    }
+}
@@ -0,0 +1,20 @@
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Orders the writes of a file without any critical session, in place of a MutualExclusionEngine: a server sends the
+ * lines of a write right away to the other servers replicating the file and every server appends them in the same
+ * order. The server calls both methods under its clock lock, which the messages are stamped and sent under too, so
+ * they leave in timestamp order.
+ */
+public interface OrderedMulticast {
+    /**
+     * Sends the lines in the payload to the other servers replicating its file and returns the timestamp of the write
+     * once its lines are appended here, in the same order as everywhere else
+     */
+    CompletableFuture<Long> multicast(String payload);
+
+    /**
+     * Handles a message of the multicast from another server, returns false for the messages it does not use
+     */
+    boolean handle(Message message);
+}
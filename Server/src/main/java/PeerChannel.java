@@ -0,0 +1,291 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * The link to another server behind a bounded queue with a writer thread of its own. Sending only queues the
+ * message, so a broadcast returns at once and a slow peer holds up nobody until its queue is full. The writer takes
+ * whatever queued up while it was busy and writes it with a single flush, in the order it was queued.
+ *
+ * Every message gets the next sequence number of the link as its request id and is kept until the server acknowledges
+ * it, see ReceivedSequences. The link outlives its connections: after one breaks the writer keeps taking messages
+ * without sending them, and the next connection starts with the server telling how far it got, so that it gets the
+ * rest and nothing twice. A server that restarted in between does not know the link, it rejoins and gets a new one.
+ */
+public class PeerChannel implements MessageChannel {
+    // a server away for this long has to rejoin to catch up anyway, the messages for it are not kept without bound. It
+    // refuses the link once it sees the gap, see ReceivedSequences
+    private static final int MAX_UNACKNOWLEDGED_MESSAGES = 256 * 1024;
+
+    private String name;
+    private String serverName;
+    private long linkId;
+    private long lastSequence;
+    // the server that acknowledged the first connection, identified by a number it picks when it starts
+    private long serverIncarnation;
+    private volatile Connection connection;
+    private BlockingQueue<Message> outbox;
+    // sent or waiting for a connection, in sequence order
+    private ArrayDeque<Message> unacknowledged;
+    // held while writing, so that the messages sent again on a new connection come before any later one
+    private ReentrantLock writeLock;
+    private ReentrantLock queueLock;
+    private Thread writer;
+    private ThreadFactory threadFactory;
+    private Consumer<PeerChannel> failureHandler;
+    private Logger logger;
+    private volatile boolean isClosed;
+
+    /**
+     * The failure handler is called once for every connection that breaks, from the thread that noticed
+     */
+    public PeerChannel(String name, String serverName, long linkId, int capacity, ThreadFactory threadFactory,
+                       Consumer<PeerChannel> failureHandler, Logger logger) {
+        this.name = name;
+        this.serverName = serverName;
+        this.linkId = linkId;
+        this.lastSequence = 0;
+        this.serverIncarnation = 0;
+        this.outbox = new ArrayBlockingQueue<>(capacity);
+        this.unacknowledged = new ArrayDeque<>();
+        this.writeLock = new ReentrantLock();
+        this.queueLock = new ReentrantLock();
+        this.threadFactory = threadFactory;
+        this.failureHandler = failureHandler;
+        this.logger = logger;
+        this.isClosed = false;
+        this.writer = threadFactory.newThread(this::writeMessages);
+        this.writer.start();
+    }
+
+    public long getLinkId() {
+        return linkId;
+    }
+
+    public boolean isClosed() {
+        return isClosed;
+    }
+
+    public boolean isConnected() {
+        return connection != null;
+    }
+
+    /**
+     * Reads the acknowledgement the server starts the connection with, sends what it is missing and has the writer
+     * use the connection from then on. Returns false without using the connection when the link is closed or the server
+     * restarted since the first connection, the messages of the link are stale for it then.
+     */
+    public boolean connect(Connection newConnection) throws IOException {
+        var acknowledgement = newConnection.receive();
+
+        if (acknowledgement.getType() != Message.MessageType.LinkAck) {
+            throw new IOException(String.format("%s starts the connection with '%s' instead of an acknowledgement", serverName, acknowledgement));
+        }
+
+        writeLock.lock();
+
+        try {
+            var incarnation = getIncarnation(acknowledgement);
+
+            if (isClosed || serverIncarnation != 0 && incarnation != serverIncarnation) {
+                return false;
+            }
+
+            serverIncarnation = incarnation;
+
+            var acknowledgedSequence = acknowledge(acknowledgement);
+            ArrayList<Message> missedMessages;
+
+            synchronized (unacknowledged) {
+                missedMessages = new ArrayList<>(unacknowledged);
+            }
+
+            if (!missedMessages.isEmpty()) {
+                logger.log("%s sends %d message(s) to %s again", name, missedMessages.size(), serverName);
+
+                if (missedMessages.get(0).getRequestId() > acknowledgedSequence + 1) {
+                    logger.log("%s no longer has %d message(s) %s is missing, it has to be restarted with rejoin=true", name,
+                            missedMessages.get(0).getRequestId() - acknowledgedSequence - 1, serverName);
+                }
+            }
+
+            newConnection.send(missedMessages);
+            connection = newConnection;
+        }
+        finally {
+            writeLock.unlock();
+        }
+
+        threadFactory.newThread(() -> readAcknowledgements(newConnection)).start();
+        return true;
+    }
+
+    @Override
+    public String getHandshake() {
+        var currentConnection = connection;
+        return currentConnection == null ? null : currentConnection.getHandshake();
+    }
+
+    @Override
+    public void send(Message message) throws IOException {
+        if (isClosed) {
+            throw new IOException(String.format("The link of %s to %s is closed", name, serverName));
+        }
+
+        // not synchronized, a virtual thread blocked on a full queue holding a monitor would pin its carrier thread
+        queueLock.lock();
+
+        try {
+            outbox.put(new Message(message.getSenderName(), message.getType(), message.getTimeStamp(), message.getPayload(), ++lastSequence));
+        }
+        catch (InterruptedException e) {
+            lastSequence--;
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format("Interrupted while queueing for %s", serverName));
+        }
+        finally {
+            queueLock.unlock();
+        }
+    }
+
+    private void writeMessages() {
+        var messages = new ArrayList<Message>();
+
+        try {
+            while (true) {
+                messages.add(outbox.take());
+                outbox.drainTo(messages);
+
+                writeLock.lock();
+
+                try {
+                    keep(messages);
+
+                    var currentConnection = connection;
+
+                    if (currentConnection != null) {
+                        try {
+                            currentConnection.send(messages);
+                        }
+                        catch (IOException e) {
+                            fail(currentConnection, e);
+                        }
+                    }
+                }
+                finally {
+                    writeLock.unlock();
+                }
+
+                messages.clear();
+            }
+        }
+        catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private void keep(ArrayList<Message> messages) {
+        synchronized (unacknowledged) {
+            unacknowledged.addAll(messages);
+
+            if (unacknowledged.size() > MAX_UNACKNOWLEDGED_MESSAGES) {
+                logger.log("%s drops %d message(s) %s has not acknowledged, it has to be restarted with rejoin=true", name,
+                        unacknowledged.size(), serverName);
+                unacknowledged.clear();
+            }
+        }
+    }
+
+    private void readAcknowledgements(Connection readConnection) {
+        try {
+            while (true) {
+                acknowledge(readConnection.receive());
+            }
+        }
+        catch (IOException e) {
+            fail(readConnection, e);
+        }
+    }
+
+    private long acknowledge(Message acknowledgement) {
+        var payload = acknowledgement.getPayload();
+        var acknowledgedSequence = Long.parseLong(payload.substring(0, payload.indexOf('|')));
+
+        synchronized (unacknowledged) {
+            while (!unacknowledged.isEmpty() && unacknowledged.peek().getRequestId() <= acknowledgedSequence) {
+                unacknowledged.poll();
+            }
+        }
+
+        return acknowledgedSequence;
+    }
+
+    private static long getIncarnation(Message acknowledgement) {
+        var payload = acknowledgement.getPayload();
+        return Long.parseLong(payload.substring(payload.indexOf('|') + 1));
+    }
+
+    private void fail(Connection failedConnection, IOException e) {
+        writeLock.lock();
+
+        try {
+            if (connection != failedConnection) {
+                return;
+            }
+
+            connection = null;
+        }
+        finally {
+            writeLock.unlock();
+        }
+
+        try {
+            failedConnection.close();
+        }
+        catch (IOException ignored) {
+        }
+
+        if (!isClosed) {
+            logger.log("%s loses the connection to %s: %s", name, serverName, e.getMessage());
+            failureHandler.accept(this);
+        }
+    }
+
+    /**
+     * Stops the link for good. Only done when the server rejoined, it takes over the files from a snapshot instead of
+     * getting what is still queued for it.
+     */
+    @Override
+    public void close() throws IOException {
+        isClosed = true;
+        writer.interrupt();
+
+        int numberOfDroppedMessages;
+
+        synchronized (unacknowledged) {
+            numberOfDroppedMessages = unacknowledged.size() + outbox.size();
+        }
+
+        if (numberOfDroppedMessages > 0) {
+            logger.log("%s drops %d message(s) for %s, which rejoined", name, numberOfDroppedMessages, serverName);
+        }
+
+        var currentConnection = connection;
+
+        if (currentConnection != null) {
+            currentConnection.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        var currentConnection = connection;
+        return currentConnection == null ? String.format("%s (not connected)", serverName) : currentConnection.toString();
+    }
+}
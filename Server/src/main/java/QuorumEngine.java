@@ -0,0 +1,444 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Maekawa's algorithm: a server needs the votes of its quorum only, its row and column when the servers of a file are
+ * laid out by name in a square grid, about 2 sqrt(N) of them. Any two quorums share a server, and a server votes for
+ * one request of a file at a time, so two requests cannot both collect their quorum. A server that voted for a later
+ * request than one it is asked for inquires whether the later one can give its vote back, which it yields once it
+ * failed to get another vote, so requests going round in a circle of votes cannot block each other.
+ * The syncs still go to every server of the file. Releases carry the number of syncs of the file and votes the
+ * highest number the voter has seen, the server entering waits until it has applied that many. The quorum of the
+ * previous holder shares a voter with its own, which saw the release before it voted again.
+ */
+public class QuorumEngine implements MutualExclusionEngine {
+    private ReplicaNode node;
+    private Hashtable<String, FileVotes> fileVotes;
+    private Logger logger;
+
+    public QuorumEngine(ReplicaNode node, Logger logger) {
+        this.node = node;
+        this.fileVotes = new Hashtable<>();
+        this.logger = logger;
+    }
+
+    /**
+     * The row and the column of the server in the grid of the servers of a file filled row by row. Only the last row has
+     * gaps, so the row of one server and the column of another meet in a server unless both are in the last row.
+     */
+    public static ArrayList<String> getQuorum(String serverName, ArrayList<String> peerNames) {
+        var serverNames = new ArrayList<>(peerNames);
+        serverNames.add(serverName);
+        Collections.sort(serverNames);
+
+        var gridSize = (int) Math.ceil(Math.sqrt(serverNames.size()));
+        var index = serverNames.indexOf(serverName);
+        var quorum = new ArrayList<String>();
+
+        for (var i = 0; i < serverNames.size(); i++) {
+            if (i / gridSize == index / gridSize || i % gridSize == index % gridSize) {
+                quorum.add(serverNames.get(i));
+            }
+        }
+
+        return quorum;
+    }
+
+    @Override
+    public Message request(String payload) throws IOException {
+        var writeAcquireRequest = node.stamp(Message.MessageType.WriteAcquireRequest, payload);
+        var votes = getFileVotes(writeAcquireRequest.getFileNameFromPayload());
+        votes.lock.lock();
+
+        try {
+            // the writes a server takes in while another one of it waits or writes line up behind it locally
+            votes.localWaiters++;
+
+            if (votes.ownRequest == null) {
+                askForVotes(votes);
+            }
+        }
+        catch (IOException e) {
+            votes.localWaiters--;
+
+            // the votes already given would be held forever
+            if (votes.localWaiters == 0 && !votes.isInUse) {
+                releaseVotes(votes);
+            }
+
+            throw e;
+        }
+        finally {
+            votes.lock.unlock();
+        }
+
+        return writeAcquireRequest;
+    }
+
+    @Override
+    public long waitForAccess(Message request) throws InterruptedException {
+        var fileName = request.getFileNameFromPayload();
+        var votes = getFileVotes(fileName);
+        long syncSequence;
+        votes.lock.lock();
+
+        try {
+            while (votes.isInUse || votes.ownRequest == null || votes.granted.size() < votes.quorum.size()) {
+                logger.debug("Waiting for the votes on %s...", fileName);
+                votes.changed.await();
+            }
+
+            votes.isInUse = true;
+            votes.localWaiters--;
+            // the voters asking for their vote back get it with the release
+            votes.inquired.clear();
+            syncSequence = votes.grantedSyncSequence;
+        }
+        finally {
+            votes.lock.unlock();
+        }
+
+        var headTime = System.nanoTime();
+        node.getCriticalSession(fileName).waitForSyncSequence(syncSequence);
+
+        return headTime;
+    }
+
+    @Override
+    public void release(Message request) {
+        var votes = getFileVotes(request.getFileNameFromPayload());
+        votes.lock.lock();
+
+        try {
+            votes.isInUse = false;
+            releaseVotes(votes);
+
+            if (votes.localWaiters > 0) {
+                askForVotes(votes);
+            }
+        }
+        catch (IOException e) {
+            logger.log("%s cannot ask its whole quorum for %s: %s", node.getName(), votes.fileName, e.getMessage());
+        }
+        finally {
+            votes.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean handle(Message message) {
+        var votes = getFileVotes(message.getFileNameFromPayload());
+        votes.lock.lock();
+
+        try {
+            switch (message.getType()) {
+                case WriteAcquireRequest:
+                    receiveRequest(votes, message);
+                    return true;
+                case WriteAcquireResponse:
+                    receiveVote(votes, message);
+                    return true;
+                case WriteReleaseRequest:
+                    receiveRelease(votes, message);
+                    return true;
+                case Inquire:
+                    receiveInquire(votes, message);
+                    return true;
+                case Failed:
+                    receiveFailed(votes, message);
+                    return true;
+                case Yield:
+                    receiveYield(votes, message);
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        finally {
+            votes.lock.unlock();
+        }
+    }
+
+    @Override
+    public void forgetServer(String serverName) {
+        for (var votes : fileVotes.values()) {
+            votes.lock.lock();
+
+            try {
+                // the server lost the requests it waited with and the votes it gave, it asks again for what it needs
+                votes.waiting.removeIf(request -> request.getSenderName().equals(serverName));
+
+                if (votes.votedFor != null && votes.votedFor.getSenderName().equals(serverName)) {
+                    votes.votedFor = null;
+                    voteForNext(votes);
+                }
+
+                if (!votes.isInUse) {
+                    votes.granted.remove(serverName);
+                }
+
+                votes.inquired.remove(serverName);
+            }
+            finally {
+                votes.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public ArrayList<Message> getOwnRequests(String serverName) {
+        var ownRequests = new ArrayList<Message>();
+
+        for (var votes : fileVotes.values()) {
+            votes.lock.lock();
+
+            try {
+                if (votes.ownRequest != null && votes.quorum.contains(serverName)) {
+                    ownRequests.add(votes.ownRequest);
+                }
+            }
+            finally {
+                votes.lock.unlock();
+            }
+        }
+
+        return ownRequests;
+    }
+
+    private FileVotes getFileVotes(String fileName) {
+        return fileVotes.computeIfAbsent(fileName, name -> new FileVotes(name, getQuorum(node.getName(), node.getPeerNames(name))));
+    }
+
+    /**
+     * Called with the lock of the file's votes held, as are the methods below
+     */
+    private void askForVotes(FileVotes votes) throws IOException {
+        votes.ownRequest = node.stamp(Message.MessageType.WriteAcquireRequest, votes.fileName);
+        votes.granted.clear();
+        votes.inquired.clear();
+        votes.hasFailed = false;
+        votes.grantedSyncSequence = 0;
+
+        IOException failure = null;
+
+        for (var member : votes.quorum) {
+            try {
+                if (member.equals(node.getName())) {
+                    receiveRequest(votes, votes.ownRequest);
+                }
+                else {
+                    node.send(member, votes.ownRequest);
+                }
+            }
+            catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void releaseVotes(FileVotes votes) {
+        var syncSequence = node.getCriticalSession(votes.fileName).nextSyncSequence();
+        var releaseMessage = node.stamp(Message.MessageType.WriteReleaseRequest,
+                String.format("%s|%d|%d", votes.fileName, votes.ownRequest.getTimeStamp(), syncSequence));
+
+        votes.ownRequest = null;
+        votes.granted.clear();
+        votes.inquired.clear();
+
+        for (var member : votes.quorum) {
+            deliver(votes, member, releaseMessage);
+        }
+    }
+
+    private void receiveRequest(FileVotes votes, Message request) {
+        if (votes.votedFor == null) {
+            vote(votes, request);
+            return;
+        }
+
+        votes.waiting.add(request);
+
+        // only the earliest request waiting takes the vote back, the later ones learn that they have to wait, the one
+        // it took the first place from too, it would not give up the votes it has otherwise
+        if (request.compareTo(votes.votedFor) < 0 && votes.waiting.first() == request) {
+            var previousRequest = votes.inquiringRequest;
+
+            // set first, an own request yields at once when the inquire is delivered here and the vote changes
+            votes.inquiringRequest = request;
+
+            if (previousRequest != null) {
+                deliver(votes, previousRequest.getSenderName(), node.stamp(Message.MessageType.Failed, getRequestPayload(votes, previousRequest)));
+            }
+            else {
+                deliver(votes, votes.votedFor.getSenderName(), node.stamp(Message.MessageType.Inquire, getRequestPayload(votes, votes.votedFor)));
+            }
+        }
+        else {
+            deliver(votes, request.getSenderName(), node.stamp(Message.MessageType.Failed, getRequestPayload(votes, request)));
+        }
+    }
+
+    private void vote(FileVotes votes, Message request) {
+        // a voter that restarted lost the releases it saw, what it applied itself is a lower bound then
+        var syncSequence = Math.max(votes.knownSyncSequence, node.getCriticalSession(votes.fileName).nextSyncSequence());
+
+        votes.votedFor = request;
+        votes.inquiringRequest = null;
+
+        deliver(votes, request.getSenderName(), node.stamp(Message.MessageType.WriteAcquireResponse,
+                String.format("%s|%d", getRequestPayload(votes, request), syncSequence)));
+    }
+
+    private void voteForNext(FileVotes votes) {
+        if (!votes.waiting.isEmpty()) {
+            vote(votes, votes.waiting.pollFirst());
+        }
+    }
+
+    private void receiveRelease(FileVotes votes, Message releaseMessage) {
+        var fields = releaseMessage.getPayload().split("\\|");
+        var requestTimeStamp = Long.parseLong(fields[1]);
+
+        votes.knownSyncSequence = Math.max(votes.knownSyncSequence, Long.parseLong(fields[2]));
+
+        if (isRequest(votes.votedFor, releaseMessage.getSenderName(), requestTimeStamp)) {
+            votes.votedFor = null;
+            voteForNext(votes);
+        }
+        else {
+            // a request given up on before this server voted for it
+            votes.waiting.removeIf(request -> isRequest(request, releaseMessage.getSenderName(), requestTimeStamp));
+        }
+    }
+
+    private void receiveYield(FileVotes votes, Message yieldMessage) {
+        if (isRequest(votes.votedFor, yieldMessage.getSenderName(), getRequestTimeStamp(yieldMessage))) {
+            votes.waiting.add(votes.votedFor);
+            votes.votedFor = null;
+            voteForNext(votes);
+        }
+    }
+
+    private void receiveVote(FileVotes votes, Message voteMessage) {
+        var fields = voteMessage.getPayload().split("\\|");
+
+        if (isOwnRequest(votes, Long.parseLong(fields[1]))) {
+            votes.granted.add(voteMessage.getSenderName());
+            votes.grantedSyncSequence = Math.max(votes.grantedSyncSequence, Long.parseLong(fields[2]));
+            votes.changed.signalAll();
+        }
+    }
+
+    private void receiveFailed(FileVotes votes, Message failedMessage) {
+        if (!isOwnRequest(votes, getRequestTimeStamp(failedMessage))) {
+            return;
+        }
+
+        votes.hasFailed = true;
+
+        for (var voter : new ArrayList<>(votes.inquired)) {
+            yieldVote(votes, voter);
+        }
+
+        votes.inquired.clear();
+    }
+
+    private void receiveInquire(FileVotes votes, Message inquireMessage) {
+        // the release gives the vote back once the request is in its critical session
+        if (!isOwnRequest(votes, getRequestTimeStamp(inquireMessage)) || votes.isInUse) {
+            return;
+        }
+
+        if (votes.hasFailed) {
+            yieldVote(votes, inquireMessage.getSenderName());
+        }
+        else {
+            votes.inquired.add(inquireMessage.getSenderName());
+        }
+    }
+
+    private void yieldVote(FileVotes votes, String voter) {
+        votes.granted.remove(voter);
+        deliver(votes, voter, node.stamp(Message.MessageType.Yield, getRequestPayload(votes, votes.ownRequest)));
+    }
+
+    private void deliver(FileVotes votes, String serverName, Message message) {
+        // the server is in its own quorum, it gives itself its vote without a message
+        if (serverName.equals(node.getName())) {
+            handle(message);
+            return;
+        }
+
+        try {
+            node.send(serverName, message);
+        }
+        catch (IOException e) {
+            logger.log("%s cannot send '%s' to %s: %s", node.getName(), message, serverName, e.getMessage());
+        }
+    }
+
+    private boolean isOwnRequest(FileVotes votes, long requestTimeStamp) {
+        return isRequest(votes.ownRequest, node.getName(), requestTimeStamp);
+    }
+
+    private static boolean isRequest(Message request, String senderName, long requestTimeStamp) {
+        return request != null && request.getSenderName().equals(senderName) && request.getTimeStamp() == requestTimeStamp;
+    }
+
+    private static String getRequestPayload(FileVotes votes, Message request) {
+        return String.format("%s|%d", votes.fileName, request.getTimeStamp());
+    }
+
+    private static long getRequestTimeStamp(Message message) {
+        return Long.parseLong(message.getPayload().split("\\|")[1]);
+    }
+
+    private static class FileVotes {
+        private String fileName;
+        private ArrayList<String> quorum;
+        private ReentrantLock lock;
+        private Condition changed;
+        // as a voter: the request it voted for, the ones waiting for its vote and the earlier one it asked it back for
+        private Message votedFor;
+        private TreeSet<Message> waiting;
+        private Message inquiringRequest;
+        private long knownSyncSequence;
+        // as a requester: the own request, the voters that gave it their vote, those asking for it back and whether
+        // another voter turned it down
+        private Message ownRequest;
+        private HashSet<String> granted;
+        private HashSet<String> inquired;
+        private boolean hasFailed;
+        private long grantedSyncSequence;
+        private boolean isInUse;
+        private int localWaiters;
+
+        private FileVotes(String fileName, ArrayList<String> quorum) {
+            this.fileName = fileName;
+            this.quorum = quorum;
+            this.lock = new ReentrantLock();
+            this.changed = lock.newCondition();
+            this.votedFor = null;
+            this.waiting = new TreeSet<>();
+            this.inquiringRequest = null;
+            this.knownSyncSequence = 0;
+            this.ownRequest = null;
+            this.granted = new HashSet<>();
+            this.inquired = new HashSet<>();
+            this.hasFailed = false;
+            this.grantedSyncSequence = 0;
+            this.isInUse = false;
+            this.localWaiters = 0;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import java.util.Hashtable;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * How far this server has handled the messages of each other server, counted by the sequence numbers the PeerChannel
+ * of the other server gives them. A channel whose connection breaks sends every message it has no acknowledgement for
+ * again over the next one, so a message can come twice, over the old connection and the new one, and is handled the
+ * first time only. A channel opened anew after one of the two servers restarted counts from the start again under a
+ * higher link id, the messages still coming over the connections of the channel it replaces are stale and dropped.
+ * A link missing messages, which the other server gave up keeping, is refused for good: nothing after the gap is
+ * handled, since it would apply syncs and grant requests without the ones before, and the server has to be restarted
+ * with rejoin=true to take the files over again.
+ */
+public class ReceivedSequences {
+    // how many messages of a link are handled before the other server is told, it keeps them until then
+    public static final int ACKNOWLEDGEMENT_INTERVAL = 256;
+
+    private Hashtable<String, Link> links;
+    private String name;
+    private Logger logger;
+
+    public ReceivedSequences(String name, Logger logger) {
+        this.links = new Hashtable<>();
+        this.name = name;
+        this.logger = logger;
+    }
+
+    /**
+     * Called for every connection the server opens, returns the last sequence handled of the link, 0 for a link that is
+     * new here and from then on replaces the earlier link of the server, and -1 for a link that has been replaced
+     * already or misses messages and whose connection has to be refused
+     */
+    public long open(String serverName, long linkId) {
+        synchronized (links) {
+            var link = links.get(serverName);
+
+            if (link != null && (linkId < link.linkId || linkId == link.linkId && link.isRefused)) {
+                return -1;
+            }
+
+            if (link == null || linkId > link.linkId) {
+                links.put(serverName, new Link(linkId));
+                return 0;
+            }
+
+            return link.lastSequence;
+        }
+    }
+
+    /**
+     * Handles the message unless it was handled already or its link has been replaced, and returns whether it did.
+     * The messages of a link are handled one at a time, a connection that replaces a broken one does not overtake
+     * what is still handled from the old one. Messages of servers that do not number them are always handled. The
+     * connection of a refused link is closed.
+     */
+    public boolean handle(String serverName, long linkId, MessageChannel channel, Message message, MessageHandler handler) throws Exception {
+        var sequence = message.getRequestId();
+        var link = links.get(serverName);
+
+        if (sequence == 0 || link == null) {
+            handler.handle(channel, message);
+            return true;
+        }
+
+        link.lock.lock();
+
+        try {
+            if (link.linkId != linkId || links.get(serverName) != link) {
+                logger.debug("%s drops '%s', %s connected again since", name, message, serverName);
+                return false;
+            }
+
+            if (link.isRefused) {
+                channel.close();
+                return false;
+            }
+
+            if (sequence <= link.lastSequence) {
+                logger.debug("%s drops '%s', it has been handled already", name, message);
+                return false;
+            }
+
+            if (sequence > link.lastSequence + 1) {
+                logger.log("%s misses %d message(s) of %s before '%s' and refuses its link, it has to be restarted with rejoin=true",
+                        name, sequence - link.lastSequence - 1, serverName, message);
+                link.isRefused = true;
+                channel.close();
+                return false;
+            }
+
+            link.lastSequence = sequence;
+            handler.handle(channel, message);
+
+            return true;
+        }
+        finally {
+            link.lock.unlock();
+        }
+    }
+
+    private static class Link {
+        private long linkId;
+        private volatile long lastSequence;
+        private volatile boolean isRefused;
+        private ReentrantLock lock;
+
+        private Link(long linkId) {
+            this.linkId = linkId;
+            this.lastSequence = 0;
+            this.isRefused = false;
+            this.lock = new ReentrantLock();
+        }
+    }
+}
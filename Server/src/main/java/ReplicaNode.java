@@ -0,0 +1,36 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * What a mutual exclusion engine or the ordered multicast uses of the server it runs in
+ */
+public interface ReplicaNode {
+    String getName();
+
+    /**
+     * The other servers replicating the file that this one is connected to
+     */
+    int getNumberOfPeers(String fileName);
+
+    /**
+     * Every other server replicating the file, connected or not
+     */
+    ArrayList<String> getPeerNames(String fileName);
+
+    FileCriticalSession getCriticalSession(String fileName);
+
+    Collection<FileCriticalSession> getCriticalSessions();
+
+    Message stamp(Message.MessageType type, String payload);
+
+    void send(String serverName, Message message) throws IOException;
+
+    /**
+     * Sends to the other servers replicating the file named in the payload. The servers after one that cannot be
+     * reached still get the message, the first failure is thrown afterwards.
+     */
+    void sendToAll(Message message) throws IOException;
+
+    void sendToReachable(Message message);
+}
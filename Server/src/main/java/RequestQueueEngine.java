@@ -0,0 +1,127 @@
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Lamport's and Ricart and Agrawala's algorithms, which both keep every request of a file in a queue ordered by
+ * timestamp, see FileCriticalSession. A request goes first once every other server has answered it: with a later
+ * message for Lamport, with a response it only sends after its own earlier requests are done for Ricart and Agrawala.
+ */
+public class RequestQueueEngine implements MutualExclusionEngine {
+    private ReplicaNode node;
+    private MutualExclusion mutualExclusion;
+    private Logger logger;
+
+    public RequestQueueEngine(ReplicaNode node, MutualExclusion mutualExclusion, Logger logger) {
+        this.node = node;
+        this.mutualExclusion = mutualExclusion;
+        this.logger = logger;
+    }
+
+    @Override
+    public Message request(String payload) throws IOException {
+        var writeAcquireRequest = node.stamp(Message.MessageType.WriteAcquireRequest, payload);
+        var criticalSession = node.getCriticalSession(writeAcquireRequest.getFileNameFromPayload());
+
+        // queued locally before any peer can answer it, otherwise the answers would be dropped as late
+        criticalSession.addToQueue(writeAcquireRequest);
+
+        try {
+            node.sendToAll(writeAcquireRequest);
+        }
+        catch (IOException e) {
+            // the servers that got the request would wait for its release forever
+            release(writeAcquireRequest);
+            throw e;
+        }
+
+        return writeAcquireRequest;
+    }
+
+    @Override
+    public long waitForAccess(Message request) throws InterruptedException {
+        var fileName = request.getFileNameFromPayload();
+        return node.getCriticalSession(fileName).waitForAccess(request, node.getNumberOfPeers(fileName));
+    }
+
+    @Override
+    public void release(Message request) {
+        var criticalSession = node.getCriticalSession(request.getFileNameFromPayload());
+        criticalSession.removeOwnRequest(request);
+
+        if (mutualExclusion == MutualExclusion.RicartAgrawala) {
+            // the responses held back while this request went first take the place of the release
+            for (var deferredRequest : criticalSession.takeDeferredRequests()) {
+                var responseMessage = node.stamp(Message.MessageType.WriteAcquireResponse, deferredRequest.getPayload());
+
+                try {
+                    node.send(deferredRequest.getSenderName(), responseMessage);
+                }
+                catch (IOException e) {
+                    logger.log("%s cannot send '%s' to %s: %s", node.getName(), responseMessage, deferredRequest.getSenderName(), e.getMessage());
+                }
+            }
+        }
+        else {
+            node.sendToReachable(node.stamp(Message.MessageType.WriteReleaseRequest, request.getPayload()));
+        }
+    }
+
+    @Override
+    public boolean handle(Message message) {
+        var criticalSession = node.getCriticalSession(message.getFileNameFromPayload());
+
+        switch (message.getType()) {
+            case WriteAcquireRequest:
+                // decided under the clock lock, an own request stamped after this point has a later timestamp
+                if (mutualExclusion == MutualExclusion.RicartAgrawala) {
+                    if (criticalSession.deferRequest(message)) {
+                        return true;
+                    }
+                }
+                else {
+                    criticalSession.addToQueue(message);
+                }
+
+                var responseMessage = node.stamp(Message.MessageType.WriteAcquireResponse, message.getPayload());
+
+                try {
+                    node.send(message.getSenderName(), responseMessage);
+                }
+                catch (IOException e) {
+                    logger.log("%s cannot send '%s' to %s: %s", node.getName(), responseMessage, message.getSenderName(), e.getMessage());
+                }
+
+                return true;
+
+            case WriteAcquireResponse:
+                criticalSession.addResponseToQueue(message);
+                return true;
+
+            case WriteReleaseRequest:
+                criticalSession.removeReleasedRequest(message);
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public void forgetServer(String serverName) {
+        // the server lost its queue when it stopped, its requests there would never be released
+        for (var criticalSession : node.getCriticalSessions()) {
+            criticalSession.removeRequestsOf(serverName);
+        }
+    }
+
+    @Override
+    public ArrayList<Message> getOwnRequests(String serverName) {
+        var ownRequests = new ArrayList<Message>();
+
+        for (var criticalSession : node.getCriticalSessions()) {
+            ownRequests.addAll(criticalSession.getOwnRequests());
+        }
+
+        return ownRequests;
+    }
+}
@@ -9,6 +9,7 @@ public class Server {
             ServerInfo serverInfo = null;
             String directoryPath = null;
             String configurationFile;
+            var options = new NodeOptions();
 
             if (args == null || args.length == 0) {
                 var scanner = new Scanner(System.in);
@@ -55,9 +56,11 @@ public class Server {
                         otherServers.add(new ServerInfo(input));
                     }
                 }
+
+                options = NodeOptions.parse(scanner);
             }
 
-            var serverNode = new ServerNode(serverInfo, otherServers, directoryPath);
+            var serverNode = new ServerNode(serverInfo, otherServers, directoryPath, options);
             serverNode.up();
         }
         catch (Exception e) {
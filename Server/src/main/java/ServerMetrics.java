@@ -0,0 +1,250 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Counters of one server, exposed as an MXBean and, if a port is given, as Prometheus text on http://127.0.0.1:port/metrics.
+ * Updates only increment counters, a sampling thread turns the message counts into per second rates once a second.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    private static final Message.MessageType[] MESSAGE_TYPES = Message.MessageType.values();
+
+    private String serverName;
+    private IntSupplier queueDepth;
+    private LatencyMetric headWait;
+    private LatencyMetric acknowledgementWait;
+    private LatencyMetric localAppend;
+    private LatencyMetric syncBroadcast;
+    private LongAdder[] receivedMessages;
+    private LongAdder[] sentMessages;
+    private AtomicLongArray receivedMessagesPerSecond;
+    private AtomicLongArray sentMessagesPerSecond;
+    private Logger logger;
+
+    public ServerMetrics(String serverName, IntSupplier queueDepth, Logger logger) {
+        this.serverName = serverName;
+        this.queueDepth = queueDepth;
+        this.headWait = new LatencyMetric();
+        this.acknowledgementWait = new LatencyMetric();
+        this.localAppend = new LatencyMetric();
+        this.syncBroadcast = new LatencyMetric();
+        this.receivedMessages = new LongAdder[MESSAGE_TYPES.length];
+        this.sentMessages = new LongAdder[MESSAGE_TYPES.length];
+        this.receivedMessagesPerSecond = new AtomicLongArray(MESSAGE_TYPES.length);
+        this.sentMessagesPerSecond = new AtomicLongArray(MESSAGE_TYPES.length);
+        this.logger = logger;
+
+        for (var i = 0; i < MESSAGE_TYPES.length; i++) {
+            receivedMessages[i] = new LongAdder();
+            sentMessages[i] = new LongAdder();
+        }
+    }
+
+    public void start(int httpPort) throws IOException {
+        var samplingThread = new Thread(this::sampleRates, serverName + "-metrics");
+        samplingThread.setDaemon(true);
+        samplingThread.start();
+
+        if (httpPort > 0) {
+            var httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", httpPort), 0);
+
+            httpServer.createContext("/metrics", exchange -> {
+                var body = toText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+
+                try (var responseBody = exchange.getResponseBody()) {
+                    responseBody.write(body);
+                }
+            });
+            httpServer.start();
+
+            logger.log("%s serves its metrics on http://127.0.0.1:%d/metrics", serverName, httpPort);
+        }
+    }
+
+    public void received(Message.MessageType type) {
+        receivedMessages[type.ordinal()].increment();
+    }
+
+    public void sent(Message.MessageType type) {
+        sentMessages[type.ordinal()].increment();
+    }
+
+    public void recordHeadWait(long nanos) {
+        headWait.record(nanos);
+    }
+
+    public void recordAcknowledgementWait(long nanos) {
+        acknowledgementWait.record(nanos);
+    }
+
+    public void recordSyncBroadcast(long nanos) {
+        syncBroadcast.record(nanos);
+    }
+
+    public LatencyMetric getLocalAppendMetric() {
+        return localAppend;
+    }
+
+    @Override
+    public LatencySnapshot getHeadWait() {
+        return headWait.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getAcknowledgementWait() {
+        return acknowledgementWait.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getLocalAppend() {
+        return localAppend.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getSyncBroadcast() {
+        return syncBroadcast.snapshot();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    @Override
+    public Map<String, Long> getReceivedMessages() {
+        var counts = new TreeMap<String, Long>();
+
+        for (var type : MESSAGE_TYPES) {
+            counts.put(type.toString(), receivedMessages[type.ordinal()].sum());
+        }
+
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getSentMessages() {
+        var counts = new TreeMap<String, Long>();
+
+        for (var type : MESSAGE_TYPES) {
+            counts.put(type.toString(), sentMessages[type.ordinal()].sum());
+        }
+
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getReceivedMessagesPerSecond() {
+        var rates = new TreeMap<String, Long>();
+
+        for (var type : MESSAGE_TYPES) {
+            rates.put(type.toString(), receivedMessagesPerSecond.get(type.ordinal()));
+        }
+
+        return rates;
+    }
+
+    @Override
+    public Map<String, Long> getSentMessagesPerSecond() {
+        var rates = new TreeMap<String, Long>();
+
+        for (var type : MESSAGE_TYPES) {
+            rates.put(type.toString(), sentMessagesPerSecond.get(type.ordinal()));
+        }
+
+        return rates;
+    }
+
+    private void sampleRates() {
+        // the platform MBean server takes a while to come up the first time, the server does not wait for it
+        registerMBean();
+
+        var previousReceived = new long[MESSAGE_TYPES.length];
+        var previousSent = new long[MESSAGE_TYPES.length];
+
+        while (true) {
+            try {
+                Thread.sleep(1000);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+
+            for (var i = 0; i < MESSAGE_TYPES.length; i++) {
+                var received = receivedMessages[i].sum();
+                var sent = sentMessages[i].sum();
+
+                receivedMessagesPerSecond.set(i, received - previousReceived[i]);
+                sentMessagesPerSecond.set(i, sent - previousSent[i]);
+
+                previousReceived[i] = received;
+                previousSent[i] = sent;
+            }
+        }
+    }
+
+    private void registerMBean() {
+        try {
+            var objectName = new ObjectName("LamportClock:type=ServerMetrics,name=" + ObjectName.quote(serverName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        }
+        catch (Exception e) {
+            // another server of the same name in this JVM, the endpoint still works
+            logger.log("%s cannot register its metrics MBean: %s", serverName, e.getMessage());
+        }
+    }
+
+    public String toText() {
+        var text = new StringBuilder();
+        var server = String.format("server=\"%s\"", serverName);
+
+        text.append("# TYPE lamport_messages_received_total counter\n");
+        getReceivedMessages().forEach((type, count) ->
+                text.append(String.format("lamport_messages_received_total{%s,type=\"%s\"} %d\n", server, type, count)));
+
+        text.append("# TYPE lamport_messages_sent_total counter\n");
+        getSentMessages().forEach((type, count) ->
+                text.append(String.format("lamport_messages_sent_total{%s,type=\"%s\"} %d\n", server, type, count)));
+
+        text.append("# TYPE lamport_messages_received_per_second gauge\n");
+        getReceivedMessagesPerSecond().forEach((type, rate) ->
+                text.append(String.format("lamport_messages_received_per_second{%s,type=\"%s\"} %d\n", server, type, rate)));
+
+        text.append("# TYPE lamport_messages_sent_per_second gauge\n");
+        getSentMessagesPerSecond().forEach((type, rate) ->
+                text.append(String.format("lamport_messages_sent_per_second{%s,type=\"%s\"} %d\n", server, type, rate)));
+
+        text.append("# TYPE lamport_queue_depth gauge\n");
+        text.append(String.format("lamport_queue_depth{%s} %d\n", server, getQueueDepth()));
+
+        text.append("# TYPE lamport_phase_milliseconds summary\n");
+        appendPhase(text, server, "head_wait", getHeadWait());
+        appendPhase(text, server, "acknowledgement_wait", getAcknowledgementWait());
+        appendPhase(text, server, "local_append", getLocalAppend());
+        appendPhase(text, server, "sync_broadcast", getSyncBroadcast());
+
+        return text.toString();
+    }
+
+    private void appendPhase(StringBuilder text, String server, String phase, LatencySnapshot snapshot) {
+        var labels = String.format("%s,phase=\"%s\"", server, phase);
+
+        text.append(String.format(Locale.ROOT, "lamport_phase_milliseconds{%s,quantile=\"0.5\"} %.3f\n", labels, snapshot.p50Millis()));
+        text.append(String.format(Locale.ROOT, "lamport_phase_milliseconds{%s,quantile=\"0.99\"} %.3f\n", labels, snapshot.p99Millis()));
+        text.append(String.format(Locale.ROOT, "lamport_phase_milliseconds{%s,quantile=\"0.999\"} %.3f\n", labels, snapshot.p999Millis()));
+        text.append(String.format(Locale.ROOT, "lamport_phase_milliseconds_max{%s} %.3f\n", labels, snapshot.maxMillis()));
+        text.append(String.format(Locale.ROOT, "lamport_phase_milliseconds_sum{%s} %.3f\n", labels, snapshot.meanMillis() * snapshot.count()));
+        text.append(String.format(Locale.ROOT, "lamport_phase_milliseconds_count{%s} %d\n", labels, snapshot.count()));
+    }
+}
@@ -0,0 +1,33 @@
+import java.util.Map;
+
+public interface ServerMetricsMXBean {
+    /**
+     * Time a request of this server waits until it is the first of its file's queue
+     */
+    LatencySnapshot getHeadWait();
+
+    /**
+     * Time a request of this server waits, once first in the queue, until every peer confirmed it
+     */
+    LatencySnapshot getAcknowledgementWait();
+
+    /**
+     * Time from queueing lines for the file store until they are written as durable as configured
+     */
+    LatencySnapshot getLocalAppend();
+
+    /**
+     * Time to send a sync to all other servers
+     */
+    LatencySnapshot getSyncBroadcast();
+
+    int getQueueDepth();
+
+    Map<String, Long> getReceivedMessages();
+
+    Map<String, Long> getSentMessages();
+
+    Map<String, Long> getReceivedMessagesPerSecond();
+
+    Map<String, Long> getSentMessagesPerSecond();
+}
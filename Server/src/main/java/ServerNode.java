@@ -1,57 +1,213 @@
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Hashtable;
-import java.util.PriorityQueue;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ServerNode {
     private final int TIME_DIFFERENCE_BETWEEN_PROCESSES = 1;
-    private int localTime;
+    // appended to the handshake with the other servers, which all have to run the same algorithm
+    private final String MUTUAL_EXCLUSION_FLAG = "|mutex=";
+    // precedes it, names the link the connection belongs to, see PeerChannel
+    private final String LINK_FLAG = "|link=";
+    private final long SNAPSHOT_TIMEOUT_MILLIS = 10_000;
+    // how long one attempt to connect again waits for the server to listen before checking whether it is still wanted
+    private final long RECONNECT_TIMEOUT_MILLIS = 10_000;
+    private final long MAX_RECONNECT_DELAY_MILLIS = 1000;
+    // the end of the own copy before the received range that has to match the other server's copy
+    private final int SNAPSHOT_CHECKED_LENGTH = 4096;
+    // request timestamp, sequence, length, applied timestamp, clock, start of the range and checksum before it
+    private final int SNAPSHOT_HEADER_SIZE = 7 * Long.BYTES;
+    private AtomicLong localTime;
+    // the clock itself is atomic, the lock keeps messages leaving in the order they were stamped in
+    private ReentrantLock clockLock;
     private ServerInfo info;
     private String directoryPath;
-    private PriorityQueue<Message> commandsQueue;
-    private Hashtable<String, Socket> serverSockets;
+    private WireFormat wireFormat;
+    private Compression compression;
+    private ServerTransport transport;
+    private int numberOfIoThreads;
+    private ThreadMode threadMode;
+    private ThreadFactory threadFactory;
+    private ExecutorService clientRequestExecutor;
+    private MutualExclusion mutualExclusion;
+    // one of the two orders the writes, chosen by the mutualExclusion option
+    private MutualExclusionEngine mutualExclusionEngine;
+    private OrderedMulticast orderedMulticast;
+    private int maxBatchSize;
+    private int maxBatchLength;
+    private int peerQueueSize;
+    private int maxReadLength;
+    private int maxFrameLength;
+    private long readTimeout;
+    private FileStore fileStore;
+    private WriteAheadLog writeAheadLog;
+    private ServerMetrics metrics;
+    private int metricsPort;
+    private boolean isRejoining;
+    // client requests wait for it while a rejoining server restores its files
+    private CompletableFuture<Void> restored;
+    // complete once this server has connections to and from every other server
+    private CompletableFuture<Void> ready;
+    // how far the write-ahead log had each file applied when a rejoining server stopped
+    private Hashtable<String, FileSnapshot> recoveredFiles;
+    private Hashtable<String, FileCriticalSession> criticalSessions;
+    private Hashtable<String, WriteBatch> openWriteBatches;
+    // lock requests name their batch by this number instead of carrying its lines to every other server
+    private AtomicLong lockRequestNumber;
+    private Hashtable<String, PeerChannel> serverSockets;
+    private Hashtable<String, MessageChannel> incomingServers;
+    // how far the messages of each other server are handled, and the number telling the other servers this run apart
+    private ReceivedSequences receivedSequences;
+    private long incarnation;
+    // links opened later get higher ids, so a server can tell which link replaces which, see ReceivedSequences
+    private AtomicLong lastLinkId;
     private ArrayList<ServerInfo> otherServers;
-    private Logger logger = new Logger(Logger.LogLevel.Release);
-
-    public ServerNode(ServerInfo serverInfo, ArrayList<ServerInfo> otherServerInfos, String directoryPath) throws IOException {
-        this.localTime = 0;
+    // which servers replicate each file, the others never hear of its writes
+    private HashRing hashRing;
+    private Logger logger;
+
+    public ServerNode(ServerInfo serverInfo, ArrayList<ServerInfo> otherServerInfos, String directoryPath, NodeOptions options) throws IOException {
+        this.logger = new Logger(options.getEnum("logLevel", Logger.LogLevel.class, Logger.LogLevel.Release));
+        this.localTime = new AtomicLong();
+        this.clockLock = new ReentrantLock();
         this.info = serverInfo;
         this.directoryPath = directoryPath;
+        this.wireFormat = options.getEnum("wireFormat", WireFormat.class, WireFormat.Binary);
+        this.compression = options.getEnum("compression", Compression.class, Compression.None);
+        this.compression.checkWireFormat(this.wireFormat);
+        this.transport = options.getEnum("transport", ServerTransport.class, ServerTransport.Nio);
+        this.numberOfIoThreads = options.getInt("ioThreads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+        this.threadMode = options.getEnum("threads", ThreadMode.class, ThreadMode.Platform);
+        this.threadFactory = threadMode.newThreadFactory(serverInfo.getName());
+        this.clientRequestExecutor = threadMode.newExecutor(serverInfo.getName() + "-client");
+        this.mutualExclusion = options.getEnum("mutualExclusion", MutualExclusion.class, MutualExclusion.Lamport);
+        this.maxBatchSize = options.getInt("maxBatchSize", 256);
+        this.maxBatchLength = options.getInt("maxBatchLength", 16 * 1024);
+        this.peerQueueSize = options.getInt("peerQueueSize", 4096);
+        this.maxReadLength = options.getInt("maxReadLength", 64 * 1024);
+        this.maxFrameLength = options.getInt("maxFrameLength", MessageCodec.DEFAULT_MAX_FRAME_LENGTH);
+        this.readTimeout = options.getLong("readTimeout", 1000);
         this.otherServers = otherServerInfos;
+        this.hashRing = new HashRing(getServerNames(), options.getInt("replicationFactor", 0));
         this.serverSockets = new Hashtable<>();
-        this.commandsQueue = new PriorityQueue<>();
+        this.incomingServers = new Hashtable<>();
+        this.receivedSequences = new ReceivedSequences(serverInfo.getName(), logger);
+        this.incarnation = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+        this.lastLinkId = new AtomicLong(System.currentTimeMillis() << 16);
+        this.ready = otherServerInfos.isEmpty() ? CompletableFuture.completedFuture(null) : new CompletableFuture<>();
+        this.criticalSessions = new Hashtable<>();
+        this.openWriteBatches = new Hashtable<>();
+        this.lockRequestNumber = new AtomicLong();
+
+        this.isRejoining = Boolean.parseBoolean(options.get("rejoin", "false"));
+        this.restored = isRejoining ? new CompletableFuture<>() : CompletableFuture.completedFuture(null);
+
+        if (mutualExclusion.isMulticast()) {
+            this.orderedMulticast = mutualExclusion.newMulticast(new EngineNode(), logger);
+        }
+        else {
+            this.mutualExclusionEngine = mutualExclusion.newEngine(new EngineNode(), isRejoining, logger);
+        }
+
+        if (!isRejoining) {
+            logger.debug("Truncate directories '%s' (absolute path = '%s')", directoryPath, new File(directoryPath).getAbsolutePath());
+            FileUtil.truncateAllFilesInDirectory(directoryPath);
+        }
 
-        logger.debug(String.format("Truncate directories '%s' (absolute path = '%s')", directoryPath, new File(directoryPath).getAbsolutePath()));
-        FileUtil.truncateAllFilesInDirectory(directoryPath);
+        this.metricsPort = options.getInt("metricsPort", 0);
+        this.metrics = new ServerMetrics(serverInfo.getName(),
+                () -> criticalSessions.values().stream().mapToInt(FileCriticalSession::getQueueSize).sum(), logger);
+
+        var durability = options.getEnum("durability", Durability.class, Durability.None);
+        this.writeAheadLog = new WriteAheadLog(directoryPath, serverInfo.getName(), options.getLong("walSegmentSize", 64L * 1024 * 1024),
+                options.getLong("walCheckpointInterval", 1000), durability != Durability.None,
+                Boolean.parseBoolean(options.get("writeAheadLog", "true")), logger);
+
+        this.fileStore = new FileStore(directoryPath, durability, options.getLong("fsyncInterval", 10), writeAheadLog,
+                metrics.getLocalAppendMetric(), logger);
+        this.recoveredFiles = isRejoining ? writeAheadLog.recover() : new Hashtable<>();
+
+        if (isRejoining) {
+            var files = new File(directoryPath).listFiles(File::isFile);
+
+            // the clock goes on after every sync the server applied before it stopped
+            setLocalTime(writeAheadLog.getHighestTimeStamp());
+
+            // syncs arriving before the snapshot of their file are kept for after it
+            if (files != null) {
+                for (var file : files) {
+                    if (!isReplicatedHere(file.getName())) {
+                        continue;
+                    }
+
+                    var criticalSession = getCriticalSession(file.getName());
+                    var recoveredFile = recoveredFiles.get(file.getName());
+
+                    if (recoveredFile != null) {
+                        criticalSession.recover(recoveredFile);
+                    }
+
+                    criticalSession.holdSyncs();
+                }
+            }
+        }
+        else {
+            writeAheadLog.reset();
+        }
     }
 
     public void up() throws IOException {
-        logger.log(String.format("%s starts listening on (%s:%d)...", this.info.getName(), this.info.getIpAddress(), this.info.getPort()));
+        logger.log("%s starts listening on (%s:%d) using %s transport, %s threads and %s mutual exclusion...",
+                this.info.getName(), this.info.getIpAddress(), this.info.getPort(), transport, threadMode, mutualExclusion);
 
-        var serverSocket = new ServerSocket(this.info.getPort(), 100, InetAddress.getByName(this.info.getIpAddress()));
+        fileStore.start(this.info.getName());
+        metrics.start(metricsPort);
 
-        var listenThread = new Thread(() -> {
-            try {
-                listenForIncomingMessages(serverSocket);
-            }
-            catch (IOException e) {
-                e.printStackTrace();
-            }
-        });
-        listenThread.start();
+        if (transport == ServerTransport.Nio) {
+            var nioTransport = new NioServerTransport(this.info, numberOfIoThreads, this::acceptServer, this::handleServerMessage,
+                    this::handleClientMessage, threadMode.newExecutor(this.info.getName() + "-server"), clientRequestExecutor, maxFrameLength, logger);
+            nioTransport.start();
+        }
+        else {
+            var serverSocket = new ServerSocket(this.info.getPort(), 100, InetAddress.getByName(this.info.getIpAddress()));
 
-        var linkToOtherServersThread = new Thread(() -> {
+            // always a platform thread since virtual threads are daemon threads and would not keep the server alive
+            var listenThread = new Thread(() -> {
+                try {
+                    listenForIncomingMessages(serverSocket);
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            listenThread.start();
+        }
+
+        var linkToOtherServersThread = threadFactory.newThread(() -> {
             try {
                 populateServerSockets();
+
+                if (isRejoining) {
+                    restoreFiles();
+                }
             }
             catch (InterruptedException e) {
                 e.printStackTrace();
@@ -66,44 +222,101 @@ public class ServerNode {
             return;
         }
 
-        for (var trial = 0; trial < 5; trial++) {
-            for (var otherServer : this.otherServers) {
-                if (serverSockets.containsKey(otherServer.getName())) {
-                    continue;
-                }
-
-                logger.debug(String.format("%s tries to connect to %s...", this.info.getName(), otherServer));
+        // the servers start in any order, each one is connected to on its own thread as soon as it listens
+        var connected = new CountDownLatch(otherServers.size());
 
+        for (var otherServer : this.otherServers) {
+            threadFactory.newThread(() -> {
                 try {
-                    var socket = new Socket(otherServer.getIpAddress(), otherServer.getPort());
-                    sendMessage(socket, String.format("Server %s", this.info.getName()), otherServer.getName());
-                    serverSockets.put(otherServer.getName(), socket);
-
-                    logger.debug(String.format("%s successfully connects to %s", this.info.getName(), otherServer));
+                    connectToServer(otherServer);
                 }
-                catch (IOException ignored) {
-                    logger.debug(String.format("%s fails to connect to %s - attempt %d", this.info.getName(), otherServer, trial + 1));
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
-            }
 
-            if (serverSockets.keySet().size() == otherServers.size()) {
-                break;
-            }
-            else {
-                Thread.sleep(500);
-            }
+                connected.countDown();
+            }).start();
         }
 
+        // a rejoining server restores its files from the servers that are up, the others are connected to later
+        connected.await(SNAPSHOT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
         if (serverSockets.size() == 0) {
-            logger.debug(String.format("%s cannot connect to any other servers", this.info.getName()));
+            logger.debug("%s cannot connect to any other servers", this.info.getName());
         }
         else if (serverSockets.size() < otherServers.size()) {
             var successfulServers = String.join(", ", serverSockets.keySet());
-            logger.debug(String.format("%s successfully connects to %s server(s): (%s)",
-                    this.info.getName(), serverSockets.size(), successfulServers));
+            logger.debug("%s successfully connects to %s server(s): (%s)",
+                    this.info.getName(), serverSockets.size(), successfulServers);
         }
         else {
-            logger.debug(String.format("%s connect to all server(s)", this.info.getName()));
+            logger.debug("%s connect to all server(s)", this.info.getName());
+        }
+    }
+
+    private void connectToServer(ServerInfo otherServer) throws InterruptedException {
+        logger.debug("%s tries to connect to %s...", this.info.getName(), otherServer);
+
+        var serverSocket = newPeerChannel(otherServer.getName());
+
+        while (true) {
+            try {
+                openConnection(otherServer, serverSocket, Long.MAX_VALUE);
+
+                if (isRejoining) {
+                    announceRejoin(otherServer.getName(), serverSocket);
+                }
+
+                serverSockets.put(otherServer.getName(), serverSocket);
+                logger.debug("%s successfully connects to %s", this.info.getName(), otherServer);
+
+                // a connection that broke before the link was in place had nobody to connect it again
+                if (!serverSocket.isConnected()) {
+                    reconnectLazily(serverSocket);
+                }
+
+                checkReady();
+                return;
+            }
+            catch (IOException e) {
+                // the server listened but dropped the connection, it is most likely stopping
+                logger.debug("%s fails to connect to %s: %s", this.info.getName(), otherServer, e.getMessage());
+                Thread.sleep(MAX_RECONNECT_DELAY_MILLIS);
+            }
+        }
+    }
+
+    private PeerChannel newPeerChannel(String serverName) {
+        return new PeerChannel(this.info.getName(), serverName, lastLinkId.incrementAndGet(), peerQueueSize, threadFactory,
+                this::reconnectLazily, logger);
+    }
+
+    /**
+     * Opens a connection of the link, waiting up to the timeout for the server to listen. Returns false when the server
+     * no longer knows the link, see PeerChannel.connect.
+     */
+    private boolean openConnection(ServerInfo otherServer, PeerChannel serverSocket, long timeoutMillis) throws IOException, InterruptedException {
+        var connection = Connection.open(otherServer.getIpAddress(), otherServer.getPort(), getServerHandshake(serverSocket.getLinkId()),
+                wireFormat, compression, timeoutMillis);
+        connection.setMaxFrameLength(maxFrameLength);
+
+        try {
+            if (serverSocket.connect(connection)) {
+                return true;
+            }
+        }
+        catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+
+        connection.close();
+        return false;
+    }
+
+    private void checkReady() {
+        if (serverSockets.size() >= otherServers.size() && incomingServers.size() >= otherServers.size() && ready.complete(null)) {
+            logger.log("%s is connected to and from every other server", this.info.getName());
         }
     }
 
@@ -112,12 +325,18 @@ public class ServerNode {
 
         while (true) {
             incomingSocket = serverSocket.accept();
-            var finalSocket = incomingSocket;
+            var finalSocket = Connection.accept(incomingSocket);
+            finalSocket.setMaxFrameLength(maxFrameLength);
 
-            logger.debug(String.format("%s receives new request from %s", this.info.getName(), incomingSocket));
+            logger.debug("%s receives new request from %s", this.info.getName(), finalSocket);
 
             if (isServerSocket(finalSocket)) {
-                var thread = new Thread(() -> {
+                if (!acceptServer(finalSocket)) {
+                    finalSocket.close();
+                    continue;
+                }
+
+                var thread = threadFactory.newThread(() -> {
                     try {
                         handleServerServerCommunication(finalSocket);
                     }
@@ -129,7 +348,7 @@ public class ServerNode {
                 thread.start();
             }
             else {
-                var thread = new Thread(() -> {
+                var thread = threadFactory.newThread(() -> {
                     try {
                         handleClientServerCommunication(finalSocket);
                     }
@@ -143,43 +362,12 @@ public class ServerNode {
         }
     }
 
-    private void handleServerServerCommunication(Socket socket) throws IOException {
+    private void handleServerServerCommunication(Connection socket) throws IOException {
         var communicationOn = true;
-        var dis = new DataInputStream(socket.getInputStream());
 
         while (communicationOn) {
             try {
-                var receivedMessageString = dis.readUTF();
-                var receivedMessage = new Message(receivedMessageString);
-
-                logger.log(String.format("%s receives '%s' from %s", this.info.getName(), receivedMessageString, receivedMessage.getSenderName()));
-
-                setLocalTime(receivedMessage.getTimeStamp());
-                incrementLocalTime();
-
-                if (receivedMessage.getType() == Message.MessageType.WriteAcquireRequest) {
-                    addToQueue(receivedMessage);
-
-                    var responseMessage = new Message(this.info.getName(), Message.MessageType.WriteAcquireResponse, localTime, receivedMessage.getPayload());
-                    var serverSocket = serverSockets.get(receivedMessage.getSenderName());
-                    sendMessage(serverSocket, responseMessage.toString(), receivedMessage.getSenderName());
-                }
-                else if (receivedMessage.getType() == Message.MessageType.WriteAcquireResponse) {
-                    addToQueue(receivedMessage);
-                }
-                else if (receivedMessage.getType() == Message.MessageType.WriteReleaseRequest) {
-                    // only remove the WriteAcquireRequest counterpart
-                    removeFromQueue(m ->
-                            m.getSenderName().equals(receivedMessage.getSenderName()) &&
-                                    m.getType() == Message.MessageType.WriteAcquireRequest &&
-                                    m.getTimeStamp() < receivedMessage.getTimeStamp());
-                }
-                else if (receivedMessage.getType() == Message.MessageType.WriteSyncRequest) {
-                    // append to file directly since this message type can only occur when 1 and only 1 server process in critical session
-                    var fileName = receivedMessage.getFileNameFromPayload();
-                    var lineToAppend = receivedMessage.getDataFromPayload();
-                    appendToFile(fileName, lineToAppend);
-                }
+                handleServerMessage(socket, socket.receive());
             }
             catch (Exception e) {
                 communicationOn = false;
@@ -187,168 +375,854 @@ public class ServerNode {
             }
         }
 
-        dis.close();
+        socket.close();
     }
 
-    private void handleClientServerCommunication(Socket socket) throws IOException {
+    private void handleClientServerCommunication(Connection socket) throws IOException {
         var communicationOn = true;
-        var dis = new DataInputStream(socket.getInputStream());
 
         while (communicationOn) {
             try {
-                var receivedMessageString = dis.readUTF();
-                var receivedMessage = new Message(receivedMessageString);
+                var receivedMessage = socket.receive();
 
-                logger.log(String.format("%s receives '%s' from %s", this.info.getName(), receivedMessageString, receivedMessage.getSenderName()));
+                // a client can have several requests in flight, each waits for the critical session on its own
+                clientRequestExecutor.execute(() -> {
+                    try {
+                        handleClientMessage(socket, receivedMessage);
+                    }
+                    catch (Exception e) {
+                        try {
+                            socket.close();
+                        }
+                        catch (IOException ignored) {
+                        }
+                    }
+                });
+            }
+            catch (Exception e) {
+                communicationOn = false;
+            }
+        }
+
+        socket.close();
+    }
+
+    private void handleServerMessage(MessageChannel socket, Message receivedMessage) throws Exception {
+        var handshake = socket.getHandshake();
+        var serverName = getServerName(handshake);
+
+        if (!receivedSequences.handle(serverName, getLinkId(handshake), socket, receivedMessage, this::handleServerMessageOnce)) {
+            return;
+        }
+
+        var sequence = receivedMessage.getRequestId();
 
-                setLocalTime(receivedMessage.getTimeStamp());
-                incrementLocalTime();
+        if (sequence != 0 && sequence % ReceivedSequences.ACKNOWLEDGEMENT_INTERVAL == 0) {
+            socket.send(newLinkAck(sequence));
+        }
+    }
 
-                var fileName = receivedMessage.getFileNameFromPayload();
-                var fullPath = Paths.get(directoryPath, fileName).toAbsolutePath();
-                Message responseMessage;
+    private Message newLinkAck(long sequence) {
+        // not stamped, the other server reads it in its PeerChannel and its clock never sees it
+        return new Message(this.info.getName(), Message.MessageType.LinkAck, 0, String.format("%d|%d", sequence, incarnation));
+    }
 
-                if (FileUtil.exists(String.valueOf(fullPath))) {
-                    var writeAcquireRequest = new Message(this.info.getName(), Message.MessageType.WriteAcquireRequest, localTime, receivedMessage.getPayload());
-                    addToQueue(writeAcquireRequest);
+    private void handleServerMessageOnce(MessageChannel socket, Message receivedMessage) throws IOException {
+        logger.debug("%s receives '%s' from %s", this.info.getName(), receivedMessage, receivedMessage.getSenderName());
+        metrics.received(receivedMessage.getType());
 
-                    notifyAllServers(writeAcquireRequest);
+        setLocalTime(receivedMessage.getTimeStamp());
+        incrementLocalTime();
+
+        if (receivedMessage.getType() == Message.MessageType.Rejoin) {
+            // the syncs the server sent again before it are applied by now
+            if (serverSockets.containsKey(receivedMessage.getSenderName())) {
+                threadFactory.newThread(() -> reconnectToServer(receivedMessage.getSenderName())).start();
+            }
+
+            return;
+        }
+
+        if (receivedMessage.getType() == Message.MessageType.SnapshotRequest) {
+            // waits until the file is applied far enough and streams it, the messages behind it must not wait for that
+            threadFactory.newThread(() -> sendSnapshot(receivedMessage)).start();
+            return;
+        }
+
+        if (receivedMessage.getType() == Message.MessageType.WriteSyncRequest) {
+            // appended once the syncs of every earlier critical session of the file are, see FileCriticalSession.addSyncToQueue
+            getCriticalSession(receivedMessage.getFileNameFromPayload()).addSyncToQueue(receivedMessage);
+            return;
+        }
 
-                    processCriticalSession(writeAcquireRequest);
+        clockLock.lock();
 
-                    incrementLocalTime();
+        try {
+            var isHandled = orderedMulticast != null ? orderedMulticast.handle(receivedMessage) : mutualExclusionEngine.handle(receivedMessage);
 
-                    responseMessage = new Message(this.info.getName(), Message.MessageType.WriteSuccessAck, localTime, "");
+            if (!isHandled) {
+                logger.debug("%s ignores '%s', %s mutual exclusion does not use it", this.info.getName(), receivedMessage, mutualExclusion);
+            }
+        }
+        finally {
+            clockLock.unlock();
+        }
+    }
+
+    private void handleClientMessage(MessageChannel socket, Message receivedMessage) throws IOException, InterruptedException, ExecutionException {
+        logger.debug("%s receives '%s' from %s", this.info.getName(), receivedMessage, receivedMessage.getSenderName());
+        metrics.received(receivedMessage.getType());
+
+        restored.get();
+
+        setLocalTime(receivedMessage.getTimeStamp());
+        incrementLocalTime();
+
+        if (receivedMessage.getType() == Message.MessageType.ReadyRequest) {
+            // answered once the servers started after this one are connected, writes sent before would skip them
+            ready.get();
+            sendMessage(socket, new Message(this.info.getName(), Message.MessageType.ReadyAck, incrementLocalTime(), "",
+                    receivedMessage.getRequestId()), receivedMessage.getSenderName());
+            return;
+        }
+
+        if (receivedMessage.getType() == Message.MessageType.ClientReadRequest) {
+            // reads go to the local replica without the critical session
+            sendMessage(socket, readFile(receivedMessage), receivedMessage.getSenderName());
+            return;
+        }
+
+        var fileName = receivedMessage.getFileNameFromPayload();
+        var fullPath = Paths.get(directoryPath, fileName).toAbsolutePath();
+        Message responseMessage;
+
+        // a client that routes with the same ring sends a file's writes to the servers replicating it only
+        if (FileUtil.exists(String.valueOf(fullPath)) && isReplicatedHere(fileName)) {
+            WriteBatch writeBatch;
+            long syncTimeStamp;
+            boolean isBatchLeader;
+
+            // join the batch of a write to the same file that is still waiting for the critical session if there is room,
+            // otherwise lead a new batch
+            synchronized (openWriteBatches) {
+                writeBatch = openWriteBatches.get(fileName);
+                isBatchLeader = writeBatch == null || !writeBatch.add(receivedMessage.getDataFromPayload());
+
+                if (isBatchLeader) {
+                    writeBatch = new WriteBatch(fileName, maxBatchSize, maxBatchLength);
+                    writeBatch.add(receivedMessage.getDataFromPayload());
+                    openWriteBatches.put(fileName, writeBatch);
                 }
-                else {
-                    incrementLocalTime();
+            }
+
+            if (isBatchLeader && orderedMulticast != null) {
+                try {
+                    syncTimeStamp = multicastWriteBatch(writeBatch).get();
+                    writeBatch.complete(syncTimeStamp);
+                }
+                catch (InterruptedException | ExecutionException e) {
+                    writeBatch.fail(e);
+                    throw e;
+                }
+            }
+            else if (isBatchLeader) {
+                Message writeAcquireRequest;
+                clockLock.lock();
 
-                    responseMessage = new Message(this.info.getName(), Message.MessageType.WriteFailureAck, localTime, "");
+                try {
+                    writeAcquireRequest = mutualExclusionEngine.request(String.format("%s|%d", fileName, lockRequestNumber.incrementAndGet()));
+                }
+                catch (IOException e) {
+                    closeWriteBatch(writeBatch);
+                    writeBatch.fail(e);
+                    throw e;
+                }
+                finally {
+                    clockLock.unlock();
                 }
 
-                sendMessage(socket, responseMessage.toString(), receivedMessage.getSenderName());
+                try {
+                    // the lines are written out after leaving the critical session, the clients are answered once they are
+                    syncTimeStamp = processCriticalSession(writeAcquireRequest, writeBatch).get();
+                    writeBatch.complete(syncTimeStamp);
+                }
+                catch (InterruptedException | ExecutionException e) {
+                    closeWriteBatch(writeBatch);
+                    writeBatch.fail(e);
+                    throw e;
+                }
             }
-            catch (Exception e) {
-                communicationOn = false;
+            else {
+                syncTimeStamp = writeBatch.awaitCommit();
             }
+
+            // the client can ask for a read that sees this write with the timestamp of its sync
+            responseMessage = new Message(this.info.getName(), Message.MessageType.WriteSuccessAck, incrementLocalTime(),
+                    String.format("%s|%d", fileName, syncTimeStamp), receivedMessage.getRequestId());
+        }
+        else {
+            responseMessage = new Message(this.info.getName(), Message.MessageType.WriteFailureAck, incrementLocalTime(), "", receivedMessage.getRequestId());
         }
 
-        dis.close();
+        sendMessage(socket, responseMessage, receivedMessage.getSenderName());
     }
 
-    private boolean isServerSocket(Socket socket) throws IOException {
-        var dis = new DataInputStream(socket.getInputStream());
-        var socketType = dis.readUTF();
-        return socketType.toLowerCase().startsWith("server");
+    private boolean isServerSocket(Connection socket) {
+        // the handshake has been read by Connection.accept, which also picked the wire format the peer asked for
+        return socket.getHandshake().toLowerCase().startsWith("server");
     }
 
-    private void sendMessage(Socket socket, String messageText, String recipientName) throws IOException {
-        logger.log(String.format("%s sends '%s' to %s", this.info.getName(), messageText, recipientName));
+    private boolean isCompatibleServer(MessageChannel socket) {
+        // servers that do not announce an algorithm predate the option and run Lamport's
+        var handshake = socket.getHandshake();
+        var flagIndex = handshake.lastIndexOf(MUTUAL_EXCLUSION_FLAG);
+        var otherMutualExclusion = flagIndex < 0 ? MutualExclusion.Lamport.toString() : handshake.substring(flagIndex + MUTUAL_EXCLUSION_FLAG.length());
 
-        var dos = new DataOutputStream(socket.getOutputStream());
-        dos.writeUTF(messageText);
+        if (!otherMutualExclusion.equals(mutualExclusion.toString())) {
+            logger.log("%s rejects %s: it runs %s mutual exclusion instead of %s",
+                    this.info.getName(), socket.toString(), otherMutualExclusion, mutualExclusion);
+            return false;
+        }
+
+        return true;
     }
 
-    private synchronized void incrementLocalTime() {
-        localTime += TIME_DIFFERENCE_BETWEEN_PROCESSES;
+    private boolean acceptServer(MessageChannel socket) {
+        if (!isCompatibleServer(socket)) {
+            return false;
+        }
+
+        var serverName = getServerName(socket.getHandshake());
+
+        var lastSequence = receivedSequences.open(serverName, getLinkId(socket.getHandshake()));
+
+        if (lastSequence < 0) {
+            logger.debug("%s rejects %s: the link has been replaced or misses messages", this.info.getName(), socket);
+            return false;
+        }
+
+        try {
+            // the other server sends again what it has no acknowledgement for, starting after this
+            socket.send(newLinkAck(lastSequence));
+        }
+        catch (IOException e) {
+            logger.debug("%s cannot acknowledge %s: %s", this.info.getName(), socket, e.getMessage());
+            return false;
+        }
+
+        incomingServers.put(serverName, socket);
+        checkReady();
+
+        return true;
     }
 
-    private synchronized void setLocalTime(int messageTimeStamp) {
-        localTime = Math.max(localTime, messageTimeStamp + TIME_DIFFERENCE_BETWEEN_PROCESSES);
+    private String getServerHandshake(long linkId) {
+        return String.format("Server %s%s%d%s%s", this.info.getName(), LINK_FLAG, linkId, MUTUAL_EXCLUSION_FLAG, mutualExclusion);
     }
 
-    private synchronized void addToQueue(Message message) {
-        logger.debug(String.format("Adding message '%s' to the queue", message.toString()));
-        logger.debug("Queue size before add = " + commandsQueue.size());
+    private long getLinkId(String handshake) {
+        // servers that do not name their links do not number their messages either
+        var flagIndex = handshake.indexOf(LINK_FLAG);
 
-        commandsQueue.add(message);
+        if (flagIndex < 0) {
+            return 0;
+        }
 
-        logger.debug("Queue size after add = " + commandsQueue.size());
+        var endIndex = handshake.indexOf('|', flagIndex + LINK_FLAG.length());
+        return Long.parseLong(handshake.substring(flagIndex + LINK_FLAG.length(), endIndex < 0 ? handshake.length() : endIndex));
     }
 
+    /**
+     * Sends the latest own sync of each file, as the write-ahead log kept it, to a server it connects to again,
+     * followed by the Rejoin that makes it drop the requests this server lost. Nothing else has been sent on the
+     * connection yet, so the server has them before this server can confirm any request of it.
+     */
+    private void announceRejoin(String serverName, PeerChannel serverSocket) throws IOException {
+        for (var ownLatestSync : writeAheadLog.getOwnLatestSyncs()) {
+            if (hashRing.isReplica(ownLatestSync.getFileNameFromPayload(), serverName)) {
+                sendMessage(serverSocket, ownLatestSync, serverName);
+            }
+        }
+
+        clockLock.lock();
+
+        try {
+            sendMessage(serverSocket, stampMessage(Message.MessageType.Rejoin, ""), serverName);
+        }
+        finally {
+            clockLock.unlock();
+        }
+    }
+
+    private static String getServerName(String handshake) {
+        var flagIndex = handshake.indexOf('|');
+        return handshake.substring("Server ".length(), flagIndex < 0 ? handshake.length() : flagIndex);
+    }
 
-    private synchronized void removeFromQueue(Predicate<Message> filter) {
-        logger.debug("Removing messages off the queue");
-        logger.debug("Queue size before remove = " + commandsQueue.size());
+    private ArrayList<String> getServerNames() {
+        var serverNames = new ArrayList<String>();
+        serverNames.add(this.info.getName());
 
-        var removingMessages = commandsQueue.stream().filter(filter).collect(Collectors.toList());
-        for(var message : removingMessages) {
-            logger.debug(String.format("Removing '%s' from the queue", message.toString()));
+        for (var otherServer : otherServers) {
+            serverNames.add(otherServer.getName());
         }
 
-        commandsQueue.removeAll(removingMessages);
+        return serverNames;
+    }
 
-        logger.debug("Queue size after remove = " + commandsQueue.size());
+    private boolean isReplicatedHere(String fileName) {
+        return hashRing.isReplica(fileName, this.info.getName());
     }
 
-    private boolean isMessageFirstInQueue(Message message) {
-        if (commandsQueue.isEmpty()) {
-            return true;
+    private ServerInfo getServerInfo(String serverName) {
+        for (var otherServer : otherServers) {
+            if (otherServer.getName().equals(serverName)) {
+                return otherServer;
+            }
         }
 
-        var top = commandsQueue.peek();
+        throw new IllegalArgumentException(String.format("%s is not one of the other servers", serverName));
+    }
+
+    /**
+     * Replaces the link to a server that rejoined and sends it the own requests still waiting for it again. The server
+     * lost its state, so its requests are forgotten here as well, and what the old link still had for it is dropped,
+     * it takes the files over from a snapshot instead.
+     */
+    private void reconnectToServer(String serverName) {
+        var otherServer = getServerInfo(serverName);
+        var serverSocket = newPeerChannel(serverName);
+
+        PeerChannel previousSocket;
+        clockLock.lock();
+
+        try {
+            // the multicast keeps the writes of the server queued until they are stable, it has no requests to resend
+            if (mutualExclusionEngine != null) {
+                mutualExclusionEngine.forgetServer(serverName);
+            }
 
-        logger.debug("Top of queue = " + top.toString());
-        logger.debug("Current message = " + message.toString());
+            // nothing is stamped until the new link replaces the old one, so the own requests that the server lost
+            // reach it before anything later and its answers to them are not sent into the old link
+            var ownRequests = mutualExclusionEngine != null ? mutualExclusionEngine.getOwnRequests(serverName) : new ArrayList<Message>();
 
-        return top.getSenderName().equals(message.getSenderName()) &&
-                top.getTimeStamp() == message.getTimeStamp();
+            for (var ownRequest : ownRequests) {
+                if (hashRing.isReplica(ownRequest.getFileNameFromPayload(), serverName)) {
+                    sendMessage(serverSocket, ownRequest, serverName);
+                }
+            }
+
+            previousSocket = serverSockets.put(serverName, serverSocket);
+        }
+        catch (IOException e) {
+            // only an interrupt gets here, the new link queues whatever it is sent until it is connected
+            logger.log("%s cannot send its requests to %s again: %s", this.info.getName(), otherServer, e.getMessage());
+            return;
+        }
+        finally {
+            clockLock.unlock();
+        }
+
+        try {
+            if (previousSocket != null) {
+                previousSocket.close();
+            }
+        }
+        catch (IOException ignored) {
+        }
+
+        connectLink(otherServer, serverSocket);
+    }
+
+    /**
+     * Connects the link to the server again in the background after its connection broke, the link then sends what
+     * the server has not received. Gives up once the link is replaced, or once the server turns out to have restarted,
+     * it rejoins and gets a new link then.
+     */
+    private void reconnectLazily(PeerChannel serverSocket) {
+        for (var otherServer : otherServers) {
+            if (serverSockets.get(otherServer.getName()) == serverSocket) {
+                threadFactory.newThread(() -> connectLink(otherServer, serverSocket)).start();
+            }
+        }
+    }
+
+    private void connectLink(ServerInfo otherServer, PeerChannel serverSocket) {
+        try {
+            while (serverSockets.get(otherServer.getName()) == serverSocket && !serverSocket.isClosed() && !serverSocket.isConnected()) {
+                try {
+                    if (openConnection(otherServer, serverSocket, RECONNECT_TIMEOUT_MILLIS)) {
+                        logger.log("%s connects to %s again", this.info.getName(), otherServer);
+                    }
+                    else if (!serverSocket.isClosed()) {
+                        logger.log("%s waits for %s to rejoin, it restarted", this.info.getName(), otherServer);
+                    }
+
+                    return;
+                }
+                catch (IOException e) {
+                    logger.debug("%s cannot connect to %s again: %s", this.info.getName(), otherServer, e.getMessage());
+                    Thread.sleep(MAX_RECONNECT_DELAY_MILLIS);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void restoreFiles() {
+        try {
+            // the other servers send all later syncs over their connections to this one, so they have to be there first
+            var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SNAPSHOT_TIMEOUT_MILLIS);
+
+            while (incomingServers.size() < otherServers.size() && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+            }
+
+            try (var snapshotListener = ServerSocketChannel.open()) {
+                snapshotListener.bind(new InetSocketAddress(this.info.getIpAddress(), 0));
+                snapshotListener.socket().setSoTimeout((int) (2 * SNAPSHOT_TIMEOUT_MILLIS));
+
+                for (var criticalSession : new ArrayList<>(criticalSessions.values())) {
+                    if (isReplicatedHere(criticalSession.getFileName())) {
+                        restoreFile(criticalSession, snapshotListener);
+                    }
+                }
+            }
+
+            restored.complete(null);
+        }
+        catch (IOException | InterruptedException e) {
+            logger.log("%s cannot restore its files: %s", this.info.getName(), e.toString());
+            restored.completeExceptionally(e);
+        }
+    }
+
+    private void restoreFile(FileCriticalSession criticalSession, ServerSocketChannel snapshotListener) throws IOException {
+        var fileName = criticalSession.getFileName();
+        var startTime = System.nanoTime();
+        var localLength = fileStore.getSize(fileName);
+        var length = localLength;
+        var recoveredFile = recoveredFiles.get(fileName);
+        // the other servers have applied at least what the write-ahead log has, the latest own syncs were sent again
+        var missingSequence = recoveredFile == null ? 0 : recoveredFile.getSequence();
+        var isFirstSnapshot = true;
+
+        // syncs that arrive after a snapshot but show that some before them are missing need another one
+        while (missingSequence >= 0) {
+            var snapshot = requestSnapshot(fileName, length, missingSequence, snapshotListener);
+
+            if (snapshot == null) {
+                if (!isFirstSnapshot) {
+                    throw new IOException(String.format("No server has the syncs of %s from %d on", fileName, missingSequence));
+                }
+
+                // nobody else has the file applied, as when the whole cluster restarts, the own copy is all there is and
+                // the write-ahead log knows how many syncs it holds
+                logger.log("%s keeps its copy of %s, no other server has it applied", this.info.getName(), fileName);
+                snapshot = recoveredFile != null ? recoveredFile : new FileSnapshot(0, localLength, 0, CompletableFuture.completedFuture(null));
+                fileStore.logSnapshot(fileName, snapshot, this.info.getName());
+            }
+
+            isFirstSnapshot = false;
+
+            length = snapshot.getLength();
+            missingSequence = criticalSession.restoreSnapshot(snapshot);
+        }
+
+        logger.log("%s restores %s to %d bytes (%d bytes kept) in %.3f ms", this.info.getName(), fileName, length,
+                Math.min(localLength, length), (System.nanoTime() - startTime) / 1_000_000.0);
+    }
+
+    private FileSnapshot requestSnapshot(String fileName, long offset, long minSequence, ServerSocketChannel snapshotListener) throws IOException {
+        for (var serverName : new ArrayList<>(serverSockets.keySet())) {
+            // the other servers have never applied a sync of the file
+            if (!hashRing.isReplica(fileName, serverName)) {
+                continue;
+            }
+
+            try {
+                var snapshot = requestSnapshot(serverName, fileName, offset, minSequence, snapshotListener);
+
+                if (snapshot != null) {
+                    return snapshot;
+                }
+            }
+            catch (IOException e) {
+                logger.log("%s cannot get %s from %s: %s", this.info.getName(), fileName, serverName, e.toString());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Asks the other server to connect back and send how far it has applied the file, followed by its bytes from the
+     * offset on. Returns null if it has not applied the file far enough.
+     */
+    private FileSnapshot requestSnapshot(String serverName, String fileName, long offset, long minSequence, ServerSocketChannel snapshotListener) throws IOException {
+        Message snapshotRequest;
+        clockLock.lock();
+
+        try {
+            snapshotRequest = stampMessage(Message.MessageType.SnapshotRequest,
+                    String.format("%s|%d|%d|%d", fileName, offset, minSequence, snapshotListener.socket().getLocalPort()));
+            sendMessage(serverSockets.get(serverName), snapshotRequest, serverName);
+        }
+        finally {
+            clockLock.unlock();
+        }
+
+        boolean isDifferentCopy;
+
+        while (true) {
+            try (var socketChannel = snapshotListener.socket().accept().getChannel()) {
+                var header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+
+                while (header.hasRemaining()) {
+                    if (socketChannel.read(header) < 0) {
+                        throw new IOException(String.format("%s closes the snapshot of %s", serverName, fileName));
+                    }
+                }
+
+                // the answer to an earlier request that timed out
+                if (header.flip().getLong() != snapshotRequest.getTimeStamp()) {
+                    continue;
+                }
+
+                var sequence = header.getLong();
+                var length = header.getLong();
+                var appliedTimeStamp = header.getLong();
+                var clock = header.getLong();
+                var start = header.getLong();
+                var checksum = header.getLong();
+
+                if (sequence < 0) {
+                    return null;
+                }
+
+                setLocalTime(clock);
+
+                isDifferentCopy = fileStore.getChecksum(fileName, Math.max(0, start - SNAPSHOT_CHECKED_LENGTH), start) != checksum;
+
+                if (!isDifferentCopy) {
+                    fileStore.receiveRange(fileName, start, length - start, socketChannel);
+
+                    var snapshot = new FileSnapshot(sequence, length, appliedTimeStamp, CompletableFuture.completedFuture(null));
+                    fileStore.logSnapshot(fileName, snapshot, serverName);
+                    return snapshot;
+                }
+            }
+
+            break;
+        }
+
+        // the own copy ends with lines the other server does not have, as when this one stopped inside its own critical
+        // session, so it is replaced as a whole
+        logger.log("%s has a different copy of %s than %s", this.info.getName(), fileName, serverName);
+        return requestSnapshot(serverName, fileName, 0, minSequence, snapshotListener);
+    }
+
+    private void sendSnapshot(Message snapshotRequest) {
+        var request = snapshotRequest.getPayload().split("\\|");
+        var fileName = request[0];
+        var fullPath = Paths.get(directoryPath, fileName).toAbsolutePath();
+        var requester = getServerInfo(snapshotRequest.getSenderName());
+
+        try {
+            var offset = Long.parseLong(request[1]);
+            var minSequence = Long.parseLong(request[2]);
+            FileSnapshot snapshot = null;
+
+            if (FileUtil.exists(String.valueOf(fullPath)) && isReplicatedHere(fileName)) {
+                snapshot = getCriticalSession(fileName).takeSnapshot(minSequence, SNAPSHOT_TIMEOUT_MILLIS);
+            }
+
+            if (snapshot != null) {
+                snapshot.getWritten().get();
+            }
+
+            var header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+            var start = 0L;
+            var end = 0L;
+
+            header.putLong(snapshotRequest.getTimeStamp());
+
+            if (snapshot == null) {
+                header.putLong(-1);
+                logger.log("%s has not applied %s far enough for %s", this.info.getName(), fileName, requester.getName());
+            }
+            else {
+                start = Math.min(offset, snapshot.getLength());
+                end = snapshot.getLength();
+
+                header.putLong(snapshot.getSequence())
+                        .putLong(end)
+                        .putLong(snapshot.getAppliedTimeStamp())
+                        .putLong(localTime.get())
+                        .putLong(start)
+                        .putLong(fileStore.getChecksum(fileName, Math.max(0, start - SNAPSHOT_CHECKED_LENGTH), start));
+            }
+
+            try (var socketChannel = SocketChannel.open(new InetSocketAddress(requester.getIpAddress(), Integer.parseInt(request[3])))) {
+                header.clear();
+
+                while (header.hasRemaining()) {
+                    socketChannel.write(header);
+                }
+
+                fileStore.sendRange(fileName, start, end, socketChannel);
+            }
+
+            if (snapshot != null) {
+                logger.log("%s sends %s to %s from byte %d to %d", this.info.getName(), fileName, requester.getName(), start, end);
+            }
+        }
+        catch (IOException | InterruptedException | ExecutionException | RuntimeException e) {
+            logger.log("%s cannot send %s to %s: %s", this.info.getName(), fileName, requester.getName(), e.toString());
+        }
     }
 
-    private boolean isAllConfirmToAllowEnterCriticalSession(Message writeAcquireRequest) {
-        var allSendersAfterWriteRequest = commandsQueue
-                .stream()
-                .filter(message -> message.getTimeStamp() > writeAcquireRequest.getTimeStamp())
-                .map(Message::getSenderName)
-                .distinct()
-                .toArray(String[]::new);
+    private void sendMessage(MessageChannel socket, Message message, String recipientName) throws IOException {
+        logger.debug("%s sends '%s' to %s", this.info.getName(), message, recipientName);
 
-        logger.debug("All senders after request = " + String.join(", ", allSendersAfterWriteRequest));
+        socket.send(message);
+        metrics.sent(message.getType());
+    }
 
-        return allSendersAfterWriteRequest.length >= serverSockets.size();
+    private long incrementLocalTime() {
+        return localTime.addAndGet(TIME_DIFFERENCE_BETWEEN_PROCESSES);
     }
 
-    private void processCriticalSession(Message writeAcquireRequest) throws InterruptedException, IOException {
-        logger.debug(String.format("Checking allowance to proceed to critical session for message '%s'...", writeAcquireRequest.toString()));
+    private void setLocalTime(long messageTimeStamp) {
+        localTime.accumulateAndGet(messageTimeStamp + TIME_DIFFERENCE_BETWEEN_PROCESSES, Math::max);
+    }
+
+    private Message stampMessage(Message.MessageType type, String payload) {
+        // callers hold the clock lock until the message is queued, so that messages to a peer always leave in timestamp
+        // order, which Lamport's algorithm relies on when a later timestamp is taken as confirmation. Only the own sync,
+        // which confirms nothing, is stamped without it
+        return new Message(this.info.getName(), type, incrementLocalTime(), payload);
+    }
 
-        while (!isMessageFirstInQueue(writeAcquireRequest) || !isAllConfirmToAllowEnterCriticalSession(writeAcquireRequest)) {
-            logger.debug("Waiting for critical session access...");
-            Thread.sleep(100);
+    private void closeWriteBatch(WriteBatch writeBatch) {
+        synchronized (openWriteBatches) {
+            openWriteBatches.remove(writeBatch.getFileName(), writeBatch);
+            writeBatch.close();
         }
+    }
+
+    private CompletableFuture<Long> multicastWriteBatch(WriteBatch writeBatch) {
+        clockLock.lock();
+
+        try {
+            // there is no critical session to wait for, only the writes arriving while the clock lock is taken join the batch
+            closeWriteBatch(writeBatch);
+            return orderedMulticast.multicast(String.format("%s|%s", writeBatch.getFileName(), writeBatch.getJoinedLines()));
+        }
+        finally {
+            clockLock.unlock();
+        }
+    }
+
+    private CompletableFuture<Long> processCriticalSession(Message writeAcquireRequest, WriteBatch writeBatch) throws InterruptedException {
+        logger.debug("Checking allowance to proceed to critical session for message '%s'...", writeAcquireRequest);
+
+        var criticalSession = getCriticalSession(writeAcquireRequest.getFileNameFromPayload());
 
-        logger.debug("Going into critical session...");
+        var waitStartTime = System.nanoTime();
+        var headTime = mutualExclusionEngine.waitForAccess(writeAcquireRequest);
+        var accessTime = System.nanoTime();
+        var waitTime = accessTime - waitStartTime;
+
+        metrics.recordHeadWait(headTime - waitStartTime);
+        metrics.recordAcknowledgementWait(accessTime - headTime);
+
+        // writes arriving from now on go to the next batch
+        closeWriteBatch(writeBatch);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("%s enters critical session for '%s' with %d write(s) after waiting %.3f ms",
+                    this.info.getName(), writeAcquireRequest.getPayload(), writeBatch.size(), waitTime / 1_000_000.0);
+        }
 
         var fileName = writeAcquireRequest.getFileNameFromPayload();
-        var lineToAppend = writeAcquireRequest.getDataFromPayload();
-        appendToFile(fileName, lineToAppend);
-        incrementLocalTime();
+        var linesToAppend = writeBatch.getJoinedLines();
+        var syncSequence = criticalSession.nextSyncSequence();
 
-        var writeSyncRequest = new Message(this.info.getName(), Message.MessageType.WriteSyncRequest, localTime, writeAcquireRequest.getPayload());
-        notifyAllServers(writeSyncRequest);
+        // stamped and logged without the clock lock, the peer messages wait for it and not for the write-ahead log. Messages
+        // stamped later may leave before the sync, which is harmless: syncs are ordered by their sequence, and every request
+        // stamped earlier was sent while its stamp was taken
+        var writeSyncRequest = stampMessage(Message.MessageType.WriteSyncRequest, String.format("%s|%d|%s", fileName, syncSequence, linesToAppend));
 
-        // since current writeSyncRequest must be the highest timestamped message in the queue for the current payload,
-        // therefore can remove any message for this payload with lesser timestamp
-        removeFromQueue(m -> m.compareTo(writeSyncRequest) < 0 && m.getPayload().equals(writeSyncRequest.getPayload()));
-        incrementLocalTime();
+        // the own lines go to the file store, and their record to the write-ahead log, with the timestamp of the sync
+        var linesWritten = criticalSession.addOwnSync(writeSyncRequest);
 
-        var writeReleaseRequest = new Message(this.info.getName(), Message.MessageType.WriteReleaseRequest, localTime, "");
-        notifyAllServers(writeReleaseRequest);
-        incrementLocalTime();
+        clockLock.lock();
+
+        try {
+            var broadcastStartTime = System.nanoTime();
+            notifyReachableServers(writeSyncRequest);
+            metrics.recordSyncBroadcast(System.nanoTime() - broadcastStartTime);
+
+            mutualExclusionEngine.release(writeAcquireRequest);
+
+            incrementLocalTime();
+        }
+        finally {
+            clockLock.unlock();
+        }
 
         logger.debug("Going out of critical session access");
+
+        var syncTimeStamp = writeSyncRequest.getTimeStamp();
+        return linesWritten.thenApply(ignored -> syncTimeStamp);
+    }
+
+    private FileCriticalSession getCriticalSession(String fileName) {
+        // each file has its own request queue so that writes to different files do not block each other
+        return criticalSessions.computeIfAbsent(fileName, name -> new FileCriticalSession(name, this.info.getName(), mutualExclusion,
+                (writeSyncRequest, sequence, lines) -> appendToFile(name, lines, sequence, writeSyncRequest), logger));
+    }
+
+    private Message readFile(Message clientReadRequest) {
+        // file|offset|length, optionally followed by |timestamp to only read once a sync stamped at or after it is applied
+        var request = clientReadRequest.getPayload().split("\\|");
+        var fileName = request[0];
+        var fullPath = Paths.get(directoryPath, fileName).toAbsolutePath();
+        var responseType = Message.MessageType.ReadFailureAck;
+        var responsePayload = fileName;
+
+        try {
+            var offset = Long.parseLong(request[1]);
+            var length = Math.min(Integer.parseInt(request[2]), maxReadLength);
+            var minTimeStamp = request.length > 3 ? Long.parseLong(request[3]) : 0;
+
+            if (FileUtil.exists(String.valueOf(fullPath)) && isReplicatedHere(fileName) && offset >= 0 && length >= 0) {
+                var lastAppend = getCriticalSession(fileName).waitForAppliedTimeStamp(minTimeStamp, readTimeout);
+
+                if (lastAppend != null) {
+                    lastAppend.get();
+
+                    responseType = Message.MessageType.ReadSuccessAck;
+                    responsePayload = String.format("%s|%s", fileName, fileStore.read(fileName, offset, length));
+                }
+                else {
+                    logger.log("%s has not applied the writes up to time %d of %s within %d ms", this.info.getName(), minTimeStamp, fileName, readTimeout);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException | ExecutionException | RuntimeException e) {
+            // a malformed request or a file that cannot be mapped, the client gets the failure rather than a closed connection
+            logger.log("%s cannot read '%s': %s", this.info.getName(), clientReadRequest.getPayload(), e.toString());
+        }
+
+        return new Message(this.info.getName(), responseType, incrementLocalTime(), responsePayload, clientReadRequest.getRequestId());
     }
 
     private void notifyAllServers(Message message) throws IOException {
+        var fileName = message.getFileNameFromPayload();
+        IOException failure = null;
+
+        // the servers after one that cannot be reached still get the message
         for(var serverName : serverSockets.keySet()) {
+            if (!hashRing.isReplica(fileName, serverName)) {
+                continue;
+            }
+
             var serverSocket = serverSockets.get(serverName);
-            sendMessage(serverSocket, message.toString(), serverName);
+
+            try {
+                sendMessage(serverSocket, message, serverName);
+            }
+            catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
         }
     }
 
-    private synchronized void appendToFile(String fileName, String message) throws IOException {
-        logger.log(String.format("%s appends '%s' to file %s", this.info.getName(), message, fileName));
+    private void notifyReachableServers(Message message) {
+        try {
+            notifyAllServers(message);
+        }
+        catch (IOException e) {
+            // a server that missed a sync takes the file over from another server when it rejoins
+            logger.log("%s cannot send '%s' to every server: %s", this.info.getName(), message, e.getMessage());
+        }
+    }
+
+    private CompletableFuture<Void> appendToFile(String fileName, String message, long sequence, Message writeSyncRequest) {
+        logger.debug("%s appends '%s' to file %s", this.info.getName(), message, fileName);
+
+        // the own sync is sent once this returns, its record has to be in the write-ahead log before any other server has it
+        var isOwnSync = writeSyncRequest.getSenderName().equals(this.info.getName());
+        return fileStore.append(fileName, message, sequence, writeSyncRequest.getTimeStamp(), writeSyncRequest.getSenderName(), isOwnSync);
+    }
 
-        var filePath = Paths.get(directoryPath, fileName).toAbsolutePath();
-        FileUtil.appendToFile(String.valueOf(filePath), message);
+    /**
+     * What the mutual exclusion engine gets to use, see MutualExclusionEngine
+     */
+    private class EngineNode implements ReplicaNode {
+        @Override
+        public String getName() {
+            return info.getName();
+        }
+
+        @Override
+        public int getNumberOfPeers(String fileName) {
+            return (int) serverSockets.keySet().stream().filter(serverName -> hashRing.isReplica(fileName, serverName)).count();
+        }
+
+        @Override
+        public ArrayList<String> getPeerNames(String fileName) {
+            var peerNames = new ArrayList<>(hashRing.getReplicas(fileName));
+            peerNames.remove(info.getName());
+
+            return peerNames;
+        }
+
+        @Override
+        public FileCriticalSession getCriticalSession(String fileName) {
+            return ServerNode.this.getCriticalSession(fileName);
+        }
+
+        @Override
+        public Collection<FileCriticalSession> getCriticalSessions() {
+            return criticalSessions.values();
+        }
+
+        @Override
+        public Message stamp(Message.MessageType type, String payload) {
+            return stampMessage(type, payload);
+        }
+
+        @Override
+        public void send(String serverName, Message message) throws IOException {
+            var serverSocket = serverSockets.get(serverName);
+
+            if (serverSocket == null) {
+                throw new IOException(String.format("%s is not connected to %s", info.getName(), serverName));
+            }
+
+            sendMessage(serverSocket, message, serverName);
+        }
+
+        @Override
+        public void sendToAll(Message message) throws IOException {
+            notifyAllServers(message);
+        }
+
+        @Override
+        public void sendToReachable(Message message) {
+            notifyReachableServers(message);
+        }
     }
 }
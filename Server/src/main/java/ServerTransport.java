@@ -0,0 +1,11 @@
+public enum ServerTransport {
+    /**
+     * One blocking thread per accepted connection
+     */
+    Threads,
+
+    /**
+     * A fixed set of selector threads shared by all accepted connections
+     */
+    Nio
+}
@@ -0,0 +1,327 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Suzuki and Kasami's algorithm: every file has one token and only the server holding it enters the critical session.
+ * A server without it sends a request to every other server, the holder passes the token on when it leaves, or right
+ * away when it is idle. The holder enters again without any message as long as nobody else asks for the file, so a run
+ * of writes through one server costs the syncs only and a critical session at most N messages otherwise.
+ * Requests are numbered with their timestamps rather than a counter, which keeps the requests of a restarted server
+ * newer than any the token has granted it. The token carries the number of syncs of the file, the next holder waits
+ * until it has applied that many since the sync of the previous holder can come over a different connection.
+ * The token of a file starts at the server with the lowest name among those replicating it. A token is not
+ * regenerated, the files whose token a server held when it stopped stall, which makes rejoin=true of limited use with
+ * this algorithm.
+ */
+public class TokenEngine implements MutualExclusionEngine {
+    private final String GRANTED_FIELD = "granted:";
+    private final String QUEUE_FIELD = "queue:";
+    private ReplicaNode node;
+    private boolean isRejoining;
+    private Hashtable<String, FileToken> fileTokens;
+    private Logger logger;
+
+    public TokenEngine(ReplicaNode node, boolean isRejoining, Logger logger) {
+        this.node = node;
+        this.isRejoining = isRejoining;
+        this.fileTokens = new Hashtable<>();
+        this.logger = logger;
+    }
+
+    @Override
+    public Message request(String payload) throws IOException {
+        var writeAcquireRequest = node.stamp(Message.MessageType.WriteAcquireRequest, payload);
+        var fileToken = getFileToken(writeAcquireRequest.getFileNameFromPayload());
+        fileToken.lock.lock();
+
+        try {
+            // the writes a server takes in while another one of it waits or writes line up behind it locally
+            fileToken.localWaiters++;
+
+            if (!fileToken.isHeld && fileToken.ownRequest == null) {
+                askForToken(fileToken);
+            }
+        }
+        catch (IOException e) {
+            // the servers that got the request may still send the token, which goes on to the next one then
+            fileToken.localWaiters--;
+            throw e;
+        }
+        finally {
+            fileToken.lock.unlock();
+        }
+
+        return writeAcquireRequest;
+    }
+
+    @Override
+    public long waitForAccess(Message request) throws InterruptedException {
+        var fileName = request.getFileNameFromPayload();
+        var fileToken = getFileToken(fileName);
+        long syncSequence;
+        fileToken.lock.lock();
+
+        try {
+            while (!fileToken.isHeld || fileToken.isInUse) {
+                logger.debug("Waiting for the token of %s...", fileName);
+                fileToken.changed.await();
+            }
+
+            fileToken.isInUse = true;
+            fileToken.localWaiters--;
+            syncSequence = fileToken.syncSequence;
+        }
+        finally {
+            fileToken.lock.unlock();
+        }
+
+        var headTime = System.nanoTime();
+        node.getCriticalSession(fileName).waitForSyncSequence(syncSequence);
+
+        return headTime;
+    }
+
+    @Override
+    public void release(Message request) {
+        var fileName = request.getFileNameFromPayload();
+        var fileToken = getFileToken(fileName);
+        fileToken.lock.lock();
+
+        try {
+            fileToken.isInUse = false;
+            fileToken.granted.put(node.getName(), fileToken.requested.getOrDefault(node.getName(), 0L));
+            fileToken.syncSequence = node.getCriticalSession(fileName).nextSyncSequence();
+
+            passToken(fileToken);
+        }
+        finally {
+            fileToken.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean handle(Message message) {
+        var fileName = message.getFileNameFromPayload();
+
+        switch (message.getType()) {
+            case WriteAcquireRequest: {
+                var fileToken = getFileToken(fileName);
+                fileToken.lock.lock();
+
+                try {
+                    fileToken.requested.merge(message.getSenderName(), message.getTimeStamp(), Math::max);
+
+                    // nobody here is about to take the token
+                    if (fileToken.localWaiters == 0) {
+                        passToken(fileToken);
+                    }
+                }
+                finally {
+                    fileToken.lock.unlock();
+                }
+
+                return true;
+            }
+
+            case Token: {
+                var fileToken = getFileToken(fileName);
+                fileToken.lock.lock();
+
+                try {
+                    receiveToken(fileToken, message);
+
+                    // the own request was given up on, the token goes on to whoever waits for it
+                    if (fileToken.localWaiters == 0) {
+                        passToken(fileToken);
+                    }
+                    else {
+                        fileToken.changed.signalAll();
+                    }
+                }
+                finally {
+                    fileToken.lock.unlock();
+                }
+
+                return true;
+            }
+
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public void forgetServer(String serverName) {
+        // nothing to drop, the token passes over requests that were granted and a restarted server hands on a token it
+        // was sent for a request it no longer waits for
+    }
+
+    @Override
+    public ArrayList<Message> getOwnRequests(String serverName) {
+        var ownRequests = new ArrayList<Message>();
+
+        for (var fileToken : fileTokens.values()) {
+            fileToken.lock.lock();
+
+            try {
+                if (fileToken.ownRequest != null) {
+                    ownRequests.add(fileToken.ownRequest);
+                }
+            }
+            finally {
+                fileToken.lock.unlock();
+            }
+        }
+
+        return ownRequests;
+    }
+
+    private FileToken getFileToken(String fileName) {
+        return fileTokens.computeIfAbsent(fileName, name -> new FileToken(name, isFirstHolder(name)));
+    }
+
+    private boolean isFirstHolder(String fileName) {
+        // a rejoining server cannot tell which tokens it held, another server may have them by now
+        return !isRejoining && node.getPeerNames(fileName).stream().allMatch(peerName -> peerName.compareTo(node.getName()) > 0);
+    }
+
+    /**
+     * Called with the lock of the file token held
+     */
+    private void askForToken(FileToken fileToken) throws IOException {
+        fileToken.ownRequest = node.stamp(Message.MessageType.WriteAcquireRequest, fileToken.fileName);
+        fileToken.requested.put(node.getName(), fileToken.ownRequest.getTimeStamp());
+
+        node.sendToAll(fileToken.ownRequest);
+    }
+
+    /**
+     * Hands the token to the next server waiting for it unless it is in use here. Called with the lock of the file
+     * token held.
+     */
+    private void passToken(FileToken fileToken) {
+        var fileName = fileToken.fileName;
+
+        if (!fileToken.isHeld || fileToken.isInUse) {
+            return;
+        }
+
+        // the servers with a request newer than the one last granted to them line up in the order they asked
+        var newRequesters = new ArrayList<String>();
+
+        for (var requester : fileToken.requested.keySet()) {
+            if (!requester.equals(node.getName()) && !fileToken.queue.contains(requester) &&
+                    fileToken.requested.get(requester) > fileToken.granted.getOrDefault(requester, 0L)) {
+                newRequesters.add(requester);
+            }
+        }
+
+        newRequesters.sort(Comparator.comparing(fileToken.requested::get));
+        fileToken.queue.addAll(newRequesters);
+
+        while (!fileToken.queue.isEmpty()) {
+            var nextHolder = fileToken.queue.poll();
+            var tokenMessage = node.stamp(Message.MessageType.Token, String.format("%s|%d|%s%s|%s%s", fileName,
+                    fileToken.syncSequence, GRANTED_FIELD, formatGranted(fileToken), QUEUE_FIELD, String.join(",", fileToken.queue)));
+
+            try {
+                node.send(nextHolder, tokenMessage);
+                fileToken.isHeld = false;
+                break;
+            }
+            catch (IOException e) {
+                logger.log("%s cannot pass the token of %s to %s: %s", node.getName(), fileName, nextHolder, e.getMessage());
+            }
+        }
+
+        if (fileToken.isHeld) {
+            fileToken.changed.signalAll();
+            return;
+        }
+
+        // the writes waiting here ask for the token again, behind the servers it went to
+        if (fileToken.localWaiters > 0) {
+            try {
+                askForToken(fileToken);
+            }
+            catch (IOException e) {
+                logger.log("%s cannot ask every server for the token of %s: %s", node.getName(), fileName, e.getMessage());
+            }
+        }
+    }
+
+    private void receiveToken(FileToken fileToken, Message tokenMessage) {
+        // file|syncs so far|granted:server=timestamp,...|queue:server,...
+        var fields = tokenMessage.getPayload().split("\\|");
+
+        fileToken.isHeld = true;
+        fileToken.ownRequest = null;
+        fileToken.syncSequence = Long.parseLong(fields[1]);
+        fileToken.granted.clear();
+        fileToken.queue.clear();
+
+        for (var entry : fields[2].substring(GRANTED_FIELD.length()).split(",")) {
+            var separatorIndex = entry.lastIndexOf('=');
+
+            if (separatorIndex > 0) {
+                fileToken.granted.put(entry.substring(0, separatorIndex), Long.parseLong(entry.substring(separatorIndex + 1)));
+            }
+        }
+
+        for (var serverName : fields[3].substring(QUEUE_FIELD.length()).split(",")) {
+            if (!serverName.isEmpty()) {
+                fileToken.queue.add(serverName);
+            }
+        }
+    }
+
+    private static String formatGranted(FileToken fileToken) {
+        var granted = new StringBuilder();
+
+        for (var entry : fileToken.granted.entrySet()) {
+            if (granted.length() > 0) {
+                granted.append(',');
+            }
+
+            granted.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+
+        return granted.toString();
+    }
+
+    private static class FileToken {
+        private String fileName;
+        private ReentrantLock lock;
+        private Condition changed;
+        // the latest request timestamp heard from each server, the own one included
+        private Hashtable<String, Long> requested;
+        // travels with the token: the request timestamp last granted to each server, the servers it goes to next and
+        // the number of syncs of the file
+        private Hashtable<String, Long> granted;
+        private ArrayDeque<String> queue;
+        private long syncSequence;
+        private boolean isHeld;
+        private boolean isInUse;
+        private int localWaiters;
+        private Message ownRequest;
+
+        private FileToken(String fileName, boolean isHeld) {
+            this.fileName = fileName;
+            this.lock = new ReentrantLock();
+            this.changed = lock.newCondition();
+            this.requested = new Hashtable<>();
+            this.granted = new Hashtable<>();
+            this.queue = new ArrayDeque<>();
+            this.syncSequence = 0;
+            this.isHeld = isHeld;
+            this.isInUse = false;
+            this.localWaiters = 0;
+            this.ownRequest = null;
+        }
+    }
+}
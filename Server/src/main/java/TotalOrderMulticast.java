@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Totally ordered multicast for files that are only appended to. There is no critical session: a server sends the lines
+ * of a write right away to the other servers replicating the file, stamped with its clock, and every server appends the
+ * writes of a file in (timestamp, sender) order. A write is stable once every other server of the file has sent
+ * something about it stamped later, see FileCriticalSession, since no earlier write of that server can come after it.
+ * A server that gets a write and has sent nothing later about the file answers with an acknowledgement, a busy server's
+ * own writes do that for it. Many writes are in flight at once, so the throughput is bound by the connections rather
+ * than by round trips.
+ * A write that reached only some servers before its sender stopped is not passed on by the others, a server stopping
+ * during writes can leave the replicas of a file different, which makes rejoin=true unsupported with it.
+ */
+public class TotalOrderMulticast implements OrderedMulticast {
+    private ReplicaNode node;
+    // timestamp of the latest write or acknowledgement this server sent about each file
+    private Hashtable<String, Long> sentTimeStamps;
+    private Logger logger;
+
+    public TotalOrderMulticast(ReplicaNode node, Logger logger) {
+        this.node = node;
+        this.sentTimeStamps = new Hashtable<>();
+        this.logger = logger;
+    }
+
+    @Override
+    public CompletableFuture<Long> multicast(String payload) {
+        var orderedWrite = node.stamp(Message.MessageType.OrderedWrite, payload);
+        var fileName = orderedWrite.getFileNameFromPayload();
+        var written = node.getCriticalSession(fileName).addOrderedWrite(orderedWrite, node.getNumberOfPeers(fileName));
+
+        sendToGroup(fileName, orderedWrite);
+
+        return written.thenApply(ignored -> orderedWrite.getTimeStamp());
+    }
+
+    @Override
+    public boolean handle(Message message) {
+        var fileName = message.getFileNameFromPayload();
+        var criticalSession = node.getCriticalSession(fileName);
+
+        switch (message.getType()) {
+            case OrderedWrite:
+                criticalSession.addOrderedWrite(message, node.getNumberOfPeers(fileName));
+
+                // stamped after the write, so the other servers know this one has nothing earlier to send. An own write
+                // stamped the same does not count, a write is only stable after strictly later messages
+                if (sentTimeStamps.getOrDefault(fileName, 0L) <= message.getTimeStamp()) {
+                    sendToGroup(fileName, node.stamp(Message.MessageType.OrderedWriteAck, fileName));
+                }
+
+                return true;
+
+            case OrderedWriteAck:
+                criticalSession.addOrderedWriteAck(message, node.getNumberOfPeers(fileName));
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    private void sendToGroup(String fileName, Message message) {
+        var isGroupConnected = node.getNumberOfPeers(fileName) == node.getPeerNames(fileName).size();
+
+        try {
+            node.sendToAll(message);
+        }
+        catch (IOException e) {
+            logger.log("%s cannot send '%s' to every server: %s", node.getName(), message, e.getMessage());
+            isGroupConnected = false;
+        }
+
+        // a server that missed the message has not heard anything later from this one, the next write is acknowledged again
+        if (isGroupConnected) {
+            sentTimeStamps.put(fileName, message.getTimeStamp());
+        }
+        else {
+            sentTimeStamps.remove(fileName);
+        }
+    }
+}
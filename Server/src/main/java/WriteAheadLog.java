@@ -0,0 +1,581 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only binary log of the syncs a server applies, kept in the "wal" directory of the server directory. Every
+ * record holds the file, the sequence number and Lamport timestamp of the sync, the server that held the critical
+ * session and the lines, behind its length and a CRC so that a record torn by a crash ends the log. The file store
+ * writes the records of the lines it takes before the lines themselves.
+ * The log is split into segments of about the same size. A checkpoint every few seconds stores how far each file is
+ * applied and where the log goes on from, the segments before it are deleted then, so recovery reads the checkpoint
+ * and replays only the records after it.
+ * The latest own sync of each file is also kept whole, a server that stopped while sending it cannot tell which other
+ * servers got it and sends it again when it rejoins.
+ * A disabled log writes nothing and recovers nothing, it only deletes what an earlier run of the server logged, which
+ * would not match the files once they change without it.
+ */
+public class WriteAheadLog {
+    private static final String DIRECTORY_NAME = "wal";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_NAME = "checkpoint";
+    private static final byte SYNC_RECORD = 0;
+    // the file was taken over from another server up to the given length
+    private static final byte SNAPSHOT_RECORD = 1;
+    // length and CRC of the body
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int SEPARATOR_LENGTH = System.lineSeparator().getBytes(StandardCharsets.UTF_8).length;
+
+    private Path directory;
+    private Path dataDirectory;
+    private String serverName;
+    private long segmentSize;
+    private long checkpointIntervalNanos;
+    private boolean isForced;
+    private boolean isEnabled;
+    // how far each file is applied as of the end of the log
+    private Hashtable<String, AppliedFile> appliedFiles;
+    private long highestTimeStamp;
+    private long segmentNumber;
+    private FileChannel segment;
+    private ByteBuffer buffer;
+    private CRC32 checksum;
+    private boolean isUnforced;
+    private long nextCheckpointTime;
+    private Logger logger;
+
+    public WriteAheadLog(String dataDirectoryPath, String serverName, long segmentSize, long checkpointIntervalMillis, boolean isForced,
+                         boolean isEnabled, Logger logger) {
+        this.serverName = serverName;
+        this.dataDirectory = Paths.get(dataDirectoryPath).toAbsolutePath();
+        this.directory = dataDirectory.resolve(DIRECTORY_NAME);
+        this.segmentSize = segmentSize;
+        this.checkpointIntervalNanos = TimeUnit.MILLISECONDS.toNanos(checkpointIntervalMillis);
+        this.isForced = isForced;
+        this.isEnabled = isEnabled;
+        this.appliedFiles = new Hashtable<>();
+        this.highestTimeStamp = 0;
+        this.segmentNumber = 1;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.checksum = new CRC32();
+        this.logger = logger;
+    }
+
+    /**
+     * Starts an empty log, for a server whose files are emptied
+     */
+    public synchronized void reset() throws IOException {
+        Files.createDirectories(directory);
+
+        for (var fileName : listFileNames()) {
+            Files.delete(directory.resolve(fileName));
+        }
+
+        segmentNumber = 1;
+
+        if (isEnabled) {
+            openSegment();
+        }
+    }
+
+    /**
+     * Replays the log after its latest checkpoint and brings every file it knows back to the length it logged: lines
+     * written after their record was lost are cut off, records whose lines did not make it into the file are appended
+     * again. Returns how far each file is applied then, a file that lost lines from before the checkpoint is left out.
+     */
+    public synchronized Hashtable<String, FileSnapshot> recover() throws IOException {
+        if (!isEnabled) {
+            reset();
+            return new Hashtable<>();
+        }
+
+        var startTime = System.nanoTime();
+        var checkpointSegmentNumber = 0L;
+        var checkpointPosition = 0L;
+        var numberOfRecords = 0;
+
+        Files.createDirectories(directory);
+        appliedFiles.clear();
+
+        var segmentNumbers = new TreeSet<Long>();
+
+        for (var fileName : listFileNames()) {
+            if (fileName.endsWith(SEGMENT_SUFFIX)) {
+                segmentNumbers.add(Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+
+        segmentNumber = segmentNumbers.isEmpty() ? 1 : segmentNumbers.first();
+
+        var checkpoint = readRecord(directory.resolve(CHECKPOINT_NAME));
+
+        if (checkpoint != null) {
+            checkpointSegmentNumber = checkpoint.getLong();
+            checkpointPosition = checkpoint.getLong();
+            segmentNumber = checkpointSegmentNumber;
+            highestTimeStamp = checkpoint.getLong();
+
+            for (var count = checkpoint.getInt(); count > 0; count--) {
+                var appliedFile = new AppliedFile(0, 0, 0);
+                appliedFiles.put(getString(checkpoint), appliedFile);
+
+                appliedFile.sequence = checkpoint.getLong();
+                appliedFile.length = checkpoint.getLong();
+                appliedFile.timeStamp = checkpoint.getLong();
+                appliedFile.ownSyncSequence = checkpoint.getLong();
+                appliedFile.ownSyncTimeStamp = checkpoint.getLong();
+
+                if (checkpoint.get() != 0) {
+                    appliedFile.ownSyncLines = new byte[checkpoint.getInt()];
+                    checkpoint.get(appliedFile.ownSyncLines);
+                }
+            }
+        }
+
+        // the records after the checkpoint with the offsets their lines go to, to append them again if they are missing
+        var tails = new Hashtable<String, ArrayList<TailRecord>>();
+        var isLogEnd = false;
+
+        for (var number : segmentNumbers.tailSet(segmentNumber)) {
+            var segmentPath = getSegmentPath(number);
+
+            if (isLogEnd) {
+                Files.delete(segmentPath);
+                continue;
+            }
+
+            segmentNumber = number;
+
+            try (var channel = FileChannel.open(segmentPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                var records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                records.position(number == checkpointSegmentNumber ? (int) Math.min(checkpointPosition, records.limit()) : 0);
+
+                ByteBuffer record;
+
+                while ((record = nextRecord(records)) != null) {
+                    replay(record, tails);
+                    numberOfRecords++;
+                }
+
+                // a torn record ends the log, nothing after it was acknowledged
+                if (records.hasRemaining()) {
+                    logger.log("Write-ahead log %s ends with %d bytes that are not a whole record", segmentPath.getFileName(), records.remaining());
+                    channel.truncate(records.position());
+                    isLogEnd = true;
+                }
+            }
+        }
+
+        var recoveredFiles = new Hashtable<String, FileSnapshot>();
+
+        for (var fileName : new ArrayList<>(appliedFiles.keySet())) {
+            var appliedFile = appliedFiles.get(fileName);
+
+            if (repair(fileName, appliedFile, tails.getOrDefault(fileName, new ArrayList<>()))) {
+                recoveredFiles.put(fileName, new FileSnapshot(appliedFile.sequence, appliedFile.length, appliedFile.timeStamp,
+                        CompletableFuture.completedFuture(null)));
+            }
+            else {
+                appliedFiles.remove(fileName);
+            }
+        }
+
+        openSegment();
+
+        logger.log("Recovered %d file(s) from the write-ahead log, replaying %d record(s) in %.3f ms",
+                recoveredFiles.size(), numberOfRecords, (System.nanoTime() - startTime) / 1_000_000.0);
+
+        return recoveredFiles;
+    }
+
+    /**
+     * The highest timestamp of any sync logged, a restarted server's clock goes on from there
+     */
+    public synchronized long getHighestTimeStamp() {
+        return highestTimeStamp;
+    }
+
+    /**
+     * The latest syncs of the server itself of each file, as they were sent
+     */
+    public synchronized ArrayList<Message> getOwnLatestSyncs() {
+        var ownLatestSyncs = new ArrayList<Message>();
+
+        appliedFiles.forEach((fileName, appliedFile) -> {
+            if (appliedFile.ownSyncLines != null) {
+                ownLatestSyncs.add(new Message(serverName, Message.MessageType.WriteSyncRequest, appliedFile.ownSyncTimeStamp,
+                        String.format("%s|%d|%s", fileName, appliedFile.ownSyncSequence, new String(appliedFile.ownSyncLines, StandardCharsets.UTF_8))));
+            }
+        });
+
+        return ownLatestSyncs;
+    }
+
+    /**
+     * Queues the record of a sync, it is written with the next flush
+     */
+    public synchronized void add(String fileName, long sequence, long timeStamp, String senderName, String lines) {
+        if (!isEnabled) {
+            return;
+        }
+
+        var linesBytes = lines.getBytes(StandardCharsets.UTF_8);
+        put(SYNC_RECORD, fileName, sequence, timeStamp, 0, senderName, linesBytes);
+        apply(fileName, sequence, timeStamp, senderName, linesBytes);
+    }
+
+    /**
+     * Logs that the file was taken over from another server, called once its bytes are in the file
+     */
+    public synchronized void addSnapshot(String fileName, FileSnapshot snapshot, String senderName) throws IOException {
+        if (!isEnabled) {
+            return;
+        }
+
+        put(SNAPSHOT_RECORD, fileName, snapshot.getSequence(), snapshot.getAppliedTimeStamp(), snapshot.getLength(), senderName, new byte[0]);
+        appliedFiles.put(fileName, new AppliedFile(snapshot.getSequence(), snapshot.getLength(), snapshot.getAppliedTimeStamp()));
+        highestTimeStamp = Math.max(highestTimeStamp, snapshot.getAppliedTimeStamp());
+
+        flush();
+
+        if (isForced) {
+            force();
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        if (!isEnabled || buffer.position() == 0) {
+            return;
+        }
+
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            segment.write(buffer);
+        }
+
+        buffer.clear();
+        isUnforced = true;
+
+        if (segment.position() >= segmentSize) {
+            if (isForced) {
+                force();
+            }
+
+            segment.close();
+            segmentNumber++;
+            openSegment();
+        }
+    }
+
+    public synchronized void force() throws IOException {
+        if (isUnforced) {
+            segment.force(false);
+            isUnforced = false;
+        }
+    }
+
+    public boolean isCheckpointDue() {
+        return isEnabled && System.nanoTime() >= nextCheckpointTime;
+    }
+
+    /**
+     * Stores how far the files are applied as of the end of the log, the lines of every record written so far must be
+     * in the files, and as durable as the log, when it is called
+     */
+    public synchronized void checkpoint() throws IOException {
+        if (!isEnabled) {
+            return;
+        }
+
+        flush();
+
+        if (isForced) {
+            force();
+        }
+
+        var checkpointSize = RECORD_HEADER_SIZE + 3 * Long.BYTES + Integer.BYTES;
+
+        for (var entry : appliedFiles.entrySet()) {
+            var ownSyncLines = entry.getValue().ownSyncLines;
+            checkpointSize += Integer.BYTES + entry.getKey().getBytes(StandardCharsets.UTF_8).length + 5 * Long.BYTES + 1 +
+                    (ownSyncLines == null ? 0 : Integer.BYTES + ownSyncLines.length);
+        }
+
+        var checkpoint = ByteBuffer.allocate(checkpointSize);
+
+        checkpoint.position(RECORD_HEADER_SIZE);
+        checkpoint.putLong(segmentNumber).putLong(segment.position()).putLong(highestTimeStamp).putInt(appliedFiles.size());
+
+        appliedFiles.forEach((fileName, appliedFile) -> {
+            putString(checkpoint, fileName.getBytes(StandardCharsets.UTF_8));
+            checkpoint.putLong(appliedFile.sequence).putLong(appliedFile.length).putLong(appliedFile.timeStamp)
+                    .putLong(appliedFile.ownSyncSequence).putLong(appliedFile.ownSyncTimeStamp);
+
+            if (appliedFile.ownSyncLines == null) {
+                checkpoint.put((byte) 0);
+            }
+            else {
+                putString(checkpoint.put((byte) 1), appliedFile.ownSyncLines);
+            }
+        });
+
+        sealRecord(checkpoint, 0);
+
+        // written aside and moved over the previous one, so that a crash leaves one of them whole
+        var temporaryPath = directory.resolve(CHECKPOINT_NAME + ".tmp");
+
+        try (var channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            checkpoint.flip();
+
+            while (checkpoint.hasRemaining()) {
+                channel.write(checkpoint);
+            }
+
+            if (isForced) {
+                channel.force(false);
+            }
+        }
+
+        Files.move(temporaryPath, directory.resolve(CHECKPOINT_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (var fileName : listFileNames()) {
+            if (fileName.endsWith(SEGMENT_SUFFIX) &&
+                    Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length())) < segmentNumber) {
+                Files.delete(directory.resolve(fileName));
+            }
+        }
+
+        nextCheckpointTime = System.nanoTime() + checkpointIntervalNanos;
+    }
+
+    private void put(byte type, String fileName, long sequence, long timeStamp, long length, String senderName, byte[] linesBytes) {
+        var fileNameBytes = fileName.getBytes(StandardCharsets.UTF_8);
+        var senderNameBytes = senderName.getBytes(StandardCharsets.UTF_8);
+        var recordSize = RECORD_HEADER_SIZE + 1 + 3 * Long.BYTES + 3 * Integer.BYTES + fileNameBytes.length + senderNameBytes.length + linesBytes.length;
+
+        if (buffer.remaining() < recordSize) {
+            // written out by the next flush, a record larger than the buffer gets a buffer of its own
+            var largerBuffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, buffer.position() + recordSize));
+            buffer = largerBuffer.put(buffer.flip());
+        }
+
+        var start = buffer.position();
+
+        buffer.position(start + RECORD_HEADER_SIZE);
+        buffer.put(type).putLong(sequence).putLong(timeStamp).putLong(length);
+        putString(buffer, fileNameBytes);
+        putString(buffer, senderNameBytes);
+        putString(buffer, linesBytes);
+
+        sealRecord(buffer, start);
+    }
+
+    private void sealRecord(ByteBuffer records, int start) {
+        var end = records.position();
+        var bodyStart = start + RECORD_HEADER_SIZE;
+
+        checksum.reset();
+        checksum.update(records.slice(bodyStart, end - bodyStart));
+
+        records.putInt(start, end - bodyStart);
+        records.putInt(start + Integer.BYTES, (int) checksum.getValue());
+    }
+
+    /**
+     * Returns the body of the next record and moves past it, or null at the end of the log or at a torn record
+     */
+    private ByteBuffer nextRecord(ByteBuffer records) {
+        if (records.remaining() < RECORD_HEADER_SIZE) {
+            return null;
+        }
+
+        var start = records.position();
+        var bodyLength = records.getInt(start);
+        var bodyChecksum = records.getInt(start + Integer.BYTES);
+
+        if (bodyLength <= 0 || bodyLength > records.remaining() - RECORD_HEADER_SIZE) {
+            return null;
+        }
+
+        var body = records.slice(start + RECORD_HEADER_SIZE, bodyLength);
+
+        checksum.reset();
+        checksum.update(body.duplicate());
+
+        if ((int) checksum.getValue() != bodyChecksum) {
+            return null;
+        }
+
+        records.position(start + RECORD_HEADER_SIZE + bodyLength);
+        return body;
+    }
+
+    private ByteBuffer readRecord(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        var record = nextRecord(ByteBuffer.wrap(Files.readAllBytes(path)));
+
+        if (record == null) {
+            logger.log("Write-ahead log checkpoint %s is damaged, replaying the whole log", path.getFileName());
+        }
+
+        return record;
+    }
+
+    private void replay(ByteBuffer record, Hashtable<String, ArrayList<TailRecord>> tails) {
+        var type = record.get();
+        var sequence = record.getLong();
+        var timeStamp = record.getLong();
+        var length = record.getLong();
+        var fileName = getString(record);
+        var senderName = getString(record);
+        var linesBytes = new byte[record.getInt()];
+        record.get(linesBytes);
+
+        highestTimeStamp = Math.max(highestTimeStamp, timeStamp);
+
+        if (type == SNAPSHOT_RECORD) {
+            appliedFiles.put(fileName, new AppliedFile(sequence, length, timeStamp));
+            tails.remove(fileName);
+            return;
+        }
+
+        var offset = appliedFiles.containsKey(fileName) ? appliedFiles.get(fileName).length : 0;
+        tails.computeIfAbsent(fileName, name -> new ArrayList<>()).add(new TailRecord(offset, linesBytes));
+
+        apply(fileName, sequence, timeStamp, senderName, linesBytes);
+    }
+
+    private void apply(String fileName, long sequence, long timeStamp, String senderName, byte[] linesBytes) {
+        var appliedFile = appliedFiles.computeIfAbsent(fileName, name -> new AppliedFile(0, 0, 0));
+        appliedFile.sequence = sequence + 1;
+        appliedFile.length += linesBytes.length + SEPARATOR_LENGTH;
+        appliedFile.timeStamp = Math.max(appliedFile.timeStamp, timeStamp);
+
+        // an earlier own sync reached every other server, the next own critical session needed all of them to confirm
+        if (senderName.equals(serverName)) {
+            appliedFile.ownSyncSequence = sequence;
+            appliedFile.ownSyncTimeStamp = timeStamp;
+            appliedFile.ownSyncLines = linesBytes;
+        }
+
+        highestTimeStamp = Math.max(highestTimeStamp, timeStamp);
+    }
+
+    private boolean repair(String fileName, AppliedFile appliedFile, ArrayList<TailRecord> tail) throws IOException {
+        var path = dataDirectory.resolve(fileName);
+
+        if (!Files.isRegularFile(path)) {
+            logger.log("Write-ahead log has records of %s, which is gone", fileName);
+            return false;
+        }
+
+        try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            var size = channel.size();
+
+            if (size >= appliedFile.length) {
+                channel.truncate(appliedFile.length);
+                return true;
+            }
+
+            // the lines of the first record that did not make it whole into the file and of all records after it
+            var firstMissing = 0;
+
+            while (firstMissing < tail.size() && tail.get(firstMissing).offset + tail.get(firstMissing).lines.length + SEPARATOR_LENGTH <= size) {
+                firstMissing++;
+            }
+
+            if (tail.isEmpty() || tail.get(0).offset > size) {
+                logger.log("%s is %d bytes short of what the write-ahead log checkpointed", fileName, appliedFile.length - size);
+                return false;
+            }
+
+            var position = tail.get(firstMissing).offset;
+            var separator = ByteBuffer.wrap(System.lineSeparator().getBytes(StandardCharsets.UTF_8));
+
+            channel.truncate(position);
+
+            for (var i = firstMissing; i < tail.size(); i++) {
+                position += channel.write(ByteBuffer.wrap(tail.get(i).lines), position);
+                position += channel.write(separator.clear(), position);
+            }
+
+            if (isForced) {
+                channel.force(false);
+            }
+
+            logger.log("%s gets %d record(s) of the write-ahead log appended again", fileName, tail.size() - firstMissing);
+            return true;
+        }
+    }
+
+    private void openSegment() throws IOException {
+        segment = FileChannel.open(getSegmentPath(segmentNumber), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        nextCheckpointTime = System.nanoTime() + checkpointIntervalNanos;
+    }
+
+    private Path getSegmentPath(long number) {
+        return directory.resolve(String.format("%020d%s", number, SEGMENT_SUFFIX));
+    }
+
+    private ArrayList<String> listFileNames() throws IOException {
+        var fileNames = new ArrayList<String>();
+
+        try (var paths = Files.list(directory)) {
+            paths.forEach(path -> fileNames.add(path.getFileName().toString()));
+        }
+
+        return fileNames;
+    }
+
+    private static void putString(ByteBuffer target, byte[] bytes) {
+        target.putInt(bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer source) {
+        var bytes = new byte[source.getInt()];
+        source.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class AppliedFile {
+        private long sequence;
+        private long length;
+        private long timeStamp;
+        private long ownSyncSequence;
+        private long ownSyncTimeStamp;
+        private byte[] ownSyncLines;
+
+        private AppliedFile(long sequence, long length, long timeStamp) {
+            this.sequence = sequence;
+            this.length = length;
+            this.timeStamp = timeStamp;
+        }
+    }
+
+    private static class TailRecord {
+        private long offset;
+        private byte[] lines;
+
+        private TailRecord(long offset, byte[] lines) {
+            this.offset = offset;
+            this.lines = lines;
+        }
+    }
+}
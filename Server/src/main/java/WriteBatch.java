@@ -0,0 +1,67 @@
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Client writes to one file that queue up while the first of them waits for the critical session.
+ * The first write leads the batch through the critical session, the others wait for it to commit all lines at once.
+ * Callers serialize add and close themselves.
+ */
+public class WriteBatch {
+    private String fileName;
+    private int maxSize;
+    private int maxLength;
+    private int length;
+    private boolean closed;
+    private ArrayList<String> lines;
+    // completes with the timestamp of the sync that carried the lines to the other servers
+    private CompletableFuture<Long> commit;
+
+    public WriteBatch(String fileName, int maxSize, int maxLength) {
+        this.fileName = fileName;
+        this.maxSize = maxSize;
+        this.maxLength = maxLength;
+        this.lines = new ArrayList<>();
+        this.commit = new CompletableFuture<>();
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public boolean add(String line) {
+        // the first line is always accepted so that a single oversized line still gets written
+        if (closed || (!lines.isEmpty() && (lines.size() >= maxSize || length + line.length() > maxLength))) {
+            return false;
+        }
+
+        lines.add(line);
+        length += line.length();
+        return true;
+    }
+
+    public void close() {
+        closed = true;
+    }
+
+    public int size() {
+        return lines.size();
+    }
+
+    public String getJoinedLines() {
+        // appending the joined lines as one line gives the same file content as appending them one by one
+        return String.join(System.lineSeparator(), lines);
+    }
+
+    public void complete(long syncTimeStamp) {
+        commit.complete(syncTimeStamp);
+    }
+
+    public void fail(Throwable cause) {
+        commit.completeExceptionally(cause);
+    }
+
+    public long awaitCommit() throws InterruptedException, ExecutionException {
+        return commit.get();
+    }
+}
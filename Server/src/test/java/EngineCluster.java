@@ -0,0 +1,323 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Servers running a mutual exclusion engine in one process, each pair connected by a link that delivers in order on a
+ * thread of its own, the way a server reads every connection. Every server takes the critical sessions of the files
+ * from several threads at once, as the leaders of its write batches do, and writes one line in each.
+ */
+class EngineCluster {
+    private static final long TIMEOUT_MILLIS = 60_000;
+
+    private MutualExclusion mutualExclusion;
+    private ArrayList<TestNode> nodes;
+    private ArrayList<Thread> threads;
+    // the server in the critical session of each file and the number of sessions it has had
+    private Hashtable<String, AtomicReference<String>> holders;
+    private Hashtable<String, AtomicLong> sessions;
+    private ConcurrentLinkedQueue<String> violations;
+
+    EngineCluster(MutualExclusion mutualExclusion, int numberOfServers) {
+        this.mutualExclusion = mutualExclusion;
+        this.nodes = new ArrayList<>();
+        this.threads = new ArrayList<>();
+        this.holders = new Hashtable<>();
+        this.sessions = new Hashtable<>();
+        this.violations = new ConcurrentLinkedQueue<>();
+
+        for (var i = 1; i <= numberOfServers; i++) {
+            nodes.add(new TestNode(String.format("server %d", i)));
+        }
+
+        for (var node : nodes) {
+            for (var peer : nodes) {
+                if (peer != node) {
+                    node.links.put(peer.name, new Link(node, peer));
+                }
+            }
+
+            node.engine = mutualExclusion.newEngine(node, false, new Logger());
+        }
+    }
+
+    /**
+     * Has every server write the given number of lines to each file from each of its threads and checks that no two
+     * servers were ever in the critical session of a file at once, that each holder had applied every earlier sync
+     * and that every server ends with the same lines
+     */
+    void run(List<String> fileNames, int threadsPerServer, int writesPerThread) throws InterruptedException {
+        for (var fileName : fileNames) {
+            holders.put(fileName, new AtomicReference<>());
+            sessions.put(fileName, new AtomicLong());
+        }
+
+        var workers = new ArrayList<Thread>();
+
+        for (var node : nodes) {
+            for (var i = 0; i < threadsPerServer; i++) {
+                workers.add(startThread(() -> {
+                    for (var j = 0; j < writesPerThread; j++) {
+                        for (var fileName : fileNames) {
+                            write(node, fileName);
+                        }
+                    }
+                }));
+            }
+        }
+
+        var deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+
+        for (var worker : workers) {
+            worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+
+        // the first ones tell what went wrong, everything after follows from them
+        assertEquals(List.of(), violations.stream().limit(10).toList());
+        assertTrue(workers.stream().noneMatch(Thread::isAlive), "Not every critical session was granted in time");
+
+        var expectedSessions = (long) nodes.size() * threadsPerServer * writesPerThread;
+
+        for (var fileName : fileNames) {
+            assertEquals(expectedSessions, sessions.get(fileName).get());
+
+            for (var node : nodes) {
+                var criticalSession = node.getCriticalSession(fileName);
+
+                while (criticalSession.nextSyncSequence() < expectedSessions && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+
+                assertEquals(nodes.get(0).getLines(fileName), node.getLines(fileName), node.name);
+            }
+
+            assertEquals(expectedSessions, nodes.get(0).getLines(fileName).size());
+        }
+    }
+
+    void close() {
+        threads.forEach(Thread::interrupt);
+    }
+
+    private void write(TestNode node, String fileName) {
+        try {
+            Message request;
+            node.clockLock.lock();
+
+            try {
+                request = node.engine.request(String.format("%s|%d", fileName, node.requestNumber.incrementAndGet()));
+            }
+            finally {
+                node.clockLock.unlock();
+            }
+
+            node.engine.waitForAccess(request);
+
+            var criticalSession = node.getCriticalSession(fileName);
+            var holder = holders.get(fileName);
+
+            if (!holder.compareAndSet(null, node.name)) {
+                violations.add(String.format("%s enters the critical session of %s held by %s", node.name, fileName, holder.get()));
+            }
+
+            var syncSequence = criticalSession.nextSyncSequence();
+
+            if (syncSequence != sessions.get(fileName).get()) {
+                violations.add(String.format("%s enters %s having applied %d of %d syncs", node.name, fileName, syncSequence,
+                        sessions.get(fileName).get()));
+            }
+
+            // long enough for a server let in wrongly to show up
+            Thread.sleep(node.random.nextInt(3) == 0 ? 1 : 0);
+
+            var writeSyncRequest = node.stamp(Message.MessageType.WriteSyncRequest,
+                    String.format("%s|%d|%s", fileName, syncSequence, request.getPayload()));
+            criticalSession.addOwnSync(writeSyncRequest);
+
+            sessions.get(fileName).incrementAndGet();
+            holder.compareAndSet(node.name, null);
+
+            node.clockLock.lock();
+
+            try {
+                node.sendToReachable(writeSyncRequest);
+                node.engine.release(request);
+                node.localTime.incrementAndGet();
+            }
+            finally {
+                node.clockLock.unlock();
+            }
+        }
+        catch (Exception e) {
+            violations.add(String.format("%s fails to write %s: %s", node.name, fileName, e));
+        }
+    }
+
+    private Thread startThread(Runnable runnable) {
+        var thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+
+        synchronized (threads) {
+            threads.add(thread);
+        }
+
+        return thread;
+    }
+
+    private class TestNode implements ReplicaNode {
+        private String name;
+        private MutualExclusionEngine engine;
+        private ReentrantLock clockLock;
+        private AtomicLong localTime;
+        private AtomicLong requestNumber;
+        private Hashtable<String, Link> links;
+        private Hashtable<String, FileCriticalSession> criticalSessions;
+        private Hashtable<String, ArrayList<String>> files;
+        private Random random;
+
+        private TestNode(String name) {
+            this.name = name;
+            this.clockLock = new ReentrantLock();
+            this.localTime = new AtomicLong();
+            this.requestNumber = new AtomicLong();
+            this.links = new Hashtable<>();
+            this.criticalSessions = new Hashtable<>();
+            this.files = new Hashtable<>();
+            this.random = new Random(name.hashCode());
+        }
+
+        private ArrayList<String> getLines(String fileName) {
+            synchronized (files) {
+                return new ArrayList<>(files.getOrDefault(fileName, new ArrayList<>()));
+            }
+        }
+
+        private void receive(Message message) {
+            localTime.accumulateAndGet(message.getTimeStamp() + 1, Math::max);
+            localTime.incrementAndGet();
+
+            if (message.getType() == Message.MessageType.WriteSyncRequest) {
+                getCriticalSession(message.getFileNameFromPayload()).addSyncToQueue(message);
+                return;
+            }
+
+            clockLock.lock();
+
+            try {
+                if (!engine.handle(message)) {
+                    violations.add(String.format("%s does not use '%s'", name, message));
+                }
+            }
+            finally {
+                clockLock.unlock();
+            }
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public int getNumberOfPeers(String fileName) {
+            return links.size();
+        }
+
+        @Override
+        public ArrayList<String> getPeerNames(String fileName) {
+            return new ArrayList<>(links.keySet());
+        }
+
+        @Override
+        public FileCriticalSession getCriticalSession(String fileName) {
+            return criticalSessions.computeIfAbsent(fileName, file -> new FileCriticalSession(file, name, mutualExclusion,
+                    (writeSyncRequest, sequence, lines) -> {
+                        synchronized (files) {
+                            files.computeIfAbsent(file, ignored -> new ArrayList<>()).add(lines);
+                        }
+
+                        return CompletableFuture.completedFuture(null);
+                    }, new Logger()));
+        }
+
+        @Override
+        public Collection<FileCriticalSession> getCriticalSessions() {
+            return criticalSessions.values();
+        }
+
+        @Override
+        public Message stamp(Message.MessageType type, String payload) {
+            return new Message(name, type, localTime.incrementAndGet(), payload);
+        }
+
+        @Override
+        public void send(String serverName, Message message) throws IOException {
+            var link = links.get(serverName);
+
+            if (link == null) {
+                throw new IOException(String.format("%s is not connected to %s", name, serverName));
+            }
+
+            link.messages.add(message);
+        }
+
+        @Override
+        public void sendToAll(Message message) throws IOException {
+            for (var serverName : links.keySet()) {
+                send(serverName, message);
+            }
+        }
+
+        @Override
+        public void sendToReachable(Message message) {
+            try {
+                sendToAll(message);
+            }
+            catch (IOException e) {
+                violations.add(e.getMessage());
+            }
+        }
+    }
+
+    private class Link {
+        private LinkedBlockingQueue<Message> messages;
+
+        private Link(TestNode sender, TestNode receiver) {
+            this.messages = new LinkedBlockingQueue<>();
+
+            var random = new Random(sender.name.hashCode() * 31L + receiver.name.hashCode());
+
+            startThread(() -> {
+                try {
+                    while (true) {
+                        var message = messages.take();
+
+                        // the links fall behind one another now and then, each still delivers in order
+                        if (random.nextInt(16) == 0) {
+                            TimeUnit.MICROSECONDS.sleep(random.nextInt(500));
+                        }
+
+                        receiver.receive(message);
+                    }
+                }
+                catch (InterruptedException e) {
+                    // closed
+                }
+            });
+        }
+    }
+}
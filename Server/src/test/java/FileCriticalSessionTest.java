@@ -0,0 +1,160 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileCriticalSessionTest {
+    private static final String SERVER_NAME = "server 1";
+    private static final String FILE_NAME = "File1.txt";
+
+    private ArrayList<String> appliedLines = new ArrayList<>();
+
+    @Test
+    void entersOnceFirstAndConfirmedByEveryPeer() throws Exception {
+        var criticalSession = newCriticalSession(MutualExclusion.Lamport);
+        var ownRequest = message(SERVER_NAME, Message.MessageType.WriteAcquireRequest, 10, "1");
+
+        criticalSession.addToQueue(message("server 2", Message.MessageType.WriteAcquireRequest, 5, "1"));
+        criticalSession.addToQueue(ownRequest);
+
+        var access = waitForAccess(criticalSession, ownRequest);
+
+        // first once the earlier request is released, confirmed once server 3 sent anything later too
+        criticalSession.removeReleasedRequest(message("server 2", Message.MessageType.WriteReleaseRequest, 12, "1"));
+        assertFalse(isDone(access));
+
+        criticalSession.addResponseToQueue(message("server 3", Message.MessageType.WriteAcquireResponse, 11, "1"));
+        access.get(5, TimeUnit.SECONDS);
+
+        criticalSession.removeOwnRequest(ownRequest);
+        assertEquals(0, criticalSession.getQueueSize());
+    }
+
+    @Test
+    void ordersRequestsOfTheSameTimeStampBySender() throws Exception {
+        var criticalSession = newCriticalSession(MutualExclusion.Lamport);
+        var ownRequest = message(SERVER_NAME, Message.MessageType.WriteAcquireRequest, 7, "1");
+
+        criticalSession.addToQueue(ownRequest);
+        criticalSession.addToQueue(message("server 2", Message.MessageType.WriteAcquireRequest, 7, "1"));
+        criticalSession.addResponseToQueue(message("server 3", Message.MessageType.WriteAcquireResponse, 8, "1"));
+
+        // server 2 sent nothing later than the own request yet, its request with the same timestamp goes after it
+        var access = waitForAccess(criticalSession, ownRequest);
+        assertFalse(isDone(access));
+
+        criticalSession.addResponseToQueue(message("server 2", Message.MessageType.WriteAcquireResponse, 9, "1"));
+        access.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void defersTheRequestsAfterAnOwnOne() throws Exception {
+        var criticalSession = newCriticalSession(MutualExclusion.RicartAgrawala);
+        var ownRequest = message(SERVER_NAME, Message.MessageType.WriteAcquireRequest, 10, "1");
+        var earlierRequest = message("server 2", Message.MessageType.WriteAcquireRequest, 9, "1");
+        var laterRequest = message("server 3", Message.MessageType.WriteAcquireRequest, 11, "1");
+
+        assertFalse(criticalSession.deferRequest(earlierRequest));
+        criticalSession.addToQueue(ownRequest);
+        assertFalse(criticalSession.deferRequest(earlierRequest));
+        assertTrue(criticalSession.deferRequest(laterRequest));
+
+        // only the responses to the own request count, the deferred request in the queue does not
+        var access = waitForAccess(criticalSession, ownRequest);
+        criticalSession.addResponseToQueue(message("server 2", Message.MessageType.WriteAcquireResponse, 12, "1"));
+        assertFalse(isDone(access));
+
+        criticalSession.addResponseToQueue(message("server 3", Message.MessageType.WriteAcquireResponse, 12, "1"));
+        access.get(5, TimeUnit.SECONDS);
+
+        assertEquals(List.of(), criticalSession.takeDeferredRequests());
+        criticalSession.removeOwnRequest(ownRequest);
+        assertEquals(List.of(laterRequest), criticalSession.takeDeferredRequests());
+    }
+
+    @Test
+    void appliesSyncsInSequenceOrder() throws Exception {
+        var criticalSession = newCriticalSession(MutualExclusion.Lamport);
+
+        criticalSession.addSyncToQueue(message("server 3", Message.MessageType.WriteSyncRequest, 9, "2|third"));
+        criticalSession.addSyncToQueue(message("server 2", Message.MessageType.WriteSyncRequest, 8, "1|second"));
+        assertEquals(List.of(), appliedLines);
+
+        criticalSession.addSyncToQueue(message("server 2", Message.MessageType.WriteSyncRequest, 5, "0|first"));
+        assertEquals(List.of("first", "second", "third"), appliedLines);
+
+        // sent again by a server that rejoined
+        criticalSession.addSyncToQueue(message("server 2", Message.MessageType.WriteSyncRequest, 8, "1|second"));
+        assertEquals(3, criticalSession.nextSyncSequence());
+
+        criticalSession.addOwnSync(message(SERVER_NAME, Message.MessageType.WriteSyncRequest, 12, "3|fourth"));
+        assertEquals(List.of("first", "second", "third", "fourth"), appliedLines);
+        criticalSession.waitForSyncSequence(4);
+    }
+
+    @Test
+    void appliesOrderedWritesOnceStable() {
+        var criticalSession = newCriticalSession(MutualExclusion.TotalOrder);
+
+        assertNull(criticalSession.addOrderedWrite(message("server 2", Message.MessageType.OrderedWrite, 5, "b"), 2));
+        assertEquals(List.of(), appliedLines);
+
+        // server 2 sent something later than 3, server 3 is the sender itself
+        criticalSession.addOrderedWrite(message("server 3", Message.MessageType.OrderedWrite, 3, "a"), 2);
+        assertEquals(List.of("a"), appliedLines);
+
+        var written = criticalSession.addOrderedWrite(message(SERVER_NAME, Message.MessageType.OrderedWrite, 7, "c"), 2);
+        criticalSession.addOrderedWriteAck(message("server 3", Message.MessageType.OrderedWriteAck, 6, ""), 2);
+        assertEquals(List.of("a", "b"), appliedLines);
+        assertFalse(written.isDone());
+
+        criticalSession.addOrderedWriteAck(message("server 2", Message.MessageType.OrderedWriteAck, 8, ""), 2);
+        assertFalse(written.isDone());
+
+        criticalSession.addOrderedWriteAck(message("server 3", Message.MessageType.OrderedWriteAck, 9, ""), 2);
+        assertEquals(List.of("a", "b", "c"), appliedLines);
+        assertTrue(written.isDone());
+        assertEquals(3, criticalSession.nextSyncSequence());
+    }
+
+    private FileCriticalSession newCriticalSession(MutualExclusion mutualExclusion) {
+        return new FileCriticalSession(FILE_NAME, SERVER_NAME, mutualExclusion, (writeSyncRequest, sequence, lines) -> {
+            appliedLines.add(lines);
+            return CompletableFuture.completedFuture(null);
+        }, new Logger());
+    }
+
+    private static Message message(String senderName, Message.MessageType type, long timeStamp, String data) {
+        return new Message(senderName, type, timeStamp, String.format("%s|%s", FILE_NAME, data));
+    }
+
+    private static CompletableFuture<Long> waitForAccess(FileCriticalSession criticalSession, Message request) {
+        var access = new CompletableFuture<Long>();
+        var thread = new Thread(() -> {
+            try {
+                access.complete(criticalSession.waitForAccess(request, 2));
+            }
+            catch (InterruptedException e) {
+                access.completeExceptionally(e);
+            }
+        });
+
+        thread.setDaemon(true);
+        thread.start();
+
+        return access;
+    }
+
+    private static boolean isDone(CompletableFuture<Long> access) throws InterruptedException {
+        // what waitForAccess would wrongly return from is signalled by then
+        Thread.sleep(100);
+        return access.isDone();
+    }
+}
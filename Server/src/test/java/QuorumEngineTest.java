@@ -0,0 +1,60 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QuorumEngineTest {
+    private EngineCluster cluster;
+
+    @AfterEach
+    void close() {
+        if (cluster != null) {
+            cluster.close();
+        }
+    }
+
+    @Test
+    void grantsCriticalSessionsOneAtATime() throws Exception {
+        cluster = new EngineCluster(MutualExclusion.Maekawa, 5);
+        cluster.run(List.of("File1.txt", "File2.txt"), 2, 40);
+    }
+
+    @Test
+    void grantsCriticalSessionsOneAtATimeInAFullGrid() throws Exception {
+        cluster = new EngineCluster(MutualExclusion.Maekawa, 4);
+        cluster.run(List.of("File1.txt"), 2, 40);
+    }
+
+    @Test
+    void buildsQuorumsThatShareAServer() {
+        for (var numberOfServers = 1; numberOfServers <= 10; numberOfServers++) {
+            var serverNames = new ArrayList<String>();
+
+            for (var i = 1; i <= numberOfServers; i++) {
+                serverNames.add(String.format("server %02d", i));
+            }
+
+            for (var serverName : serverNames) {
+                var quorum = getQuorum(serverName, serverNames);
+                assertTrue(quorum.contains(serverName));
+
+                for (var otherServerName : serverNames) {
+                    var otherQuorum = getQuorum(otherServerName, serverNames);
+                    assertFalse(quorum.stream().noneMatch(otherQuorum::contains),
+                            String.format("%s and %s of %d servers", serverName, otherServerName, numberOfServers));
+                }
+            }
+        }
+    }
+
+    private static ArrayList<String> getQuorum(String serverName, ArrayList<String> serverNames) {
+        var peerNames = new ArrayList<>(serverNames);
+        peerNames.remove(serverName);
+
+        return QuorumEngine.getQuorum(serverName, peerNames);
+    }
+}
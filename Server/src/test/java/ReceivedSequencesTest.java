@@ -0,0 +1,93 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReceivedSequencesTest {
+    private static final String SERVER_NAME = "server 2";
+
+    private ReceivedSequences receivedSequences = new ReceivedSequences("server 1", new Logger());
+    private ArrayList<Long> handledSequences = new ArrayList<>();
+    private TestChannel channel = new TestChannel();
+
+    @Test
+    void handlesEachMessageOnce() throws Exception {
+        assertEquals(0, receivedSequences.open(SERVER_NAME, 1));
+
+        assertTrue(handle(1, 1));
+        assertTrue(handle(1, 2));
+        // sent again over a new connection of the link
+        assertFalse(handle(1, 1));
+        assertFalse(handle(1, 2));
+        assertTrue(handle(1, 3));
+
+        assertEquals(3, receivedSequences.open(SERVER_NAME, 1));
+        assertEquals(List.of(1L, 2L, 3L), handledSequences);
+        assertFalse(channel.isClosed);
+    }
+
+    @Test
+    void refusesALinkMissingMessages() throws Exception {
+        receivedSequences.open(SERVER_NAME, 1);
+
+        assertTrue(handle(1, 1));
+        assertFalse(handle(1, 3));
+        assertTrue(channel.isClosed);
+
+        // nothing after the gap, not even the missing message itself
+        assertFalse(handle(1, 2));
+        assertFalse(handle(1, 4));
+        assertEquals(List.of(1L), handledSequences);
+        assertEquals(-1, receivedSequences.open(SERVER_NAME, 1));
+
+        // the server restarted and opened a new link
+        assertEquals(0, receivedSequences.open(SERVER_NAME, 2));
+        assertTrue(handle(2, 1));
+    }
+
+    @Test
+    void dropsTheMessagesOfAReplacedLink() throws Exception {
+        receivedSequences.open(SERVER_NAME, 1);
+        assertTrue(handle(1, 1));
+
+        assertEquals(0, receivedSequences.open(SERVER_NAME, 2));
+        assertEquals(-1, receivedSequences.open(SERVER_NAME, 1));
+        assertFalse(handle(1, 2));
+        assertTrue(handle(2, 1));
+    }
+
+    @Test
+    void handlesUnnumberedMessages() throws Exception {
+        assertTrue(handle(1, 0));
+        assertTrue(handle(1, 0));
+        assertEquals(List.of(0L, 0L), handledSequences);
+    }
+
+    private boolean handle(long linkId, long sequence) throws Exception {
+        var message = new Message(SERVER_NAME, Message.MessageType.WriteSyncRequest, sequence, "File1.txt|line", sequence);
+        return receivedSequences.handle(SERVER_NAME, linkId, channel, message,
+                (handlingChannel, handledMessage) -> handledSequences.add(handledMessage.getRequestId()));
+    }
+
+    private static class TestChannel implements MessageChannel {
+        private boolean isClosed;
+
+        @Override
+        public String getHandshake() {
+            return SERVER_NAME;
+        }
+
+        @Override
+        public void send(Message message) {
+        }
+
+        @Override
+        public void close() {
+            isClosed = true;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+class RequestQueueEngineTest {
+    private EngineCluster cluster;
+
+    @AfterEach
+    void close() {
+        cluster.close();
+    }
+
+    @Test
+    void grantsLamportCriticalSessionsOneAtATime() throws Exception {
+        cluster = new EngineCluster(MutualExclusion.Lamport, 3);
+        cluster.run(List.of("File1.txt", "File2.txt"), 2, 50);
+    }
+
+    @Test
+    void grantsRicartAgrawalaCriticalSessionsOneAtATime() throws Exception {
+        cluster = new EngineCluster(MutualExclusion.RicartAgrawala, 3);
+        cluster.run(List.of("File1.txt", "File2.txt"), 2, 50);
+    }
+}
@@ -0,0 +1,25 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+class TokenEngineTest {
+    private EngineCluster cluster;
+
+    @AfterEach
+    void close() {
+        cluster.close();
+    }
+
+    @Test
+    void grantsCriticalSessionsOneAtATime() throws Exception {
+        cluster = new EngineCluster(MutualExclusion.SuzukiKasami, 4);
+        cluster.run(List.of("File1.txt", "File2.txt"), 2, 50);
+    }
+
+    @Test
+    void grantsTheWritesOfOneServerOneAtATime() throws Exception {
+        cluster = new EngineCluster(MutualExclusion.SuzukiKasami, 1);
+        cluster.run(List.of("File1.txt"), 3, 50);
+    }
+}
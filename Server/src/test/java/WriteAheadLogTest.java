@@ -0,0 +1,161 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteAheadLogTest {
+    private static final String SERVER_NAME = "server 1";
+    private static final String FILE_NAME = "File1.txt";
+    private static final String SEPARATOR = System.lineSeparator();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void cutsTheLinesOfATornRecord() throws Exception {
+        var writeAheadLog = newWriteAheadLog(true);
+        writeAheadLog.reset();
+        log(writeAheadLog, 0, "first", "second", "third");
+
+        // the lines of the last record made it into the file, the end of the record itself did not
+        writeFile("first", "second", "third");
+        truncate(getSegmentPath(), Files.size(getSegmentPath()) - 3);
+
+        var recoveredWriteAheadLog = newWriteAheadLog(true);
+        var recoveredFiles = recoveredWriteAheadLog.recover();
+
+        assertEquals(2, recoveredFiles.get(FILE_NAME).getSequence());
+        assertEquals(getLength("first", "second"), recoveredFiles.get(FILE_NAME).getLength());
+        assertEquals(getContent("first", "second"), readFile());
+
+        // the log goes on right after the last whole record
+        log(recoveredWriteAheadLog, 2, "fourth");
+        writeFile("first", "second", "fourth");
+
+        recoveredFiles = newWriteAheadLog(true).recover();
+
+        assertEquals(3, recoveredFiles.get(FILE_NAME).getSequence());
+        assertEquals(getContent("first", "second", "fourth"), readFile());
+    }
+
+    @Test
+    void appendsTheLinesMissingFromTheFile() throws Exception {
+        var writeAheadLog = newWriteAheadLog(true);
+        writeAheadLog.reset();
+        log(writeAheadLog, 0, "first", "second", "third");
+
+        // the crash came in the middle of the second line
+        Files.writeString(directory.resolve(FILE_NAME), getContent("first") + "sec");
+
+        var recoveredFiles = newWriteAheadLog(true).recover();
+
+        assertEquals(3, recoveredFiles.get(FILE_NAME).getSequence());
+        assertEquals(getContent("first", "second", "third"), readFile());
+    }
+
+    @Test
+    void replaysOnlyTheRecordsAfterTheCheckpoint() throws Exception {
+        var writeAheadLog = newWriteAheadLog(true);
+        writeAheadLog.reset();
+        log(writeAheadLog, 0, "first", "second");
+        writeFile("first", "second");
+        writeAheadLog.checkpoint();
+        log(writeAheadLog, 2, "third");
+        writeFile("first", "second", "third", "unlogged");
+
+        var recoveredWriteAheadLog = newWriteAheadLog(true);
+        var recoveredFiles = recoveredWriteAheadLog.recover();
+
+        assertEquals(3, recoveredFiles.get(FILE_NAME).getSequence());
+        assertEquals(getContent("first", "second", "third"), readFile());
+        assertEquals(6, recoveredWriteAheadLog.getHighestTimeStamp());
+
+        var ownLatestSyncs = recoveredWriteAheadLog.getOwnLatestSyncs();
+
+        assertEquals(1, ownLatestSyncs.size());
+        assertEquals(String.format("%s|2|third", FILE_NAME), ownLatestSyncs.get(0).getPayload());
+        assertEquals(6, ownLatestSyncs.get(0).getTimeStamp());
+    }
+
+    @Test
+    void leavesOutAFileShorterThanTheCheckpoint() throws Exception {
+        var writeAheadLog = newWriteAheadLog(true);
+        writeAheadLog.reset();
+        log(writeAheadLog, 0, "first", "second");
+        writeFile("first", "second");
+        writeAheadLog.checkpoint();
+        writeFile("first");
+
+        assertFalse(newWriteAheadLog(true).recover().containsKey(FILE_NAME));
+    }
+
+    @Test
+    void recoversNothingWhenDisabled() throws Exception {
+        var writeAheadLog = newWriteAheadLog(true);
+        writeAheadLog.reset();
+        log(writeAheadLog, 0, "first", "second");
+        writeFile("first", "second", "unlogged");
+
+        assertTrue(newWriteAheadLog(false).recover().isEmpty());
+        assertEquals(getContent("first", "second", "unlogged"), readFile());
+
+        // what the earlier run logged is gone and cannot cut the file once the log is enabled again
+        try (var paths = Files.list(directory.resolve("wal"))) {
+            assertEquals(0, paths.count());
+        }
+
+        assertTrue(newWriteAheadLog(true).recover().isEmpty());
+        assertEquals(getContent("first", "second", "unlogged"), readFile());
+    }
+
+    private WriteAheadLog newWriteAheadLog(boolean isEnabled) {
+        return new WriteAheadLog(directory.toString(), SERVER_NAME, 1024 * 1024, 60_000, false, isEnabled, new Logger());
+    }
+
+    private static void log(WriteAheadLog writeAheadLog, long firstSequence, String... lines) throws Exception {
+        for (var i = 0; i < lines.length; i++) {
+            var sequence = firstSequence + i;
+            writeAheadLog.add(FILE_NAME, sequence, 2 * (sequence + 1), SERVER_NAME, lines[i]);
+            writeAheadLog.flush();
+        }
+    }
+
+    private Path getSegmentPath() {
+        return directory.resolve("wal").resolve(String.format("%020d.log", 1));
+    }
+
+    private static void truncate(Path path, long size) throws Exception {
+        try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    private void writeFile(String... lines) throws Exception {
+        Files.writeString(directory.resolve(FILE_NAME), getContent(lines));
+    }
+
+    private String readFile() throws Exception {
+        return Files.readString(directory.resolve(FILE_NAME));
+    }
+
+    private static String getContent(String... lines) {
+        var content = new StringBuilder();
+
+        for (var line : lines) {
+            content.append(line).append(SEPARATOR);
+        }
+
+        return content.toString();
+    }
+
+    private static long getLength(String... lines) {
+        return getContent(lines).length();
+    }
+}
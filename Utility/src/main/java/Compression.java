@@ -0,0 +1,21 @@
+public enum Compression {
+    /**
+     * Data bytes are sent as they are
+     */
+    None,
+
+    /**
+     * Data of binary frames from MessageCodec.COMPRESSION_THRESHOLD bytes on is deflated if that makes it smaller
+     */
+    Deflate;
+
+    /**
+     * Fails for a wire format that cannot carry the compression, text messages are never deflated
+     */
+    public void checkWireFormat(WireFormat wireFormat) {
+        if (this != None && wireFormat == WireFormat.Text) {
+            throw new IllegalArgumentException(String.format("compression=%s needs wireFormat=%s, %s messages are never deflated",
+                    this, WireFormat.Binary, WireFormat.Text));
+        }
+    }
+}
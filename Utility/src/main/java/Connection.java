@@ -0,0 +1,159 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class Connection implements MessageChannel {
+    // appended to the handshake by the connecting side, peers that do not send it keep using the text format
+    public static final String WIRE_FORMAT_FLAG = "|wire=";
+    // follows the wire format when the connecting side deflates, the other side then deflates its replies as well
+    public static final String COMPRESSION_FLAG = "|compression=";
+    private static final long INITIAL_RETRY_DELAY_MILLIS = 10;
+    private static final long MAX_RETRY_DELAY_MILLIS = 1000;
+
+    private Socket socket;
+    private String handshake;
+    private MessageCodec codec;
+    private DataInputStream dis;
+    private DataOutputStream dos;
+    private ReentrantLock sendLock;
+
+    private Connection(Socket socket, String handshake, WireFormat wireFormat, Compression compression) throws IOException {
+        this.socket = socket;
+        this.handshake = handshake;
+        this.codec = new MessageCodec(wireFormat, compression);
+        this.dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.sendLock = new ReentrantLock();
+    }
+
+    public static Connection open(String ipAddress, int port, String handshake, WireFormat wireFormat, Compression compression) throws IOException {
+        var socket = new Socket(ipAddress, port);
+        socket.setTcpNoDelay(true);
+
+        var connection = new Connection(socket, handshake, wireFormat, compression);
+        var compressionFlag = compression == Compression.None ? "" : COMPRESSION_FLAG + compression;
+        connection.dos.writeUTF(handshake + WIRE_FORMAT_FLAG + wireFormat + compressionFlag);
+        connection.dos.flush();
+
+        return connection;
+    }
+
+    /**
+     * Tries again while the other side does not listen yet, the delay between the attempts doubles from 10 ms up to 1 s.
+     * Throws the last failure once the next attempt would start after the timeout.
+     */
+    public static Connection open(String ipAddress, int port, String handshake, WireFormat wireFormat, Compression compression,
+                                  long timeoutMillis) throws IOException, InterruptedException {
+        var startTime = System.nanoTime();
+        var retryDelayMillis = INITIAL_RETRY_DELAY_MILLIS;
+
+        while (true) {
+            try {
+                return open(ipAddress, port, handshake, wireFormat, compression);
+            }
+            catch (IOException e) {
+                if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + retryDelayMillis > timeoutMillis) {
+                    throw e;
+                }
+
+                Thread.sleep(retryDelayMillis);
+                retryDelayMillis = Math.min(2 * retryDelayMillis, MAX_RETRY_DELAY_MILLIS);
+            }
+        }
+    }
+
+    public static Connection accept(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+
+        var handshake = new DataInputStream(socket.getInputStream()).readUTF();
+        return new Connection(socket, getHandshakeName(handshake), getHandshakeWireFormat(handshake), getHandshakeCompression(handshake));
+    }
+
+    public static String getHandshakeName(String handshake) {
+        var flagIndex = handshake.lastIndexOf(WIRE_FORMAT_FLAG);
+        return flagIndex < 0 ? handshake : handshake.substring(0, flagIndex);
+    }
+
+    public static WireFormat getHandshakeWireFormat(String handshake) {
+        var flagIndex = handshake.lastIndexOf(WIRE_FORMAT_FLAG);
+
+        if (flagIndex < 0) {
+            return WireFormat.Text;
+        }
+
+        var compressionIndex = handshake.indexOf(COMPRESSION_FLAG, flagIndex);
+        return WireFormat.valueOf(handshake.substring(flagIndex + WIRE_FORMAT_FLAG.length(), compressionIndex < 0 ? handshake.length() : compressionIndex));
+    }
+
+    public static Compression getHandshakeCompression(String handshake) {
+        var flagIndex = handshake.lastIndexOf(COMPRESSION_FLAG);
+        return flagIndex < 0 ? Compression.None : Compression.valueOf(handshake.substring(flagIndex + COMPRESSION_FLAG.length()));
+    }
+
+    @Override
+    public String getHandshake() {
+        return handshake;
+    }
+
+    public WireFormat getWireFormat() {
+        return codec.getWireFormat();
+    }
+
+    /**
+     * Longest frame the other side may send, see MessageCodec.setMaxFrameLength
+     */
+    public void setMaxFrameLength(int maxFrameLength) {
+        codec.setMaxFrameLength(maxFrameLength);
+    }
+
+    @Override
+    public void send(Message message) throws IOException {
+        // not synchronized, a virtual thread blocked on the socket while holding a monitor would pin its carrier thread
+        sendLock.lock();
+
+        try {
+            codec.write(dos, message);
+            dos.flush();
+        }
+        finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the messages back to back and flushes once, so that they leave in as few packets as the socket allows
+     */
+    public void send(Iterable<Message> messages) throws IOException {
+        sendLock.lock();
+
+        try {
+            for (var message : messages) {
+                codec.write(dos, message);
+            }
+
+            dos.flush();
+        }
+        finally {
+            sendLock.unlock();
+        }
+    }
+
+    public Message receive() throws IOException {
+        return codec.read(dis);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s)", handshake, socket.getRemoteSocketAddress());
+    }
+}
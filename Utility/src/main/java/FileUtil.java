@@ -8,7 +8,10 @@ public class FileUtil {
 
         if (files != null) {
             for (var file : files) {
-                truncateFile(Paths.get(directoryPath, file).toString());
+                // directories such as the write-ahead log of a server are left alone
+                if (new File(directoryPath, file).isFile()) {
+                    truncateFile(Paths.get(directoryPath, file).toString());
+                }
             }
         }
     }
@@ -28,6 +31,6 @@ public class FileUtil {
 
     public static boolean exists(String fileName) {
         var file = new File(fileName);
-        return file.exists();
+        return file.isFile();
     }
 }
@@ -0,0 +1,79 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.TreeMap;
+
+/**
+ * Places every server at a number of points on a ring of hashes and gives a file to the first servers found clockwise
+ * from the hash of its name, its replication group. A server added to the ring only takes files over from the servers
+ * next to its points, the groups of the other files stay as they are. Servers and clients build the same ring from the
+ * same names, so they agree on the groups without asking each other.
+ */
+public class HashRing {
+    private static final int POINTS_PER_SERVER = 64;
+    private TreeMap<Long, String> points;
+    private int replicationFactor;
+    private Hashtable<String, ArrayList<String>> replicas;
+
+    /**
+     * A replication factor of 0, or one of at least the number of servers, gives every file to every server
+     */
+    public HashRing(Collection<String> serverNames, int replicationFactor) {
+        this.points = new TreeMap<>();
+        this.replicationFactor = replicationFactor <= 0 ? serverNames.size() : Math.min(replicationFactor, serverNames.size());
+        this.replicas = new Hashtable<>();
+
+        for (var serverName : serverNames) {
+            for (var i = 0; i < POINTS_PER_SERVER; i++) {
+                points.put(hash(String.format("%s#%d", serverName, i)), serverName);
+            }
+        }
+    }
+
+    /**
+     * The replication group of the file, in the order its servers follow each other on the ring
+     */
+    public ArrayList<String> getReplicas(String fileName) {
+        return replicas.computeIfAbsent(fileName, name -> {
+            var group = new ArrayList<String>();
+
+            for (var serverName : points.tailMap(hash(name)).values()) {
+                if (group.size() < replicationFactor && !group.contains(serverName)) {
+                    group.add(serverName);
+                }
+            }
+
+            for (var serverName : points.headMap(hash(name)).values()) {
+                if (group.size() < replicationFactor && !group.contains(serverName)) {
+                    group.add(serverName);
+                }
+            }
+
+            return group;
+        });
+    }
+
+    public boolean isReplica(String fileName, String serverName) {
+        return getReplicas(fileName).contains(serverName);
+    }
+
+    private static long hash(String key) {
+        try {
+            // the first 8 bytes of an MD5 digest spread names that differ in one digit evenly, unlike String.hashCode
+            var digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            var hash = 0L;
+
+            for (var i = 0; i < Long.BYTES; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+
+            return hash;
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Formattable;
+import java.util.Formatter;
+import java.util.IllegalFormatException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the log records of all loggers of the JVM to standard output on one background thread.
+ * Logging threads claim a slot of a bounded ring with a compare-and-set and publish the record by advancing the slot's
+ * sequence, they never take a lock. The appender formats whatever is published in one go and prints it as a single write.
+ * A full ring makes the logging threads sleep until the appender has made room rather than drop records.
+ */
+public class LogAppender {
+    private static final int RING_SIZE = 1 << 14;
+    private static final int MASK = RING_SIZE - 1;
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+    private static final DateTimeFormatter SECOND_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd 'at' HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter ZONE_FORMAT = DateTimeFormatter.ofPattern("z").withZone(ZoneId.systemDefault());
+    private static final LogAppender INSTANCE = new LogAppender();
+
+    private AtomicLong tail;
+    private long head;
+    private AtomicLongArray sequences;
+    private long[] times;
+    private String[] templates;
+    private Object[][] arguments;
+    private StringBuilder batch;
+    private Formatter batchFormatter;
+    private long formattedSecond;
+    private String formattedSecondText;
+    private String formattedZoneText;
+    private Object room;
+    private volatile int waitingThreads;
+    private Thread thread;
+    // sequence of the next record to be printed, read by the threads waiting in flush
+    private volatile long printedSequence;
+    private volatile boolean isClosing;
+
+    private LogAppender() {
+        this.tail = new AtomicLong();
+        this.head = 0;
+        this.sequences = new AtomicLongArray(RING_SIZE);
+        this.times = new long[RING_SIZE];
+        this.templates = new String[RING_SIZE];
+        this.arguments = new Object[RING_SIZE][];
+        this.batch = new StringBuilder();
+        this.batchFormatter = new Formatter(batch);
+        this.formattedSecond = -1;
+        this.room = new Object();
+
+        for (var i = 0; i < RING_SIZE; i++) {
+            sequences.set(i, i);
+        }
+
+        this.thread = new Thread(this::run, "log-appender");
+        this.thread.setDaemon(true);
+        this.thread.start();
+
+        // records still in the ring when the JVM exits are written before it goes
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "log-appender-shutdown"));
+    }
+
+    public static LogAppender getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues a record, the template is formatted with the arguments on the appender thread so they must not change afterwards
+     */
+    public void append(long timeMillis, String template, Object[] templateArguments) {
+        long sequence;
+
+        while (true) {
+            sequence = tail.get();
+            var slotSequence = sequences.get((int) sequence & MASK);
+
+            if (slotSequence == sequence) {
+                if (tail.compareAndSet(sequence, sequence + 1)) {
+                    break;
+                }
+            }
+            else if (slotSequence < sequence) {
+                if (isClosing) {
+                    // the appender is gone, nobody would make room
+                    return;
+                }
+
+                waitForRoom(sequence);
+            }
+        }
+
+        var slot = (int) sequence & MASK;
+        times[slot] = timeMillis;
+        templates[slot] = template;
+        arguments[slot] = templateArguments;
+        sequences.lazySet(slot, sequence + 1);
+    }
+
+    /**
+     * Waits until the records appended before the call are printed, for instance before standard output is replaced
+     */
+    public void flush() {
+        var sequence = tail.get();
+
+        while (printedSequence < sequence && !isClosing) {
+            LockSupport.unpark(thread);
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    private void waitForRoom(long sequence) {
+        LockSupport.unpark(thread);
+
+        synchronized (room) {
+            waitingThreads++;
+
+            try {
+                // checked again after announcing the wait, the appender only notifies the threads it knows about
+                while (sequences.get((int) sequence & MASK) < sequence && !isClosing) {
+                    room.wait();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                waitingThreads--;
+            }
+        }
+    }
+
+    private void run() {
+        while (true) {
+            if (drain() == 0) {
+                if (isClosing) {
+                    return;
+                }
+
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private int drain() {
+        var count = 0;
+
+        while (count < RING_SIZE) {
+            var slot = (int) head & MASK;
+
+            if (sequences.get(slot) != head + 1) {
+                break;
+            }
+
+            batch.append("> ");
+            appendMessage(templates[slot], arguments[slot]);
+            batch.append(" at time: ");
+            appendTime(times[slot]);
+            batch.append(System.lineSeparator());
+
+            templates[slot] = null;
+            arguments[slot] = null;
+            sequences.lazySet(slot, head + RING_SIZE);
+            head++;
+            count++;
+        }
+
+        if (count > 0) {
+            if (waitingThreads > 0) {
+                synchronized (room) {
+                    room.notifyAll();
+                }
+            }
+
+            System.out.print(batch);
+            System.out.flush();
+            batch.setLength(0);
+            printedSequence = head;
+        }
+
+        return count;
+    }
+
+    /**
+     * Substitutes %s and %d itself, which is all the nodes use, and leaves any other template to String.format.
+     * Formattable arguments such as messages still format themselves.
+     */
+    private void appendMessage(String template, Object[] templateArguments) {
+        if (templateArguments == null) {
+            batch.append(template);
+            return;
+        }
+
+        var start = batch.length();
+        var argumentIndex = 0;
+
+        for (var i = 0; i < template.length(); i++) {
+            var character = template.charAt(i);
+
+            if (character != '%') {
+                batch.append(character);
+                continue;
+            }
+
+            var conversion = i + 1 < template.length() ? template.charAt(i + 1) : ' ';
+
+            if ((conversion == 's' || conversion == 'd') && argumentIndex < templateArguments.length) {
+                var argument = templateArguments[argumentIndex++];
+
+                // arguments that format themselves differently than their toString, as String.format would let them
+                if (argument instanceof Formattable) {
+                    batchFormatter.format("%s", argument);
+                }
+                else {
+                    batch.append(argument);
+                }
+
+                i++;
+            }
+            else if (conversion == '%') {
+                batch.append('%');
+                i++;
+            }
+            else {
+                batch.setLength(start);
+
+                try {
+                    batch.append(String.format(template, templateArguments));
+                }
+                catch (IllegalFormatException e) {
+                    batch.append(template).append(" (cannot format: ").append(e.getMessage()).append(')');
+                }
+
+                return;
+            }
+        }
+    }
+
+    private void appendTime(long timeMillis) {
+        var second = Math.floorDiv(timeMillis, 1000);
+        var millis = Math.floorMod(timeMillis, 1000);
+
+        if (second != formattedSecond) {
+            var time = Instant.ofEpochSecond(second);
+            formattedSecond = second;
+            formattedSecondText = SECOND_FORMAT.format(time);
+            formattedZoneText = ZONE_FORMAT.format(time);
+        }
+
+        batch.append(formattedSecondText).append('.');
+
+        if (millis < 100) {
+            batch.append('0');
+        }
+        if (millis < 10) {
+            batch.append('0');
+        }
+
+        batch.append(millis).append(' ').append(formattedZoneText);
+    }
+
+    private void close() {
+        isClosing = true;
+        LockSupport.unpark(thread);
+
+        synchronized (room) {
+            room.notifyAll();
+        }
+
+        try {
+            thread.join(1000);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
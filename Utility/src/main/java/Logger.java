@@ -1,9 +1,15 @@
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.function.Supplier;
 
+/**
+ * Hands log records to the shared LogAppender, which formats and prints them on its own thread.
+ * Templates use the String.format syntax and are only formatted there, so a logging call costs the caller a few stores.
+ * The debug calls return before touching their arguments when debugging is off, and the overloads with up to three
+ * arguments do not allocate an argument array for that. Arguments are still evaluated and primitives boxed before the
+ * call, so calls on hot paths with more arguments or with numbers check isDebugEnabled first.
+ */
 public class Logger {
-    private SimpleDateFormat dateTimeFormat = new SimpleDateFormat("yyyy-MM-dd 'at' HH:mm:ss.SSS z");
     private LogLevel level;
+    private LogAppender appender;
 
     public enum LogLevel {Debug, Release}
 
@@ -13,16 +19,60 @@ public class Logger {
 
     public Logger(LogLevel level) {
         this.level = level;
+        this.appender = LogAppender.getInstance();
+    }
+
+    public boolean isDebugEnabled() {
+        return level == LogLevel.Debug;
     }
 
     public void debug(String message) {
-        if (level == LogLevel.Debug) {
+        if (isDebugEnabled()) {
             log(message);
         }
     }
 
+    public void debug(String template, Object argument) {
+        if (isDebugEnabled()) {
+            log(template, argument);
+        }
+    }
+
+    public void debug(String template, Object firstArgument, Object secondArgument) {
+        if (isDebugEnabled()) {
+            log(template, firstArgument, secondArgument);
+        }
+    }
+
+    public void debug(String template, Object firstArgument, Object secondArgument, Object thirdArgument) {
+        if (isDebugEnabled()) {
+            log(template, firstArgument, secondArgument, thirdArgument);
+        }
+    }
+
+    public void debug(String template, Object... arguments) {
+        if (isDebugEnabled()) {
+            log(template, arguments);
+        }
+    }
+
+    /**
+     * For messages built from state that changes afterwards, the supplier runs on the calling thread
+     */
+    public void debug(Supplier<String> message) {
+        if (isDebugEnabled()) {
+            log(message.get());
+        }
+    }
+
     public void log(String message) {
-        var now = new Date(System.currentTimeMillis());
-        System.out.println(String.format("> %s at time: %s", message, dateTimeFormat.format(now)));
+        appender.append(System.currentTimeMillis(), message, null);
+    }
+
+    /**
+     * The arguments are formatted later on the appender thread, they must not change after the call
+     */
+    public void log(String template, Object... arguments) {
+        appender.append(System.currentTimeMillis(), template, arguments);
     }
 }
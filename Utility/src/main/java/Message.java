@@ -1,6 +1,10 @@
+import java.util.Formattable;
+import java.util.Formatter;
 import java.util.StringTokenizer;
 
-public class Message implements Comparable<Message> {
+public class Message implements Comparable<Message>, Formattable {
+    // log lines show this much of a payload, a large write would otherwise be copied into every line about it
+    private static final int MAX_FORMATTED_PAYLOAD_LENGTH = 256;
 
     public enum MessageType {
         WriteAcquireRequest,
@@ -10,25 +14,51 @@ public class Message implements Comparable<Message> {
         WriteSuccessAck,
         WriteFailureAck,
         ClientWriteRequest,
+        ClientReadRequest,
+        ReadSuccessAck,
+        ReadFailureAck,
+        SnapshotRequest,
+        Rejoin,
+        Token,
+        Inquire,
+        Failed,
+        Yield,
+        OrderedWrite,
+        OrderedWriteAck,
+        ReadyRequest,
+        ReadyAck,
+        LinkAck,
     }
 
     private String senderName;
-    private int timeStamp;
+    private long timeStamp;
     private String payload;
     private MessageType type;
+    // set by clients with several requests in flight on one connection and echoed on the reply, 0 when not used
+    private long requestId;
 
-    public Message(String senderName, MessageType type, int timeStamp, String payload) {
+    public Message(String senderName, MessageType type, long timeStamp, String payload) {
+        this(senderName, type, timeStamp, payload, 0);
+    }
+
+    public Message(String senderName, MessageType type, long timeStamp, String payload, long requestId) {
         this.senderName = senderName;
         this.timeStamp = timeStamp;
         this.payload = payload;
         this.type = type;
+        this.requestId = requestId;
     }
 
     public Message(String messageAsString) {
         var tokenizer = new StringTokenizer(messageAsString, "|");
         senderName = tokenizer.nextToken();
         type = MessageType.valueOf(tokenizer.nextToken());
-        timeStamp = Integer.parseInt(tokenizer.nextToken());
+
+        // the request id follows the timestamp as "timestamp#id"
+        var timeStampToken = tokenizer.nextToken();
+        var idIndex = timeStampToken.indexOf('#');
+        timeStamp = Long.parseLong(idIndex < 0 ? timeStampToken : timeStampToken.substring(0, idIndex));
+        requestId = idIndex < 0 ? 0 : Long.parseLong(timeStampToken.substring(idIndex + 1));
 
         var sb = new StringBuilder();
         while(tokenizer.hasMoreTokens()) {
@@ -49,16 +79,21 @@ public class Message implements Comparable<Message> {
         return type;
     }
 
-    public int getTimeStamp() {
+    public long getTimeStamp() {
         return timeStamp;
     }
 
+    public long getRequestId() {
+        return requestId;
+    }
+
     public String getPayload() {
         return payload;
     }
 
     public String getFileNameFromPayload() {
-        return payload.split("\\|")[0];
+        var separatorIndex = payload.indexOf('|');
+        return separatorIndex < 0 ? payload : payload.substring(0, separatorIndex);
     }
 
     public String getDataFromPayload() {
@@ -67,7 +102,7 @@ public class Message implements Comparable<Message> {
 
     @Override
     public int compareTo(Message o) {
-        var result = Integer.compare(this.timeStamp, o.timeStamp);
+        var result = Long.compare(this.timeStamp, o.timeStamp);
 
         if(result == 0) {
             result = this.senderName.compareTo(o.senderName);
@@ -78,6 +113,27 @@ public class Message implements Comparable<Message> {
 
     @Override
     public String toString() {
-        return String.format("%s|%s|%d|%s", senderName, type.toString(), timeStamp, payload);
+        return format(payload);
+    }
+
+    /**
+     * Used by %s in log templates instead of toString, which the text wire format needs complete
+     */
+    @Override
+    public void formatTo(Formatter formatter, int flags, int width, int precision) {
+        if (payload.length() <= MAX_FORMATTED_PAYLOAD_LENGTH) {
+            formatter.format("%s", toString());
+        }
+        else {
+            formatter.format("%s", format(String.format("%s... (%d chars)", payload.substring(0, MAX_FORMATTED_PAYLOAD_LENGTH), payload.length())));
+        }
+    }
+
+    private String format(String shownPayload) {
+        if (requestId != 0) {
+            return String.format("%s|%s|%d#%d|%s", senderName, type.toString(), timeStamp, requestId, shownPayload);
+        }
+
+        return String.format("%s|%s|%d|%s", senderName, type.toString(), timeStamp, shownPayload);
     }
 }
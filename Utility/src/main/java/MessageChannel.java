@@ -0,0 +1,12 @@
+import java.io.IOException;
+
+/**
+ * One end of a connection between two nodes, independent of the transport underneath.
+ */
+public interface MessageChannel {
+    String getHandshake();
+
+    void send(Message message) throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,467 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes and decodes messages of one connection.
+ * A binary frame is laid out as: length (int), type ordinal (byte), timestamp (long), request id (long, only if the high bit
+ * of the type byte is set), sender symbol, file symbol, data bytes. If the next bit of the type byte is set, the data bytes
+ * are deflated and preceded by their inflated length (int), which is held to the maximum frame length as well.
+ * Sender and file names are sent once per connection and referred to by their symbol id afterwards,
+ * so the encoding side and the decoding side each keep their own symbol table. Only the types whose payload starts with
+ * a file name have a file symbol, the payload of any other type goes as data as a whole.
+ * A text message too long for a single writeUTF string goes as several, all but the last starting with TEXT_CONTINUATION.
+ * A frame, or the pieces of a text message, longer than the maximum frame length fail the read with an IOException
+ * before anything is allocated for them, the connection cannot be read any further then. So does a message the other
+ * side could not have encoded, with an unknown type or symbol or shorter than its fields.
+ */
+public class MessageCodec {
+    private static final short NEW_SYMBOL = -1;
+    private static final short NO_SYMBOL = -2;
+    private static final short INLINE_SYMBOL = -3;
+    private static final int MAX_SYMBOLS = Short.MAX_VALUE;
+    private static final int REQUEST_ID_FLAG = 0x80;
+    private static final int COMPRESSED_FLAG = 0x40;
+    // smaller data rarely gets shorter and is not worth the time
+    public static final int COMPRESSION_THRESHOLD = 1024;
+    // a char takes at most 3 bytes of modified UTF-8, so a piece this long always fits the 65535 bytes of writeUTF
+    private static final int TEXT_PIECE_LENGTH = 65535 / 3 - 1;
+    // never the first char of a message, which starts with the sender name
+    private static final char TEXT_CONTINUATION = '\u0000';
+    private static final Message.MessageType[] MESSAGE_TYPES = Message.MessageType.values();
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private WireFormat wireFormat;
+    private Compression compression;
+    private Deflater deflater;
+    private Inflater inflater;
+    // the pieces of a long text message read so far
+    private StringBuilder pendingText;
+    private Hashtable<String, Short> outgoingSymbols;
+    private ArrayList<String> incomingSymbols;
+    private ByteArrayOutputStream frameBuffer;
+    private DataOutputStream frameWriter;
+    private int maxFrameLength;
+
+    public MessageCodec(WireFormat wireFormat, Compression compression) {
+        this.wireFormat = wireFormat;
+        this.compression = compression;
+        this.inflater = new Inflater();
+        this.pendingText = new StringBuilder();
+        this.outgoingSymbols = new Hashtable<>();
+        this.incomingSymbols = new ArrayList<>();
+        this.frameBuffer = new ByteArrayOutputStream(256);
+        this.frameWriter = new DataOutputStream(frameBuffer);
+        this.maxFrameLength = DEFAULT_MAX_FRAME_LENGTH;
+    }
+
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    /**
+     * Bytes of a binary frame after its length, or characters of a text message, that the other side may send
+     */
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public void write(DataOutputStream dos, Message message) throws IOException {
+        if (wireFormat == WireFormat.Text) {
+            writeText(dos, message.toString());
+            return;
+        }
+
+        var frame = encode(message);
+        dos.writeInt(frame.length);
+        dos.write(frame);
+    }
+
+    public Message read(DataInputStream dis) throws IOException {
+        if (wireFormat == WireFormat.Text) {
+            var text = dis.readUTF();
+
+            while (isTextPiece(text)) {
+                appendTextPiece(text);
+                text = dis.readUTF();
+            }
+
+            return parseText(joinText(text));
+        }
+
+        var frameLength = dis.readInt();
+        checkFrameLength(frameLength);
+
+        var frame = new byte[frameLength];
+        dis.readFully(frame);
+        return decode(ByteBuffer.wrap(frame));
+    }
+
+    public synchronized byte[] encodeFrame(Message message) throws IOException {
+        var frame = new ByteArrayOutputStream();
+        write(new DataOutputStream(frame), message);
+        return frame.toByteArray();
+    }
+
+    /**
+     * Decodes the frame at the position of a heap buffer in read mode and moves the position past it.
+     * Returns null and leaves the buffer untouched if the frame is not complete yet.
+     */
+    public Message decodeFrame(ByteBuffer buffer) throws IOException {
+        if (wireFormat == WireFormat.Text) {
+            String text;
+
+            // the pieces of a long message are consumed as they come, the codec keeps them until the last one
+            while ((text = readUTF(buffer)) != null) {
+                if (!isTextPiece(text)) {
+                    return parseText(joinText(text));
+                }
+
+                appendTextPiece(text);
+            }
+
+            return null;
+        }
+
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+
+        var start = buffer.position();
+        var bodyLength = buffer.getInt(start);
+        checkFrameLength(bodyLength);
+
+        if (buffer.remaining() < 4 + bodyLength) {
+            return null;
+        }
+
+        var message = decode(ByteBuffer.wrap(buffer.array(), buffer.arrayOffset() + start + 4, bodyLength));
+        buffer.position(start + 4 + bodyLength);
+        return message;
+    }
+
+    private void writeText(DataOutputStream dos, String text) throws IOException {
+        // short messages stay single strings that peers predating the pieces can read
+        if (text.length() <= TEXT_PIECE_LENGTH || getModifiedUtf8Length(text) <= 65535) {
+            dos.writeUTF(text);
+            return;
+        }
+
+        var start = 0;
+
+        for (; start + TEXT_PIECE_LENGTH < text.length(); start += TEXT_PIECE_LENGTH) {
+            dos.writeUTF(TEXT_CONTINUATION + text.substring(start, start + TEXT_PIECE_LENGTH));
+        }
+
+        dos.writeUTF(text.substring(start));
+    }
+
+    private static int getModifiedUtf8Length(String text) {
+        var length = 0;
+
+        for (var i = 0; i < text.length(); i++) {
+            var c = text.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+
+        return length;
+    }
+
+    private void checkFrameLength(long frameLength) throws IOException {
+        if (frameLength < 0 || frameLength > maxFrameLength) {
+            throw new IOException(String.format("A frame of %d bytes exceeds the maximum of %d", frameLength, maxFrameLength));
+        }
+    }
+
+    private void appendTextPiece(String text) throws IOException {
+        checkFrameLength((long) pendingText.length() + text.length() - 1);
+        pendingText.append(text, 1, text.length());
+    }
+
+    private static Message parseText(String text) throws IOException {
+        try {
+            return new Message(text);
+        }
+        catch (RuntimeException e) {
+            throw new IOException(String.format("A text message cannot be parsed: %s", e));
+        }
+    }
+
+    private static boolean isTextPiece(String text) {
+        return !text.isEmpty() && text.charAt(0) == TEXT_CONTINUATION;
+    }
+
+    private String joinText(String lastPiece) throws IOException {
+        if (pendingText.length() == 0) {
+            return lastPiece;
+        }
+
+        checkFrameLength((long) pendingText.length() + lastPiece.length());
+        var text = pendingText.append(lastPiece).toString();
+        pendingText.setLength(0);
+        return text;
+    }
+
+    /**
+     * Counterpart of DataOutputStream.writeUTF for a heap buffer in read mode, returns null if the string is not complete yet.
+     */
+    public static String readUTF(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 2) {
+            return null;
+        }
+
+        var start = buffer.position();
+        var length = 2 + (buffer.getShort(start) & 0xFFFF);
+
+        if (buffer.remaining() < length) {
+            return null;
+        }
+
+        var dis = new DataInputStream(new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + start, length));
+        buffer.position(start + length);
+        return dis.readUTF();
+    }
+
+    public synchronized byte[] encode(Message message) throws IOException {
+        var payload = message.getPayload();
+        var separatorIndex = hasFileName(message.getType()) ? payload.indexOf('|') : -1;
+        var data = (separatorIndex < 0 ? payload : payload.substring(separatorIndex + 1)).getBytes(StandardCharsets.UTF_8);
+        var compressedData = compression == Compression.Deflate && data.length >= COMPRESSION_THRESHOLD ? deflate(data) : null;
+
+        frameBuffer.reset();
+        var hasRequestId = message.getRequestId() != 0;
+        var isCompressed = compressedData != null && compressedData.length + Integer.BYTES < data.length;
+
+        frameWriter.writeByte(message.getType().ordinal() | (hasRequestId ? REQUEST_ID_FLAG : 0) | (isCompressed ? COMPRESSED_FLAG : 0));
+        frameWriter.writeLong(message.getTimeStamp());
+
+        if (hasRequestId) {
+            frameWriter.writeLong(message.getRequestId());
+        }
+
+        writeSymbol(message.getSenderName());
+
+        if (separatorIndex < 0) {
+            frameWriter.writeShort(NO_SYMBOL);
+        }
+        else {
+            writeSymbol(payload.substring(0, separatorIndex));
+        }
+
+        if (isCompressed) {
+            frameWriter.writeInt(data.length);
+            frameWriter.write(compressedData);
+        }
+        else {
+            frameWriter.write(data);
+        }
+
+        frameWriter.flush();
+        return frameBuffer.toByteArray();
+    }
+
+    public synchronized Message decode(ByteBuffer frame) throws IOException {
+        try {
+            return decodeFields(frame);
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("A frame ends before its fields");
+        }
+    }
+
+    private Message decodeFields(ByteBuffer frame) throws IOException {
+        var typeByte = frame.get() & 0xFF;
+        var typeOrdinal = typeByte & ~(REQUEST_ID_FLAG | COMPRESSED_FLAG);
+
+        if (typeOrdinal >= MESSAGE_TYPES.length) {
+            throw new IOException(String.format("A frame has the unknown type %d", typeOrdinal));
+        }
+
+        var type = MESSAGE_TYPES[typeOrdinal];
+        var timeStamp = frame.getLong();
+        var requestId = (typeByte & REQUEST_ID_FLAG) != 0 ? frame.getLong() : 0;
+        var senderName = readSymbol(frame);
+        var fileName = readSymbol(frame);
+        String data;
+
+        // the inflating side needs no option, any frame may come deflated
+        if ((typeByte & COMPRESSED_FLAG) != 0) {
+            var inflatedLength = frame.getInt();
+            checkFrameLength(inflatedLength);
+
+            var inflatedData = new byte[inflatedLength];
+            inflate(frame, inflatedData);
+            data = new String(inflatedData, StandardCharsets.UTF_8);
+        }
+        else {
+            data = new String(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), StandardCharsets.UTF_8);
+        }
+
+        frame.position(frame.limit());
+
+        if (senderName == null) {
+            throw new IOException("A frame has no sender");
+        }
+
+        var payload = fileName == null ? data : fileName + "|" + data;
+        return new Message(senderName, type, timeStamp, payload, requestId);
+    }
+
+    /**
+     * Whether the payload of the type starts with a file name. Anything else before the first separator, such as the
+     * sequence number of a LinkAck, changes from message to message and would only fill the symbol table.
+     */
+    private static boolean hasFileName(Message.MessageType type) {
+        switch (type) {
+            case WriteAcquireRequest:
+            case WriteAcquireResponse:
+            case WriteSyncRequest:
+            case WriteReleaseRequest:
+            case WriteSuccessAck:
+            case ClientWriteRequest:
+            case ClientReadRequest:
+            case ReadSuccessAck:
+            case SnapshotRequest:
+            case Token:
+            case Inquire:
+            case Failed:
+            case Yield:
+            case OrderedWrite:
+            case OrderedWriteAck:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private byte[] deflate(byte[] data) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+
+        var compressed = new ByteArrayOutputStream(data.length / 2);
+        var chunk = new byte[Math.min(data.length, 64 * 1024)];
+
+        while (!deflater.finished()) {
+            compressed.write(chunk, 0, deflater.deflate(chunk));
+        }
+
+        return compressed.toByteArray();
+    }
+
+    private void inflate(ByteBuffer frame, byte[] inflatedData) throws IOException {
+        inflater.reset();
+        inflater.setInput(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+
+        try {
+            var length = 0;
+
+            while (length < inflatedData.length && !inflater.finished()) {
+                var inflated = inflater.inflate(inflatedData, length, inflatedData.length - length);
+
+                if (inflated == 0 && inflater.needsInput()) {
+                    break;
+                }
+
+                length += inflated;
+            }
+
+            if (length != inflatedData.length) {
+                throw new IOException(String.format("deflated data ends after %d of %d bytes", length, inflatedData.length));
+            }
+
+            // the end of the stream can still be unread after the last byte, anything else there is more than was declared
+            if (!inflater.finished() && (inflater.inflate(new byte[1]) > 0 || !inflater.finished())) {
+                throw new IOException(String.format("deflated data does not end after the %d bytes declared", inflatedData.length));
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void writeSymbol(String symbol) throws IOException {
+        var id = outgoingSymbols.get(symbol);
+
+        if (id != null) {
+            frameWriter.writeShort(id);
+        }
+        else if (outgoingSymbols.size() < MAX_SYMBOLS) {
+            outgoingSymbols.put(symbol, (short) outgoingSymbols.size());
+            frameWriter.writeShort(NEW_SYMBOL);
+            writeSymbolBytes(symbol);
+        }
+        else {
+            frameWriter.writeShort(INLINE_SYMBOL);
+            writeSymbolBytes(symbol);
+        }
+    }
+
+    private void writeSymbolBytes(String symbol) throws IOException {
+        var bytes = symbol.getBytes(StandardCharsets.UTF_8);
+        frameWriter.writeShort(bytes.length);
+        frameWriter.write(bytes);
+    }
+
+    private String readSymbol(ByteBuffer frame) throws IOException {
+        var id = frame.getShort();
+
+        if (id == NO_SYMBOL) {
+            return null;
+        }
+
+        if (id >= 0) {
+            if (id >= incomingSymbols.size()) {
+                throw new IOException(String.format("A frame refers to the unknown symbol %d", id));
+            }
+
+            return incomingSymbols.get(id);
+        }
+
+        if (id != NEW_SYMBOL && id != INLINE_SYMBOL) {
+            throw new IOException(String.format("A frame has the unknown symbol marker %d", id));
+        }
+
+        var length = frame.getShort() & 0xFFFF;
+
+        if (length > frame.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        var symbol = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+
+        if (id == NEW_SYMBOL) {
+            // the encoding side inlines the symbols beyond this many
+            if (incomingSymbols.size() >= MAX_SYMBOLS) {
+                throw new IOException(String.format("A frame adds a symbol beyond the maximum of %d", MAX_SYMBOLS));
+            }
+
+            incomingSymbols.add(symbol);
+        }
+
+        return symbol;
+    }
+}
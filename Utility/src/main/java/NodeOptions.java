@@ -0,0 +1,73 @@
+import java.util.Hashtable;
+import java.util.Scanner;
+
+/**
+ * Optional "key=value" settings following the mandatory lines of a configuration file.
+ */
+public class NodeOptions {
+    private Hashtable<String, String> values;
+
+    public NodeOptions() {
+        this.values = new Hashtable<>();
+    }
+
+    public NodeOptions(NodeOptions options) {
+        this.values = new Hashtable<>(options.values);
+    }
+
+    public static NodeOptions parse(Scanner scanner) {
+        var options = new NodeOptions();
+
+        while (scanner.hasNextLine()) {
+            var line = scanner.nextLine().trim();
+            var separatorIndex = line.indexOf('=');
+
+            if (line.isEmpty() || line.startsWith("#") || separatorIndex < 0) {
+                continue;
+            }
+
+            options.set(line.substring(0, separatorIndex).trim(), line.substring(separatorIndex + 1).trim());
+        }
+
+        return options;
+    }
+
+    public void set(String key, String value) {
+        values.put(key.toLowerCase(), value);
+    }
+
+    public String get(String key, String defaultValue) {
+        return values.getOrDefault(key.toLowerCase(), defaultValue);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        var value = values.get(key.toLowerCase());
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        var value = values.get(key.toLowerCase());
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        var value = values.get(key.toLowerCase());
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    public <T extends Enum<T>> T getEnum(String key, Class<T> type, T defaultValue) {
+        var value = values.get(key.toLowerCase());
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        for (var constant : type.getEnumConstants()) {
+            if (constant.name().equalsIgnoreCase(value)) {
+                return constant;
+            }
+        }
+
+        throw new IllegalArgumentException(String.format("Unknown value '%s' for option '%s'", value, key));
+    }
+}
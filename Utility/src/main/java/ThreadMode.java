@@ -0,0 +1,26 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public enum ThreadMode {
+    Platform,
+    Virtual;
+
+    public ThreadFactory newThreadFactory(String namePrefix) {
+        if (this == Virtual) {
+            return Thread.ofVirtual().name(namePrefix + "-", 0).factory();
+        }
+
+        return Thread.ofPlatform().name(namePrefix + "-", 0).factory();
+    }
+
+    public ExecutorService newExecutor(String namePrefix) {
+        var threadFactory = newThreadFactory(namePrefix);
+
+        if (this == Virtual) {
+            return Executors.newThreadPerTaskExecutor(threadFactory);
+        }
+
+        return Executors.newCachedThreadPool(threadFactory);
+    }
+}
@@ -0,0 +1,11 @@
+public enum WireFormat {
+    /**
+     * Message.toString() sent through DataOutputStream.writeUTF, in several strings if it is longer than 64 KB
+     */
+    Text,
+
+    /**
+     * Length-prefixed frames encoded by MessageCodec
+     */
+    Binary
+}
@@ -0,0 +1,111 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashRingTest {
+    private static final int NUMBER_OF_FILES = 10_000;
+
+    @Test
+    void givesEveryFileDistinctServers() {
+        var hashRing = new HashRing(getServerNames(5), 3);
+
+        for (var fileName : getFileNames()) {
+            var replicas = hashRing.getReplicas(fileName);
+
+            assertEquals(3, replicas.size());
+            assertEquals(3, new HashSet<>(replicas).size());
+            assertTrue(replicas.stream().allMatch(serverName -> hashRing.isReplica(fileName, serverName)));
+        }
+    }
+
+    @Test
+    void givesEveryFileToEveryServerWithoutReplicationFactor() {
+        var serverNames = getServerNames(4);
+
+        for (var replicationFactor : List.of(0, 4, 7)) {
+            var replicas = new HashRing(serverNames, replicationFactor).getReplicas("File1.txt");
+            assertEquals(new HashSet<>(serverNames), new HashSet<>(replicas));
+        }
+    }
+
+    @Test
+    void placesFilesTheSameWayWhateverTheOrderOfTheServers() {
+        var serverNames = getServerNames(5);
+        var reversedServerNames = new ArrayList<>(serverNames.reversed());
+        var hashRing = new HashRing(serverNames, 2);
+        var otherHashRing = new HashRing(reversedServerNames, 2);
+
+        for (var fileName : getFileNames()) {
+            assertEquals(hashRing.getReplicas(fileName), otherHashRing.getReplicas(fileName));
+        }
+    }
+
+    @Test
+    void spreadsTheFilesEvenly() {
+        var hashRing = new HashRing(getServerNames(5), 3);
+        var numbersOfFiles = new Hashtable<String, Integer>();
+
+        for (var fileName : getFileNames()) {
+            for (var serverName : hashRing.getReplicas(fileName)) {
+                numbersOfFiles.merge(serverName, 1, Integer::sum);
+            }
+        }
+
+        var average = NUMBER_OF_FILES * 3 / 5;
+
+        for (var numberOfFiles : numbersOfFiles.values()) {
+            assertTrue(numberOfFiles > average * 0.7 && numberOfFiles < average * 1.3, numbersOfFiles.toString());
+        }
+    }
+
+    @Test
+    void movesFilesOnlyToAnAddedServer() {
+        var serverNames = getServerNames(5);
+        var hashRing = new HashRing(serverNames.subList(0, 4), 2);
+        var grownHashRing = new HashRing(serverNames, 2);
+        var numberOfMovedFiles = 0;
+
+        for (var fileName : getFileNames()) {
+            var replicas = hashRing.getReplicas(fileName);
+            var grownReplicas = grownHashRing.getReplicas(fileName);
+
+            if (!grownReplicas.contains(serverNames.get(4))) {
+                assertEquals(replicas, grownReplicas);
+                continue;
+            }
+
+            // the added server takes the place of one server of the group at most
+            numberOfMovedFiles++;
+            assertTrue(replicas.containsAll(grownReplicas.stream().filter(serverName -> !serverName.equals(serverNames.get(4))).toList()));
+        }
+
+        // about the share of the added server, 2 of 5 groups
+        assertTrue(numberOfMovedFiles > NUMBER_OF_FILES * 0.25 && numberOfMovedFiles < NUMBER_OF_FILES * 0.55, String.valueOf(numberOfMovedFiles));
+    }
+
+    private static List<String> getServerNames(int numberOfServers) {
+        var serverNames = new ArrayList<String>();
+
+        for (var i = 1; i <= numberOfServers; i++) {
+            serverNames.add(String.format("server %d", i));
+        }
+
+        return serverNames;
+    }
+
+    private static List<String> getFileNames() {
+        var fileNames = new ArrayList<String>();
+
+        for (var i = 1; i <= NUMBER_OF_FILES; i++) {
+            fileNames.add(String.format("File%d.txt", i));
+        }
+
+        return fileNames;
+    }
+}
@@ -0,0 +1,258 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageCodecTest {
+    private MessageCodec encoder = new MessageCodec(WireFormat.Binary, Compression.Deflate);
+    private MessageCodec decoder = new MessageCodec(WireFormat.Binary, Compression.None);
+
+    @Test
+    void roundTripsBinaryMessages() throws Exception {
+        assertRoundTrip(new Message("server 1", Message.MessageType.WriteSyncRequest, 42, "File1.txt|3|line"));
+        assertRoundTrip(new Message("Client 'a'", Message.MessageType.ClientWriteRequest, 43, "File1.txt|line", 7));
+        assertRoundTrip(new Message("server 1", Message.MessageType.SnapshotRequest, Long.MAX_VALUE, "File2.txt"));
+        assertRoundTrip(new Message("server 2", Message.MessageType.WriteSyncRequest, 44, "File1.txt|4|"));
+        assertRoundTrip(new Message("server 2", Message.MessageType.LinkAck, 45, "256|1234"));
+        assertRoundTrip(new Message("server 2", Message.MessageType.ReadyRequest, 46, ""));
+        assertRoundTrip(new Message("server 3", Message.MessageType.WriteSyncRequest, 47, "Fichier é.txt|1|ligne ü €"));
+    }
+
+    @Test
+    void deflatesLongData() throws Exception {
+        var message = new Message("server 1", Message.MessageType.WriteSyncRequest, 1, "File1.txt|1|" + "line ".repeat(2000));
+        var frame = encoder.encode(message);
+
+        assertTrue(frame.length < 1000);
+        assertMessageEquals(message, decoder.decode(ByteBuffer.wrap(frame)));
+    }
+
+    @Test
+    void sendsTheNamesOnlyOnce() throws Exception {
+        var message = new Message("server 1", Message.MessageType.WriteAcquireRequest, 1, "File1.txt|");
+        var firstFrame = encoder.encode(message);
+        var secondFrame = encoder.encode(message);
+
+        // the length and the bytes of both names are gone
+        assertEquals(firstFrame.length - 2 - "server 1".length() - 2 - "File1.txt".length(), secondFrame.length);
+        assertMessageEquals(message, decoder.decode(ByteBuffer.wrap(firstFrame)));
+        assertMessageEquals(message, decoder.decode(ByteBuffer.wrap(secondFrame)));
+    }
+
+    @Test
+    void keepsOtherPayloadsOutOfTheSymbolTable() throws Exception {
+        var firstFrame = encoder.encode(new Message("server 1", Message.MessageType.LinkAck, 1, "256|1234"));
+        var secondFrame = encoder.encode(new Message("server 1", Message.MessageType.LinkAck, 2, "256|1234"));
+
+        assertEquals(firstFrame.length - 2 - "server 1".length(), secondFrame.length);
+    }
+
+    @Test
+    void decodesFramesOnceComplete() throws Exception {
+        var message = new Message("server 1", Message.MessageType.WriteSyncRequest, 1, "File1.txt|1|line", 9);
+        var frame = encoder.encodeFrame(message);
+        var buffer = ByteBuffer.allocate(frame.length);
+
+        buffer.put(frame, 0, frame.length - 1).flip();
+        assertNull(decoder.decodeFrame(buffer));
+        assertEquals(0, buffer.position());
+
+        buffer.compact().put(frame[frame.length - 1]).flip();
+        assertMessageEquals(message, decoder.decodeFrame(buffer));
+        assertEquals(frame.length, buffer.position());
+    }
+
+    @Test
+    void roundTripsTextInPieces() throws Exception {
+        var textEncoder = new MessageCodec(WireFormat.Text, Compression.None);
+        var textDecoder = new MessageCodec(WireFormat.Text, Compression.None);
+        var shortMessage = new Message("server 1", Message.MessageType.WriteSyncRequest, 1, "File1.txt|1|line", 5);
+        var longMessage = new Message("server 1", Message.MessageType.WriteSyncRequest, 2, "File1.txt|2|" + "€".repeat(100_000));
+
+        var bytes = new ByteArrayOutputStream();
+        var dos = new DataOutputStream(bytes);
+        textEncoder.write(dos, shortMessage);
+        textEncoder.write(dos, longMessage);
+
+        var dis = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertMessageEquals(shortMessage, textDecoder.read(dis));
+        assertMessageEquals(longMessage, textDecoder.read(dis));
+
+        // the same bytes coming in one at a time
+        var buffer = ByteBuffer.allocate(bytes.size());
+        var decoded = new ArrayList<Message>();
+
+        for (var b : bytes.toByteArray()) {
+            buffer.put(b).flip();
+
+            var message = textDecoder.decodeFrame(buffer);
+
+            if (message != null) {
+                decoded.add(message);
+            }
+
+            buffer.compact();
+        }
+
+        assertEquals(2, decoded.size());
+        assertMessageEquals(shortMessage, decoded.get(0));
+        assertMessageEquals(longMessage, decoded.get(1));
+    }
+
+    @Test
+    void failsFramesOfAnUnknownType() {
+        assertMalformed(frame -> frame.writeByte(0x3F));
+    }
+
+    @Test
+    void failsFramesEndingBeforeTheirFields() {
+        assertMalformed(frame -> frame.writeByte(0));
+        assertMalformed(frame -> {
+            frame.writeByte(0);
+            frame.writeLong(1);
+            frame.writeShort(-1);
+            frame.writeShort(100);
+            frame.writeBytes("server 1");
+        });
+    }
+
+    @Test
+    void failsFramesWithUnknownSymbols() {
+        assertMalformed(frame -> {
+            frame.writeByte(0);
+            frame.writeLong(1);
+            frame.writeShort(5);
+        });
+        assertMalformed(frame -> {
+            frame.writeByte(0);
+            frame.writeLong(1);
+            frame.writeShort(-7);
+        });
+    }
+
+    @Test
+    void failsFramesWithoutSender() {
+        assertMalformed(frame -> {
+            frame.writeByte(0);
+            frame.writeLong(1);
+            frame.writeShort(-2);
+            frame.writeShort(-2);
+        });
+    }
+
+    @Test
+    void failsFramesLongerThanTheMaximum() throws Exception {
+        decoder.setMaxFrameLength(100);
+
+        var bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(101);
+
+        assertThrows(IOException.class, () -> decoder.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+        assertThrows(IOException.class, () -> decoder.decodeFrame(ByteBuffer.wrap(bytes.toByteArray())));
+        assertThrows(IOException.class, () -> decoder.decodeFrame(ByteBuffer.wrap(new byte[]{-1, -1, -1, -1})));
+    }
+
+    @Test
+    void failsDeflatedDataLongerThanDeclared() {
+        var deflatedData = deflate(new byte[1_000_000]);
+
+        assertMalformed(frame -> {
+            writeCompressedHeader(frame);
+            frame.writeInt(1000);
+            frame.write(deflatedData);
+        });
+        assertMalformed(frame -> {
+            writeCompressedHeader(frame);
+            frame.writeInt(MessageCodec.DEFAULT_MAX_FRAME_LENGTH + 1);
+            frame.write(deflatedData);
+        });
+        assertMalformed(frame -> {
+            writeCompressedHeader(frame);
+            frame.writeInt(2_000_000);
+            frame.write(deflatedData);
+        });
+    }
+
+    @Test
+    void failsTextThatIsNoMessage() throws Exception {
+        var textDecoder = new MessageCodec(WireFormat.Text, Compression.None);
+
+        for (var text : new String[]{"server 1", "server 1|Foo|1|File1.txt", "server 1|WriteSyncRequest|x|File1.txt"}) {
+            var bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeUTF(text);
+
+            assertThrows(IOException.class, () -> textDecoder.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+        }
+    }
+
+    private void assertRoundTrip(Message message) throws IOException {
+        assertMessageEquals(message, decoder.decode(ByteBuffer.wrap(encoder.encode(message))));
+
+        var bytes = new ByteArrayOutputStream();
+        encoder.write(new DataOutputStream(bytes), message);
+        assertMessageEquals(message, decoder.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+    }
+
+    private static void assertMessageEquals(Message expected, Message actual) {
+        assertEquals(expected.getSenderName(), actual.getSenderName());
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getTimeStamp(), actual.getTimeStamp());
+        assertEquals(expected.getRequestId(), actual.getRequestId());
+        assertEquals(expected.getPayload(), actual.getPayload());
+    }
+
+    private void assertMalformed(FrameWriter frameWriter) {
+        var bytes = new ByteArrayOutputStream();
+
+        try {
+            frameWriter.write(new DataOutputStream(bytes));
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+
+        assertThrows(IOException.class, () -> decoder.decode(ByteBuffer.wrap(bytes.toByteArray())));
+    }
+
+    private static void writeCompressedHeader(DataOutputStream frame) throws IOException {
+        frame.writeByte(Message.MessageType.ClientWriteRequest.ordinal() | 0x40);
+        frame.writeLong(1);
+        frame.writeShort(-1);
+        frame.writeShort(5);
+        frame.writeBytes("probe");
+        frame.writeShort(-1);
+        frame.writeShort(9);
+        frame.writeBytes("File1.txt");
+    }
+
+    private static byte[] deflate(byte[] data) {
+        var deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+
+        var deflatedData = new ByteArrayOutputStream();
+        var chunk = new byte[4096];
+
+        while (!deflater.finished()) {
+            deflatedData.write(chunk, 0, deflater.deflate(chunk));
+        }
+
+        deflater.end();
+        return deflatedData.toByteArray();
+    }
+
+    private interface FrameWriter {
+        void write(DataOutputStream frame) throws IOException;
+    }
+}